@@ -87,9 +87,8 @@ public class Bot implements Defer.Callable<Void> {
     }
     
     public static void pickup(GameUI gui, Predicate<Gob> filter, int limit) {
-	List<Target> targets = gui.ui.sess.glob.oc.stream()
+	List<Target> targets = nearPlayer(gui).stream()
 	    .filter(filter)
-	    .filter(gob -> distanceToPlayer(gob) <= CFG.AUTO_PICK_RADIUS.get())
 	    .filter(Bot::isOnRadar)
 	    .sorted(byDistance)
 	    .limit(limit)
@@ -149,9 +148,8 @@ public class Bot implements Defer.Callable<Void> {
     }
     
     private static List<Target> getNearestTargets(GameUI gui, String name, int limit) {
-	return gui.ui.sess.glob.oc.stream()
+	return nearPlayer(gui).stream()
 	    .filter(gobIs(name))
-	    .filter(gob -> distanceToPlayer(gob) <= CFG.AUTO_PICK_RADIUS.get())
 	    .sorted(byDistance)
 	    .limit(limit)
 	    .map(Target::new)
@@ -337,9 +335,11 @@ public class Bot implements Defer.Callable<Void> {
 	return true;
     }
     
-    private static double distanceToPlayer(Gob gob) {
-	Gob p = gob.glob.oc.getgob(gob.glob.sess.ui.gui.plid);
-	return p.rc.dist(gob.rc);
+    private static List<Gob> nearPlayer(GameUI gui) {
+	OCache oc = gui.ui.sess.glob.oc;
+	Gob p = oc.getgob(gui.plid);
+	if(p == null) {return Collections.emptyList();}
+	return oc.within(p.rc, CFG.AUTO_PICK_RADIUS.get());
     }
     
     public static Comparator<Gob> byDistance = (o1, o2) -> {
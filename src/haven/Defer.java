@@ -32,11 +32,15 @@ import java.security.*;
 import java.util.concurrent.atomic.*;
 
 public class Defer extends ThreadGroup {
+    public static final Config.Variable<Integer> nthreads = Config.Variable.propi("haven.defer.threads", Math.max(2, Runtime.getRuntime().availableProcessors() - 1));
     private static final Map<ThreadGroup, Defer> groups = new WeakHashMap<ThreadGroup, Defer>();
-    private final Queue<Future<?>> queue = new PrioQueue<Future<?>>();
-    private final Collection<Thread> pool = new LinkedList<Thread>();
-    private final int maxthreads = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+    private final Worker[] workers = new Worker[Math.max(1, nthreads.get())];
+    private final AtomicInteger nworkers = new AtomicInteger(0);
+    private final AtomicInteger rrsub = new AtomicInteger(0);
     private final AtomicInteger busy = new AtomicInteger(0);
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final AtomicLong waitsum = new AtomicLong(0), waitn = new AtomicLong(0);
+    private final AtomicLong steals = new AtomicLong(0);
     
     public interface Callable<T> {
 	public T call() throws InterruptedException;
@@ -120,6 +124,7 @@ public class Defer extends ThreadGroup {
 	private Throwable exc = null;
 	private Loading lastload = null;
 	private volatile Thread running = null;
+	private long qtime;
 	
 	private Future(Callable<T> task) {
 	    this.task = task;
@@ -156,6 +161,8 @@ public class Defer extends ThreadGroup {
 		    return;
 		running = Thread.currentThread();
 	    }
+	    waitsum.getAndAdd(System.nanoTime() - qtime);
+	    waitn.getAndIncrement();
 	    try {
 		busy.getAndIncrement();
 		try {
@@ -242,41 +249,111 @@ public class Defer extends ThreadGroup {
     }
 
     private static final AtomicInteger threadno = new AtomicInteger(0);
+    /* Each worker owns its own priority queue, so that submitting
+     * and polling work only contend on the queue of a single worker
+     * rather than on one global monitor. Workers take jobs from the
+     * other workers whenever those are more urgent than their own. */
     private class Worker extends HackThread {
-	private Worker() {
+	private final PrioQueue<Future<?>> queue = new PrioQueue<Future<?>>();
+	private final int idx;
+	private volatile boolean idle = false;
+
+	private Worker(int idx) {
 	    super(Defer.this, null, "Worker thread #" + threadno.getAndIncrement());
+	    this.idx = idx;
 	    setDaemon(true);
 	    setPriority((Thread.NORM_PRIORITY + Thread.MIN_PRIORITY) / 2);
 	}
-	
+
+	private void add(Future<?> f) {
+	    synchronized(queue) {
+		queue.add(f);
+	    }
+	}
+
+	private Future<?> poll() {
+	    synchronized(queue) {
+		return(queue.poll());
+	    }
+	}
+
+	private int peekprio() {
+	    synchronized(queue) {
+		Future<?> f = queue.peek();
+		return((f == null) ? Integer.MIN_VALUE : f.priority());
+	    }
+	}
+
+	/* Finds the other worker whose most urgent job has a higher
+	 * priority than above, if any. */
+	private Worker victim(int above) {
+	    Worker victim = null;
+	    int mp = above;
+	    int n = nworkers.get();
+	    for(int i = 1; i < n; i++) {
+		Worker w = workers[(idx + i) % n];
+		int p = w.peekprio();
+		if((p != Integer.MIN_VALUE) && (p > mp)) {
+		    victim = w;
+		    mp = p;
+		}
+	    }
+	    return(victim);
+	}
+
+	private Future<?> steal(int above) {
+	    Worker victim = victim(above);
+	    if(victim == null)
+		return(null);
+	    Future<?> f = victim.poll();
+	    if(f != null)
+		steals.getAndIncrement();
+	    return(f);
+	}
+
+	/* Runs the most urgent job of all queues, preferring the local
+	 * one on ties, so that a boosted job queued elsewhere does not
+	 * wait behind this worker's backlog. */
+	private Future<?> take() {
+	    Future<?> f = steal(peekprio());
+	    if(f == null)
+		f = poll();
+	    if(f == null)
+		f = steal(Integer.MIN_VALUE);
+	    if(f != null)
+		queued.getAndDecrement();
+	    return(f);
+	}
+
+	private void wake() {
+	    synchronized(this) {
+		notify();
+	    }
+	}
+
 	public void run() {
-	    try {
-		while(true) {
-		    Future<?> f;
-		    try {
-			long start = System.currentTimeMillis();
-			synchronized(queue) {
-			    while((f = queue.poll()) == null) {
-				if(System.currentTimeMillis() - start > 5000)
-				    return;
-				queue.wait(1000);
-			    }
+	    while(true) {
+		Future<?> f;
+		while((f = take()) == null) {
+		    synchronized(this) {
+			/* Publish idleness before the final check, so
+			 * that a concurrent submitter either sees this
+			 * worker as idle or its job is seen here. */
+			idle = true;
+			try {
+			    if((f = take()) != null)
+				break;
+			    wait();
+			} catch(InterruptedException e) {
+			    /* Stray interrupts from cancelled jobs;
+			     * workers are kept warm regardless. */
+			} finally {
+			    idle = false;
 			}
-		    } catch(InterruptedException e) {
-			return;
-		    }
-		    f.run();
-		    f = null;
-		}
-	    } finally {
-		synchronized(queue) {
-		    pool.remove(this);
-		    if((pool.size() < 1) && !queue.isEmpty()) {
-			Thread n = new Worker();
-			n.start();
-			pool.add(n);
 		    }
 		}
+		f.run();
+		f = null;
 	    }
 	}
     }
@@ -285,22 +362,53 @@ public class Defer extends ThreadGroup {
 	super(parent, "DPC threads");
     }
 
+    private Worker spawn() {
+	synchronized(workers) {
+	    int n = nworkers.get();
+	    if(n >= workers.length)
+		return(null);
+	    Worker w = AccessController.doPrivileged(new PrivilegedAction<Worker>() {
+		    public Worker run() {
+			Worker ret = new Worker(n);
+			ret.start();
+			return(ret);
+		    }
+		});
+	    workers[n] = w;
+	    nworkers.set(n + 1);
+	    return(w);
+	}
+    }
+
+    private Worker idleworker() {
+	int n = nworkers.get();
+	for(int i = 0; i < n; i++) {
+	    if(workers[i].idle)
+		return(workers[i]);
+	}
+	return(null);
+    }
+
     private void defer(final Future<?> f) {
-	synchronized(queue) {
-	    boolean e = queue.isEmpty();
-	    queue.add(f);
-	    queue.notify();
-	    if((pool.isEmpty() || !e) && (pool.size() < maxthreads)) {
-		Thread n = AccessController.doPrivileged(new PrivilegedAction<Thread>() {
-			public Thread run() {
-			    Thread ret = new Worker();
-			    ret.start();
-			    return(ret);
-			}
-		    });
-		pool.add(n);
-	    }
+	f.qtime = System.nanoTime();
+	queued.getAndIncrement();
+	Thread cur = Thread.currentThread();
+	Worker tgt;
+	if((cur instanceof Worker) && (cur.getThreadGroup() == this)) {
+	    tgt = (Worker)cur;
+	} else {
+	    int n = nworkers.get();
+	    if((n == 0) || ((idleworker() == null) && (n < workers.length)))
+		tgt = spawn();
+	    else
+		tgt = null;
+	    if(tgt == null)
+		tgt = workers[Math.floorMod(rrsub.getAndIncrement(), nworkers.get())];
 	}
+	tgt.add(f);
+	Worker w = tgt.idle ? tgt : idleworker();
+	if(w != null)
+	    w.wake();
     }
 
     public <T> Future<T> defer(Callable<T> task) {
@@ -309,7 +417,7 @@ public class Defer extends ThreadGroup {
 	return(f);
     }
 
-    private static Defer getgroup() {
+    public static Defer getgroup() {
 	return(AccessController.doPrivileged(new PrivilegedAction<Defer>() {
 		public Defer run() {
 		    ThreadGroup tg = Thread.currentThread().getThreadGroup();
@@ -330,10 +438,16 @@ public class Defer extends ThreadGroup {
 	return(d.defer(task));
     }
 
+    /* Running totals of tasks started and of the time they spent
+     * queued, in nanoseconds. Callers wanting recent latencies take
+     * differences between readings. */
+    public long waitn() {return(waitn.get());}
+    public long waitsum() {return(waitsum.get());}
+
     public String stats() {
-	synchronized(queue) {
-	    return(String.format("%d %d/%d", queue.size(), busy.get(), pool.size()));
-	}
+	long n = waitn.get(), sum = waitsum.get();
+	double lat = (n == 0) ? 0 : (sum * 1e-6) / n;
+	return(String.format("%d %d/%d %.1fms s%d", queued.get(), busy.get(), nworkers.get(), lat, steals.get()));
     }
 
     public static String gstats() {
@@ -29,6 +29,7 @@ package haven;
 import java.awt.*;
 import java.util.*;
 import java.util.function.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import haven.render.*;
 import haven.res.gfx.fx.msrad.MSRad;
 import integrations.mapv4.MappingClient;
@@ -48,7 +49,10 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
     public boolean removed = false;
     public final Glob glob;
     private boolean disposed = false;
-    final Map<Class<? extends GAttrib>, GAttrib> attr = new HashMap<Class<? extends GAttrib>, GAttrib>();
+    /* Indexed by attribute slot and replaced as a whole on every
+     * change, so that readers need no locking. */
+    private volatile GAttrib[] attr = {};
+    private final Object attrlock = new Object();
     public final Collection<Overlay> ols = new ArrayList<Overlay>();
     public final Collection<RenderTree.Slot> slots = new ArrayList<>(1);
     public int updateseq = 0;
@@ -65,10 +69,11 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
     private GobWarning warning = null;
     public StatusUpdates status = new StatusUpdates();
     private final CustomColor customColor = new CustomColor();
-    private final Set<GobTag> tags = new HashSet<>();
+    private final Set<GobTag> tags = EnumSet.noneOf(GobTag.class);
     public boolean drivenByPlayer = false;
     public boolean mapProcessed = false;
     public long drives = 0;
+    GobGrid.Cell gridcell = null;
     private GobRadius radius = null;
     private long eseq = 0;
     public static final ChangeCallback CHANGED = new ChangeCallback() {
@@ -413,15 +418,18 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 	this(glob, c, -1);
     }
     
-    private Map<Class<? extends GAttrib>, GAttrib> cloneattrs() {
-	synchronized (this.attr) {
-	    return new HashMap<>(this.attr);
+    private Collection<GAttrib> cloneattrs() {
+	GAttrib[] attr = this.attr;
+	Collection<GAttrib> ret = new ArrayList<>(attr.length);
+	for(GAttrib a : attr) {
+	    if(a != null)
+		ret.add(a);
 	}
+	return(ret);
     }
     
     public void ctick(double dt) {
-	Map<Class<? extends GAttrib>, GAttrib> attr = cloneattrs();
-	for(GAttrib a : attr.values())
+	for(GAttrib a : cloneattrs())
 	    a.ctick(dt);
 	for(Iterator<Overlay> i = ols.iterator(); i.hasNext();) {
 	    Overlay ol = i.next();
@@ -594,8 +602,7 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
     }
     
     public void tick() {
-	Map<Class<? extends GAttrib>, GAttrib> attr = cloneattrs();
-	for (GAttrib a : attr.values())
+	for (GAttrib a : cloneattrs())
 	    a.tick();
     }
     
@@ -617,8 +624,7 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 	    disposed = true;
 	    removalLock.notifyAll();
 	}
-	Map<Class<? extends GAttrib>, GAttrib> attr = cloneattrs();
-	for(GAttrib a : attr.values()) {
+	for(GAttrib a : cloneattrs()) {
 	    if(a instanceof Moving) {updateMovingInfo(null, a);}
 	    a.dispose();
 	}
@@ -634,6 +640,7 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 	}
 	this.rc = c;
 	this.a = a;
+	glob.oc.grid.moved(this);
     }
     
     public Boolean isMe() {
@@ -675,7 +682,7 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 	return(tile.drawstate(glob, pc));
     }
 
-    private Class<? extends GAttrib> attrclass(Class<? extends GAttrib> cl) {
+    private static Class<? extends GAttrib> attrclass(Class<? extends GAttrib> cl) {
 	while(true) {
 	    Class<?> p = cl.getSuperclass();
 	    if(p == GAttrib.class)
@@ -684,19 +691,47 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 	}
     }
 
+    /* Each attribute class shares the dense slot number of its
+     * direct GAttrib subclass, assigned the first time either is
+     * seen. */
+    private static final AtomicInteger nattrslots = new AtomicInteger(0);
+    private static final ClassValue<Integer> attrslots = new ClassValue<Integer>() {
+	protected Integer computeValue(Class<?> cl) {
+	    Class<? extends GAttrib> ac = attrclass(cl.asSubclass(GAttrib.class));
+	    if(ac != cl)
+		return(get(ac));
+	    return(nattrslots.getAndIncrement());
+	}
+    };
+
     public <C extends GAttrib> C getattr(Class<C> c) {
-	synchronized (attr) {
-	    GAttrib attr = this.attr.get(attrclass(c));
-	    if(!c.isInstance(attr))
-		return (null);
-	    return (c.cast(attr));
+	GAttrib[] attr = this.attr;
+	int slot = attrslots.get(c);
+	GAttrib a = (slot < attr.length) ? attr[slot] : null;
+	if(!c.isInstance(a))
+	    return (null);
+	return (c.cast(a));
+    }
+
+    private void putattr(int slot, GAttrib a) {
+	GAttrib[] attr = this.attr;
+	if(slot >= attr.length) {
+	    if(a == null)
+		return;
+	    attr = Arrays.copyOf(attr, slot + 1);
+	} else {
+	    attr = attr.clone();
 	}
+	attr[slot] = a;
+	this.attr = attr;
     }
 
     private void setattr(Class<? extends GAttrib> ac, GAttrib a) {
 	GAttrib prev;
-	synchronized (attr) {
-	    prev = attr.remove(ac);
+	int slot = attrslots.get(ac);
+	synchronized (attrlock) {
+	    GAttrib[] cur = attr;
+	    prev = (slot < cur.length) ? cur[slot] : null;
 	    if(prev != null) {
 		if((prev instanceof RenderTree.Node) && (prev.slots != null))
 		    RUtils.multirem(new ArrayList<>(prev.slots));
@@ -708,10 +743,8 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 		    try {
 			RUtils.multiadd(this.slots, (RenderTree.Node) a);
 		    } catch (Loading l) {
-			if(prev instanceof RenderTree.Node && !prev.skipRender) {
+			if(prev instanceof RenderTree.Node && !prev.skipRender)
 			    RUtils.multiadd(this.slots, (RenderTree.Node) prev);
-			    attr.put(ac, prev);
-			}
 			if(prev instanceof SetupMod)
 			    setupmods.add((SetupMod) prev);
 			throw (l);
@@ -719,8 +752,8 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 		}
 		if(a instanceof SetupMod)
 		    setupmods.add((SetupMod) a);
-		attr.put(ac, a);
 	    }
+	    putattr(slot, a);
 	    if(prev != null)
 		prev.dispose();
 	    if(ac == Drawable.class) {
@@ -735,6 +768,7 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 	    }
 	}
 	if(ac == Moving.class) {updateMovingInfo(a, prev);}
+	if((ac == GobIcon.class) || (ac == KinInfo.class)) {glob.oc.changed(this);}
     }
 
     public void setattr(GAttrib a) {
@@ -746,7 +780,7 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
     }
 
     public Supplier<? extends Pipe.Op> eqpoint(String nm, Message dat) {
-	for(GAttrib attr : this.attr.values()) {
+	for(GAttrib attr : this.attr) {
 	    if(attr instanceof EquipTarget) {
 		Supplier<? extends Pipe.Op> ret = ((EquipTarget)attr).eqpoint(nm, dat);
 		if(ret != null)
@@ -844,8 +878,7 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 	    if(ol.slots != null)
 		slot.add(ol);
 	}
-	Map<Class<? extends GAttrib>, GAttrib> attr = cloneattrs();
-	for(GAttrib a : attr.values()) {
+	for(GAttrib a : cloneattrs()) {
 	    if(a instanceof RenderTree.Node && !a.skipRender)
 		slot.add((RenderTree.Node) a);
 	}
@@ -1135,11 +1168,11 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 		if(needHide) {
 		    if(d.slots != null) {
 			ArrayList<RenderTree.Slot> tmpSlots = new ArrayList<>(d.slots);
-			glob.loader.defer(() -> RUtils.multiremSafe(tmpSlots), null);
+			glob.loader.defer(() -> RUtils.multiremSafe(tmpSlots), null, Loader.PRIO_LOW);
 		    }
 		} else {
 		    ArrayList<RenderTree.Slot> tmpSlots = new ArrayList<>(slots);
-		    glob.loader.defer(() -> RUtils.multiadd(tmpSlots, d), null);
+		    glob.loader.defer(() -> RUtils.multiadd(tmpSlots, d), null, Loader.PRIO_LOW);
 		}
 	    }
 	    if(needHide) {
@@ -1309,6 +1342,10 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 	if(status.updated(StatusType.marker, StatusType.id)) {
 	    markGob();
 	}
+	
+	if(status.updated(StatusType.icon, StatusType.kin)) {
+	    glob.oc.changed(this);
+	}
     }
     
     private void updateColor() {
@@ -0,0 +1,234 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven;
+
+import java.util.function.Consumer;
+
+/*
+ * A uniform grid of gobs by position, for finding the gobs near
+ * some place without looking at all of them. Changes are made under
+ * the grid's lock, but the cells are published copy-on-write, so
+ * that queries need neither lock nor allocate. Queries may,
+ * consequently, see slightly stale cell contents, and a gob moving
+ * between cells during a query may be missed or reported twice, but
+ * the distance tests are always made against its current position.
+ *
+ * Most per-gob displays (warnings, hitboxes, paths) are attributes
+ * of their own gobs, the minimap keeps its own change-driven icon
+ * index and map clicks are resolved by picking, so none of those
+ * look for gobs by position; this is for what does.
+ */
+public class GobGrid {
+    public static final double CELL = MCache.tilesz.x * 10;
+    private volatile Cell[] table = new Cell[64];
+    private int used = 0;
+
+    public static class Cell {
+	public final long key;
+	private volatile Gob[] gobs = new Gob[0];
+
+	private Cell(long key) {
+	    this.key = key;
+	}
+    }
+
+    private static int cellc(double c) {
+	return((int)Math.floor(c / CELL));
+    }
+
+    private static long key(int x, int y) {
+	return(((long)x << 32) | (y & 0xffffffffL));
+    }
+
+    private static int hash(long key) {
+	long h = key * 0x9e3779b97f4a7c15L;
+	return((int)(h ^ (h >>> 32)));
+    }
+
+    private static Cell find(Cell[] table, long key) {
+	int m = table.length - 1;
+	for(int s = hash(key) & m; ; s = (s + 1) & m) {
+	    Cell c = table[s];
+	    if((c == null) || (c.key == key))
+		return(c);
+	}
+    }
+
+    /* Empty cells are only ever dropped here, so lookups never have
+     * to deal with deleted slots. */
+    private void rehash() {
+	Cell[] ot = table;
+	int n = 0;
+	for(Cell c : ot) {
+	    if((c != null) && (c.gobs.length > 0))
+		n++;
+	}
+	int sz = 64;
+	while(sz < n * 4)
+	    sz <<= 1;
+	Cell[] nt = new Cell[sz];
+	for(Cell c : ot) {
+	    if((c == null) || (c.gobs.length == 0))
+		continue;
+	    int s = hash(c.key) & (sz - 1);
+	    while(nt[s] != null)
+		s = (s + 1) & (sz - 1);
+	    nt[s] = c;
+	}
+	used = n;
+	table = nt;
+    }
+
+    private Cell cell(long key) {
+	Cell ret = find(table, key);
+	if(ret != null)
+	    return(ret);
+	if((used + 1) * 4 > table.length * 3)
+	    rehash();
+	Cell[] t = table;
+	int m = t.length - 1, s = hash(key) & m;
+	while(t[s] != null)
+	    s = (s + 1) & m;
+	t[s] = ret = new Cell(key);
+	used++;
+	return(ret);
+    }
+
+    private static void cadd(Cell c, Gob gob) {
+	Gob[] p = c.gobs;
+	Gob[] n = new Gob[p.length + 1];
+	System.arraycopy(p, 0, n, 0, p.length);
+	n[p.length] = gob;
+	c.gobs = n;
+    }
+
+    private static void crem(Cell c, Gob gob) {
+	Gob[] p = c.gobs;
+	for(int i = 0; i < p.length; i++) {
+	    if(p[i] == gob) {
+		Gob[] n = new Gob[p.length - 1];
+		System.arraycopy(p, 0, n, 0, i);
+		System.arraycopy(p, i + 1, n, i, n.length - i);
+		c.gobs = n;
+		return;
+	    }
+	}
+    }
+
+    public void add(Gob gob) {
+	Coord2d rc = gob.rc;
+	if(rc == null)
+	    return;
+	synchronized(this) {
+	    if(gob.gridcell != null)
+		return;
+	    Cell c = cell(key(cellc(rc.x), cellc(rc.y)));
+	    cadd(c, gob);
+	    gob.gridcell = c;
+	}
+    }
+
+    public void remove(Gob gob) {
+	synchronized(this) {
+	    if(gob.gridcell != null) {
+		crem(gob.gridcell, gob);
+		gob.gridcell = null;
+	    }
+	}
+    }
+
+    public void moved(Gob gob) {
+	Coord2d rc = gob.rc;
+	Cell cur = gob.gridcell;
+	if((rc == null) || (cur == null))
+	    return;
+	long key = key(cellc(rc.x), cellc(rc.y));
+	if(cur.key == key)
+	    return;
+	synchronized(this) {
+	    if((cur = gob.gridcell) == null)
+		return;
+	    crem(cur, gob);
+	    Cell c = cell(key);
+	    cadd(c, gob);
+	    gob.gridcell = c;
+	}
+    }
+
+    /* Calls action for every gob whose position lies within the
+     * rectangle [ul, br). */
+    public void forEachIn(Coord2d ul, Coord2d br, Consumer<? super Gob> action) {
+	query(ul.x, ul.y, br.x, br.y, ul.x, ul.y, -1, action);
+    }
+
+    /* Calls action for every gob within distance r of c. */
+    public void forEachWithin(Coord2d c, double r, Consumer<? super Gob> action) {
+	query(c.x - r, c.y - r, c.x + r, c.y + r, c.x, c.y, r * r, action);
+    }
+
+    private void query(double x1, double y1, double x2, double y2, double cx, double cy, double r2, Consumer<? super Gob> action) {
+	Cell[] t = table;
+	int ax = cellc(x1), ay = cellc(y1), bx = cellc(x2), by = cellc(y2);
+	long ncells = ((long)bx - ax + 1) * ((long)by - ay + 1);
+	if(ncells > t.length) {
+	    for(Cell c : t) {
+		if(c != null)
+		    scan(c, x1, y1, x2, y2, cx, cy, r2, action);
+	    }
+	} else {
+	    for(int y = ay; y <= by; y++) {
+		for(int x = ax; x <= bx; x++) {
+		    Cell c = find(t, key(x, y));
+		    if(c != null)
+			scan(c, x1, y1, x2, y2, cx, cy, r2, action);
+		}
+	    }
+	}
+    }
+
+    private static void scan(Cell c, double x1, double y1, double x2, double y2, double cx, double cy, double r2, Consumer<? super Gob> action) {
+	for(Gob gob : c.gobs) {
+	    Coord2d rc = gob.rc;
+	    if(rc == null)
+		continue;
+	    if(r2 < 0) {
+		if((rc.x < x1) || (rc.y < y1) || (rc.x >= x2) || (rc.y >= y2))
+		    continue;
+	    } else {
+		double dx = rc.x - cx, dy = rc.y - cy;
+		if((dx * dx) + (dy * dy) > r2)
+		    continue;
+	    }
+	    action.accept(gob);
+	}
+    }
+
+    public int cells() {
+	return(used);
+    }
+}
@@ -3,6 +3,7 @@ package haven;
 import me.ender.ContainerInfo;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public enum GobTag {
     TREE, BUSH, LOG, STUMP, HERB,
@@ -57,123 +58,145 @@ public enum GobTag {
     private static final String[] VEHICLES = {"/wheelbarrow", "/plow", "/cart", "/dugout", "/rowboat", "/vehicle/snekkja", "/vehicle/knarr", "/vehicle/wagon", "/vehicle/coracle", "/horse/mare", "/horse/stallion", "/vehicle/spark"};
     
     private static final boolean DBG = false;
-    private static final Set<String> UNKNOWN = new HashSet<>();
+    
+    /* What a resource name alone decides, worked out once per name. */
+    private static class Rules {
+        final EnumSet<GobTag> tags = EnumSet.noneOf(GobTag.class);
+        boolean player, bat, drack;
+        ContainerInfo.Container container;
+    }
+    
+    private static final Map<String, Rules> RULES = new ConcurrentHashMap<>();
     
     public static Set<GobTag> tags(Gob gob) {
-        Set<GobTag> tags = new HashSet<>();
-        GameUI gui = gob.context(GameUI.class);
-        Equipory equipory = gui != null ? gui.equipory : null;
-        
         String name = gob.resid();
-        int sdt = gob.sdt();
-        if(name != null) {
-            List<String> ols = Collections.emptyList();
+        if(name == null) {
+            return EnumSet.noneOf(GobTag.class);
+        }
+        Rules rules = RULES.computeIfAbsent(name, GobTag::compile);
+        EnumSet<GobTag> tags = rules.tags.clone();
+        
+        if(rules.player) {
+            Boolean me = gob.isMe();
+            if(me != null) {
+                if(me) {
+                    tags.add(ME);
+                } else {
+                    tags.add(KinInfo.isFoe(gob) ? FOE : FRIEND);
+                }
+            }
+        }
+        if(rules.bat) {
+            GameUI gui = gob.context(GameUI.class);
+            Equipory equipory = gui != null ? gui.equipory : null;
+            if(equipory == null || !equipory.has("/batcape")) {
+                tags.add(AGGRESSIVE);
+            }
+        }
+        if(rules.drack) {
+            boolean empty = true, drying = false;
             synchronized (gob.ols) {
                 try {
-                    List<String> list = new ArrayList<>();
                     for (Gob.Overlay overlay : gob.ols) {
                         if(overlay != null && overlay.res != null) {
-                            list.add(overlay.res.get().name);
+                            empty = false;
+                            drying |= isDrying(overlay.res.get().name);
                         }
                     }
-                    ols = list;
                 } catch (Loading e) {
+                    empty = true;
+                    drying = false;
                     gob.tagsUpdated();
                 }
             }
-    
-            if(name.startsWith("gfx/terobjs/trees")) {
-                if(name.endsWith("log") || name.endsWith("oldtrunk")) {
-                    tags.add(LOG);
-                } else if(name.contains("stump")) {
-                    tags.add(STUMP);
-                } else {
-                    tags.add(TREE);
-                }
-            } else if(name.startsWith("gfx/terobjs/bushes")) {
-                tags.add(BUSH);
-            } else if(name.startsWith("gfx/terobjs/herbs/") || ofType(name, LIKE_HERB)) {
-                tags.add(HERB);
-            } else if(name.startsWith("gfx/borka/body")) {
-                tags.add(PLAYER);
-                Boolean me = gob.isMe();
-                if(me != null) {
-                    if(me) {
-                        tags.add(ME);
-                    } else {
-                        tags.add(KinInfo.isFoe(gob) ? FOE : FRIEND);
-                    }
-                }
-            } else if(name.startsWith("gfx/kritter/") || ofType(name, LIKE_CRITTER)) {
-                if(name.endsWith("/midgeswarm")) {
-                    tags.add(MIDGES);
-                } else if(ofType(name, CRITTERS)) {
-                    tags.add(ANIMAL);
-                    tags.add(CRITTER);
-                } else if(ofType(name, BIG_PARTS)) {
-                    //ignore big parts of animals like Orca
-                } else if(ofType(name, AGGRO)) {
-                    tags.add(ANIMAL);
-                    tags.add(AGGRESSIVE);
-                } else if(ofType(name, ANIMALS)) {
-                    tags.add(ANIMAL);
-                } else if(domesticated(gob, name, tags)) {
-                    tags.add(ANIMAL);
-                    tags.add(DOMESTIC);
-                } else if(DBG && !UNKNOWN.contains(name)) {
-                    UNKNOWN.add(name);
-                    gob.glob.sess.ui.message(name, GameUI.MsgType.ERROR);
-                    System.out.println(name);
-                }
-                if(name.contains("/bat")) {
-                    if(equipory == null || !equipory.has("/batcape")) {
-                        tags.add(AGGRESSIVE);
-                    }
-                }
-            } else if(name.endsWith("/dframe")) {
-                tags.add(DRACK);
-                boolean empty = ols.isEmpty();
-                boolean done = !empty && ols.stream().noneMatch(GobTag::isDrying);
-                if(empty) { tags.add(EMPTY); }
-                if(done) { tags.add(READY); }
-            } else if(name.endsWith("/gems/gemstone")) {
-                tags.add(GEM);
-            } else if(name.endsWith("/wheelbarrow") || name.endsWith("/plow")) {
-                tags.add(PUSHED);
-            }
-            if(ofType(name, VEHICLES)) {
-                tags.add(VEHICLE);
+            if(empty) { tags.add(EMPTY); }
+            if(!empty && !drying) { tags.add(READY); }
+        }
+        if(rules.container != null) {
+            int sdt = gob.sdt();
+            if(rules.container.isFull(sdt)) {
+                tags.add(FULL);
+            } else if(rules.container.isEmpty(sdt)) {
+                tags.add(EMPTY);
             }
-            
-            if(anyOf(tags, HERB, CRITTER, GEM)) {
-                tags.add(PICKUP);
+        }
+        
+        Drawable d = gob.drawable;
+        if(d != null) {
+            if(d.hasPose("/knock")) {
+                tags.add(KO);
             }
-            
-            if(anyOf(tags, DOMESTIC, HERB, TREE, BUSH)) {
-                tags.add(MENU);
+            if(d.hasPose("/dead") || d.hasPose("/waterdead")) {
+                tags.add(DEAD);
             }
+        }
+        
+        return tags;
+    }
     
-            ContainerInfo.get(name).ifPresent(container -> {
-                tags.add(CONTAINER);
-                if(container.isFull(sdt)) {
-                    tags.add(FULL);
-                } else if(container.isEmpty(sdt)) {
-                    tags.add(EMPTY);
-                }
-            });
-    
-            Drawable d = gob.drawable;
-            if(d != null) {
-                if(d.hasPose("/knock")) {
-                    tags.add(KO);
-                }
-                if(d.hasPose("/dead") || d.hasPose("/waterdead")) {
-                    tags.add(DEAD);
-                }
+    private static Rules compile(String name) {
+        Rules rules = new Rules();
+        EnumSet<GobTag> tags = rules.tags;
+        if(name.startsWith("gfx/terobjs/trees")) {
+            if(name.endsWith("log") || name.endsWith("oldtrunk")) {
+                tags.add(LOG);
+            } else if(name.contains("stump")) {
+                tags.add(STUMP);
+            } else {
+                tags.add(TREE);
             }
+        } else if(name.startsWith("gfx/terobjs/bushes")) {
+            tags.add(BUSH);
+        } else if(name.startsWith("gfx/terobjs/herbs/") || ofType(name, LIKE_HERB)) {
+            tags.add(HERB);
+        } else if(name.startsWith("gfx/borka/body")) {
+            tags.add(PLAYER);
+            rules.player = true;
+        } else if(name.startsWith("gfx/kritter/") || ofType(name, LIKE_CRITTER)) {
+            if(name.endsWith("/midgeswarm")) {
+                tags.add(MIDGES);
+            } else if(ofType(name, CRITTERS)) {
+                tags.add(ANIMAL);
+                tags.add(CRITTER);
+            } else if(ofType(name, BIG_PARTS)) {
+                //ignore big parts of animals like Orca
+            } else if(ofType(name, AGGRO)) {
+                tags.add(ANIMAL);
+                tags.add(AGGRESSIVE);
+            } else if(ofType(name, ANIMALS)) {
+                tags.add(ANIMAL);
+            } else if(domesticated(name, tags)) {
+                tags.add(ANIMAL);
+                tags.add(DOMESTIC);
+            } else if(DBG) {
+                System.out.println(name);
+            }
+            rules.bat = name.contains("/bat");
+        } else if(name.endsWith("/dframe")) {
+            tags.add(DRACK);
+            rules.drack = true;
+        } else if(name.endsWith("/gems/gemstone")) {
+            tags.add(GEM);
+        } else if(name.endsWith("/wheelbarrow") || name.endsWith("/plow")) {
+            tags.add(PUSHED);
         }
-    
-        return tags;
+        if(ofType(name, VEHICLES)) {
+            tags.add(VEHICLE);
+        }
+        
+        if(anyOf(tags, HERB, CRITTER, GEM)) {
+            tags.add(PICKUP);
+        }
+        
+        if(anyOf(tags, DOMESTIC, HERB, TREE, BUSH)) {
+            tags.add(MENU);
+        }
+        
+        rules.container = ContainerInfo.get(name).orElse(null);
+        if(rules.container != null) {
+            tags.add(CONTAINER);
+        }
+        return rules;
     }
     
     private static boolean isDrying(String ol) {
@@ -187,7 +210,7 @@ public enum GobTag {
         return false;
     }
     
-    private static boolean domesticated(Gob gob, String name, Set<GobTag> tags) {
+    private static boolean domesticated(String name, Set<GobTag> tags) {
         if(name.contains("/cattle/")) {
             tags.add(CATTLE);
             //TODO: add distinction between cow and bull
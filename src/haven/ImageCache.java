@@ -0,0 +1,145 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.util.zip.CRC32;
+import java.awt.image.*;
+import java.io.*;
+
+/* Caches decoded and UI-scaled resource images as raw pixel data, so
+ * that warm loads need neither decode the image data nor rescale
+ * it. Entries are keyed on the resource and a checksum of the
+ * encoded image, so that stale entries are never used. */
+public class ImageCache {
+    public static final Config.Variable<Boolean> enabled = Config.Variable.propb("haven.imgcache", false);
+    private static final int MAGIC = 0x48494d31;
+    private static final int RAW_NONE = 0, RAW_GL = 1, RAW_ABGR = 2;
+    private static final long MAXBYTES = 1L << 28;
+
+    public static class Decoded {
+	public final BufferedImage img, scaled;
+
+	public Decoded(BufferedImage img, BufferedImage scaled) {
+	    this.img = img;
+	    this.scaled = scaled;
+	}
+    }
+
+    public static String key(Resource res, byte[] enc) {
+	CRC32 crc = new CRC32();
+	crc.update(enc);
+	return(String.format("imgcache/%s/%d/%08x-%x@%.3f", res.name, res.ver, crc.getValue(), enc.length, UI.scale(1.0)));
+    }
+
+    private static int rawtype(BufferedImage img) {
+	WritableRaster r = img.getRaster();
+	if((r.getParent() != null) || (r.getSampleModelTranslateX() != 0) || (r.getSampleModelTranslateY() != 0))
+	    return(RAW_NONE);
+	if(img.getType() == BufferedImage.TYPE_4BYTE_ABGR)
+	    return(RAW_ABGR);
+	if(TexI.glcm.equals(img.getColorModel()) && (r.getSampleModel() instanceof PixelInterleavedSampleModel)) {
+	    PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel)r.getSampleModel();
+	    int[] offs = sm.getBandOffsets();
+	    if((sm.getPixelStride() == 4) && (sm.getScanlineStride() == img.getWidth() * 4) &&
+	       (offs.length == 4) && (offs[0] == 0) && (offs[1] == 1) && (offs[2] == 2) && (offs[3] == 3))
+		return(RAW_GL);
+	}
+	return(RAW_NONE);
+    }
+
+    private static void write(DataOutputStream out, BufferedImage img, int type) throws IOException {
+	out.writeByte(type);
+	out.writeInt(img.getWidth());
+	out.writeInt(img.getHeight());
+	out.write((byte[])img.getRaster().getDataElements(0, 0, img.getWidth(), img.getHeight(), null));
+    }
+
+    private static BufferedImage read(DataInputStream in) throws IOException {
+	int type = in.readUnsignedByte();
+	int w = in.readInt(), h = in.readInt();
+	if((w <= 0) || (h <= 0) || ((long)w * h * 4 > MAXBYTES))
+	    throw(new IOException(String.format("bad cached image size: %dx%d", w, h)));
+	byte[] data = new byte[w * h * 4];
+	in.readFully(data);
+	switch(type) {
+	case RAW_GL:
+	    return(PUtils.rasterimg(Raster.createInterleavedRaster(new DataBufferByte(data, data.length), w, h, w * 4, 4, new int[] {0, 1, 2, 3}, null)));
+	case RAW_ABGR:
+	    BufferedImage ret = new BufferedImage(w, h, BufferedImage.TYPE_4BYTE_ABGR);
+	    ret.getRaster().setDataElements(0, 0, w, h, data);
+	    return(ret);
+	default:
+	    throw(new IOException("unknown raw image type: " + type));
+	}
+    }
+
+    public static Decoded fetch(String key) {
+	if(!enabled.get() || (ResCache.global == null))
+	    return(null);
+	InputStream fp;
+	try {
+	    fp = ResCache.global.fetch(key);
+	} catch(IOException e) {
+	    return(null);
+	}
+	try(DataInputStream in = new DataInputStream(new BufferedInputStream(fp, 65536))) {
+	    if(in.readInt() != MAGIC)
+		throw(new IOException("bad cached image magic"));
+	    boolean same = in.readBoolean();
+	    BufferedImage img = read(in);
+	    BufferedImage scaled = same ? img : read(in);
+	    return(new Decoded(img, scaled));
+	} catch(Exception e) {
+	    /* Any damaged entry is a miss, and is dropped so that it
+	     * gets stored anew from the decoded image. */
+	    try {
+		ResCache.global.remove(key);
+	    } catch(IOException e2) {
+	    }
+	    return(null);
+	}
+    }
+
+    public static void store(String key, BufferedImage img, BufferedImage scaled) {
+	if(!enabled.get() || (ResCache.global == null))
+	    return;
+	int itype = rawtype(img), stype = rawtype(scaled);
+	if((itype == RAW_NONE) || (stype == RAW_NONE))
+	    return;
+	Defer.later(() -> {
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(ResCache.global.store(key), 65536))) {
+		    out.writeInt(MAGIC);
+		    out.writeBoolean(scaled == img);
+		    write(out, img, itype);
+		    if(scaled != img)
+			write(out, scaled, stype);
+		} catch(IOException e) {
+		}
+		return(null);
+	    });
+    }
+}
@@ -450,6 +450,18 @@ public class JOGLPanel extends GLCanvas implements Runnable, UIPanel, Console.Di
     }
 
     private long prevfree = 0, framealloc = 0;
+    private long prevwaitn = 0, prevwaitsum = 0;
+    private double deferlat = 0;
+    private String deferstats() {
+	Defer d = Defer.getgroup();
+	long n = d.waitn(), sum = d.waitsum();
+	if(n > prevwaitn)
+	    deferlat = (((sum - prevwaitsum) * 1e-6) / (n - prevwaitn) + (deferlat * 19)) / 20;
+	prevwaitn = n;
+	prevwaitsum = sum;
+	return(String.format("%s (%.1fms)", d.stats(), deferlat));
+    }
+
     @SuppressWarnings("deprecation")
     private void drawstats(UI ui, GOut g, GLRender buf) {
 	int y = g.sz().y - UI.scale(190), dy = FastText.h;
@@ -469,13 +481,15 @@ public class JOGLPanel extends GLCanvas implements Runnable, UIPanel, Console.Di
 	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Mapview: %s", map.stats());
 	    // FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Click: Map: %s, Obj: %s", map.clmaplist.stats(), map.clobjlist.stats());
 	}
-	if(ui.sess != null)
-	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Async: L %s, D %s", ui.sess.glob.loader.stats(), Defer.gstats());
-	else
-	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Async: D %s", Defer.gstats());
+	if(ui.sess != null) {
+	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Async: L %s, D %s", ui.sess.glob.loader.stats(), deferstats());
+	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Net: %s", ui.sess.stats());
+	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Deltas: %s", ui.sess.glob.oc.dstats);
+	} else
+	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Async: D %s", deferstats());
 	int rqd = Resource.local().qdepth() + Resource.remote().qdepth();
 	if(rqd > 0)
-	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "RQ depth: %d (%d)", rqd, Resource.local().numloaded() + Resource.remote().numloaded());
+	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "RQ depth: %d (F %d, D %d) (%d)", rqd, Resource.remote().fqdepth(), Resource.remote().dqdepth(), Resource.local().numloaded() + Resource.remote().numloaded());
 	synchronized(Debug.framestats) {
 	    for(Object line : Debug.framestats)
 		FastText.aprint(g, new Coord(10, y -= dy), 0, 1, String.valueOf(line));
@@ -28,30 +28,45 @@ package haven;
 
 import java.util.*;
 import java.util.function.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 import haven.Waitable.Waiting;
 
 public class Loader {
+    public static final Config.Variable<Integer> nthreads = Config.Variable.propi("haven.loader.threads", 4);
+    public static final int PRIO_LOW = 0, PRIO_NORM = 1, PRIO_HIGH = 2;
     private final double timeout = 5.0;
-    private final int maxthreads = 4;
-    private final Queue<Future<?>> queue = new LinkedList<>();
-    private final Map<Future<?>, Waiting> loading = new IdentityHashMap<>();
-    private final Collection<Thread> pool = new ArrayList<>();
+    private final int maxthreads = Math.max(1, nthreads.get());
+    /* Indexed by priority. */
+    private final List<Queue<Future<?>>> queues = Arrays.asList(
+	new ConcurrentLinkedQueue<>(), new ConcurrentLinkedQueue<>(), new ConcurrentLinkedQueue<>());
+    /* One permit per queued future; workers block on it rather than
+     * on a shared monitor. */
+    private final Semaphore avail = new Semaphore(0);
+    private final AtomicInteger nthr = new AtomicInteger(0);
+    private final AtomicInteger idle = new AtomicInteger(0);
     private final AtomicInteger busy = new AtomicInteger(0);
+    private final AtomicInteger nloading = new AtomicInteger(0);
+    private final AtomicLong requeues = new AtomicLong(0), coalesced = new AtomicLong(0);
 
     public class Future<T> {
 	public final Supplier<T> task;
 	private final boolean capex;
 	private final Object runmon = new Object();
+	private final AtomicBoolean queued = new AtomicBoolean(false);
+	private volatile int prio;
 	private T val;
 	private Throwable exc;
 	private Loading curload = null;
+	private Waiting wait = null;
 	private Thread running = null;
 	private boolean done = false, cancelled = false, restarted = false;
+	private final AtomicInteger nrestarts = new AtomicInteger(0), nrequeues = new AtomicInteger(0);
 
-	private Future(Supplier<T> task, boolean capex) {
+	private Future(Supplier<T> task, boolean capex, int prio) {
 	    this.task = task;
 	    this.capex = capex;
+	    this.prio = prio;
 	}
 
 	private void run() {
@@ -77,31 +92,35 @@ public class Loader {
 			    l.boostprio(1);
 			    curload = l;
 			    l.waitfor(() -> {
-				    synchronized(queue) {
-					if(loading.remove(this) != null) {
+				    boolean rq;
+				    synchronized(this) {
+					if(rq = (wait != null)) {
+					    wait = null;
 					    curload = null;
-					    queue.add(this);
-					    queue.notify();
 					}
 				    }
-				    check();
+				    if(rq) {
+					nloading.getAndDecrement();
+					requeue();
+				    }
 				},
 				wait -> {
-				    boolean ck = false;
-				    synchronized(queue) {
+				    boolean rq = false;
+				    synchronized(this) {
 					if(restarted) {
 					    curload = null;
-					    queue.add(this);
-					    queue.notify();
-					    ck = true;
 					    restarted = false;
+					    rq = true;
 					} else {
-					    if(loading.put(this, wait) != null)
+					    if(this.wait != null)
 						throw(new AssertionError());
+					    this.wait = wait;
 					}
 				    }
-				    if(ck)
-					check();
+				    if(rq)
+					requeue();
+				    else
+					nloading.getAndIncrement();
 				});
 			}
 		    } catch(Throwable exc) {
@@ -121,6 +140,25 @@ public class Loader {
 	    }
 	}
 
+	private void requeue() {
+	    nrequeues.getAndIncrement();
+	    requeues.getAndIncrement();
+	    enqueue(this);
+	}
+
+	private Waiting unwait() {
+	    Waiting wait;
+	    synchronized(this) {
+		if((wait = this.wait) != null) {
+		    this.wait = null;
+		    curload = null;
+		}
+	    }
+	    if(wait != null)
+		nloading.getAndDecrement();
+	    return(wait);
+	}
+
 	public boolean cancel() {
 	    boolean ret;
 	    synchronized(runmon) {
@@ -129,35 +167,31 @@ public class Loader {
 		    ret = !done;
 		}
 	    }
-	    Waiting wait;
-	    synchronized(queue) {
-		if((wait = loading.remove(this)) != null)
-		    curload = null;
-	    }
+	    Waiting wait = unwait();
 	    if(wait != null)
 		wait.cancel();
 	    return(ret);
 	}
 
 	public void restart() {
+	    nrestarts.getAndIncrement();
 	    Waiting wait;
-	    synchronized(queue) {
-		wait = loading.remove(this);
-		if(wait != null)
-		    curload = null;
-		else
+	    synchronized(this) {
+		wait = this.wait;
+		if(wait == null)
 		    restarted = true;
 	    }
-	    if(wait != null) {
+	    if((wait != null) && ((wait = unwait()) != null)) {
 		wait.cancel();
-		synchronized(queue) {
-		    queue.add(this);
-		    queue.notify();
-		}
-		check();
+		requeue();
 	    }
 	}
 
+	public void boostprio(int prio) {
+	    if(this.prio < prio)
+		this.prio = Math.min(prio, PRIO_HIGH);
+	}
+
 	public T get() {
 	    synchronized(this) {
 		if(done) {
@@ -180,71 +214,102 @@ public class Loader {
 	public Loading lastload() {
 	    return(curload);
 	}
+
+	public int restarts() {return(nrestarts.get());}
+	public int requeues() {return(nrequeues.get());}
+
+	public String toString() {
+	    return(String.format("#<loader-future %s, %d restarts, %d requeues>", task, nrestarts.get(), nrequeues.get()));
+	}
+    }
+
+    private Future<?> poll() {
+	for(int i = queues.size() - 1; i >= 0; i--) {
+	    Future<?> ret = queues.get(i).poll();
+	    if(ret != null)
+		return(ret);
+	}
+	return(null);
     }
 
     private void loop() {
 	try {
-	    main: while(true) {
-		Future<?> item;
-		synchronized(queue) {
-		    double start = Utils.rtime(), now = start;
-		    while(true) {
-			if(Thread.interrupted())
-			    throw(new InterruptedException());
-			if((item = queue.poll()) != null)
-			    break;
-			if((now - start) >= timeout)
-			    break main;
-			queue.wait((long)((timeout - (now - start)) * 1000) + 100);
-			now = Utils.rtime();
-		    }
+	    while(true) {
+		if(Thread.interrupted())
+		    throw(new InterruptedException());
+		idle.getAndIncrement();
+		boolean got;
+		try {
+		    got = avail.tryAcquire((long)(timeout * 1000), TimeUnit.MILLISECONDS);
+		} finally {
+		    idle.getAndDecrement();
 		}
+		if(!got)
+		    break;
+		Future<?> item = poll();
+		if(item == null)
+		    throw(new AssertionError());
+		item.queued.set(false);
 		item.run();
 	    }
 	} catch(InterruptedException e) {
 	} finally {
-	    synchronized(queue) {
-		pool.remove(Thread.currentThread());
-	    }
+	    nthr.getAndDecrement();
 	}
 	check();
     }
 
     private void check() {
-	synchronized(queue) {
-	    if((queue.size() > pool.size()) && (pool.size() < maxthreads)) {
-		Thread th = new HackThread(this::loop, "Loader thread");
-		th.setDaemon(true);
-		th.start();
-		pool.add(th);
-	    }
+	while(true) {
+	    int n = nthr.get();
+	    if((avail.availablePermits() <= idle.get()) || (n >= maxthreads))
+		return;
+	    if(nthr.compareAndSet(n, n + 1))
+		break;
 	}
+	Thread th = new HackThread(this::loop, "Loader thread");
+	th.setDaemon(true);
+	th.start();
     }
 
-    public <T> Future<T> defer(Supplier<T> task, boolean capex) {
-	Future<T> ret = new Future<T>(task, capex);
-	synchronized(queue) {
-	    queue.add(ret);
-	    queue.notify();
+    private void enqueue(Future<?> f) {
+	/* Futures woken by the same event, or restarted while
+	 * already queued, need only run once. */
+	if(!f.queued.compareAndSet(false, true)) {
+	    coalesced.getAndIncrement();
+	    return;
 	}
+	queues.get(Utils.clip(f.prio, 0, queues.size() - 1)).add(f);
+	avail.release();
 	check();
+    }
+
+    public <T> Future<T> defer(Supplier<T> task, boolean capex, int prio) {
+	Future<T> ret = new Future<T>(task, capex, prio);
+	enqueue(ret);
 	return(ret);
     }
 
+    public <T> Future<T> defer(Supplier<T> task, boolean capex) {
+	return(defer(task, capex, PRIO_NORM));
+    }
+
     public <T> Future<T> defer(Supplier<T> task) {
 	return(defer(task, true));
     }
 
-    public <T> Future<T> defer(Runnable task, T result) {
+    public <T> Future<T> defer(Runnable task, T result, int prio) {
 	return(defer(() -> {
 		    task.run();
 		    return(result);
-		}, false));
+		}, false, prio));
+    }
+
+    public <T> Future<T> defer(Runnable task, T result) {
+	return(defer(task, result, PRIO_NORM));
     }
 
     public String stats() {
-	synchronized(queue) {
-	    return(String.format("%d+%d %d/%d", queue.size(), loading.size(), busy.get(), pool.size()));
-	}
+	return(String.format("%d+%d %d/%d r%d c%d", avail.availablePermits(), nloading.get(), busy.get(), nthr.get(), requeues.get(), coalesced.get()));
     }
 }
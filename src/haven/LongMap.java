@@ -0,0 +1,108 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven;
+
+/*
+ * A map from primitive longs, kept in a single open-addressed table
+ * without any boxing or per-entry allocation. Not thread-safe.
+ */
+public class LongMap<V> {
+    private long[] keys = new long[32];
+    private Object[] vals = new Object[32];
+    private int size = 0;
+
+    private static int hash(long key) {
+	long h = key * 0x9e3779b97f4a7c15L;
+	return((int)(h ^ (h >>> 32)));
+    }
+
+    private int slot(long key) {
+	int m = keys.length - 1, s = hash(key) & m;
+	while((vals[s] != null) && (keys[s] != key))
+	    s = (s + 1) & m;
+	return(s);
+    }
+
+    private void resize(int nsz) {
+	long[] okeys = keys;
+	Object[] ovals = vals;
+	keys = new long[nsz];
+	vals = new Object[nsz];
+	for(int i = 0; i < okeys.length; i++) {
+	    if(ovals[i] == null)
+		continue;
+	    int s = slot(okeys[i]);
+	    keys[s] = okeys[i];
+	    vals[s] = ovals[i];
+	}
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+	return((V)vals[slot(key)]);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+	if(value == null)
+	    throw(new NullPointerException("value"));
+	if((size + 1) * 2 > keys.length)
+	    resize(keys.length * 2);
+	int s = slot(key);
+	V prev = (V)vals[s];
+	keys[s] = key;
+	vals[s] = value;
+	if(prev == null)
+	    size++;
+	return(prev);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+	int m = keys.length - 1, i = slot(key);
+	V ret = (V)vals[i];
+	if(ret == null)
+	    return(null);
+	vals[i] = null;
+	size--;
+	for(int j = (i + 1) & m; vals[j] != null; j = (j + 1) & m) {
+	    int h = hash(keys[j]) & m;
+	    if(((j - h) & m) >= ((j - i) & m)) {
+		keys[i] = keys[j];
+		vals[i] = vals[j];
+		vals[j] = null;
+		i = j;
+	    }
+	}
+	return(ret);
+    }
+
+    public int size() {
+	return(size);
+    }
+}
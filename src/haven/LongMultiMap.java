@@ -0,0 +1,156 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven;
+
+import java.util.*;
+
+/*
+ * A multi-map from primitive longs, like HashMultiMap, but kept in
+ * a single open-addressed table without any boxing or per-entry
+ * allocation. Not thread-safe.
+ */
+public class LongMultiMap<V> {
+    private long[] keys = new long[32];
+    private Object[] vals = new Object[32];
+    private int size = 0;
+
+    private static int hash(long key) {
+	long h = key * 0x9e3779b97f4a7c15L;
+	return((int)(h ^ (h >>> 32)));
+    }
+
+    private void resize(int nsz) {
+	long[] okeys = keys;
+	Object[] ovals = vals;
+	keys = new long[nsz];
+	vals = new Object[nsz];
+	for(int i = 0; i < okeys.length; i++) {
+	    if(ovals[i] == null)
+		continue;
+	    int s = hash(okeys[i]) & (nsz - 1);
+	    while(vals[s] != null)
+		s = (s + 1) & (nsz - 1);
+	    keys[s] = okeys[i];
+	    vals[s] = ovals[i];
+	}
+    }
+
+    public void put(long key, V value) {
+	if(value == null)
+	    throw(new NullPointerException("value"));
+	if((size + 1) * 2 > keys.length)
+	    resize(keys.length * 2);
+	int m = keys.length - 1, s = hash(key) & m;
+	while(vals[s] != null)
+	    s = (s + 1) & m;
+	keys[s] = key;
+	vals[s] = value;
+	size++;
+    }
+
+    private void delete(int i) {
+	int m = keys.length - 1;
+	vals[i] = null;
+	size--;
+	for(int j = (i + 1) & m; vals[j] != null; j = (j + 1) & m) {
+	    int h = hash(keys[j]) & m;
+	    if(((j - h) & m) >= ((j - i) & m)) {
+		keys[i] = keys[j];
+		vals[i] = vals[j];
+		vals[j] = null;
+		i = j;
+	    }
+	}
+    }
+
+    /* Like HashMultiMap.remove(), removes and returns whatever
+     * value is stored if the key has only one, or otherwise the
+     * given value if it is among them. */
+    @SuppressWarnings("unchecked")
+    public V remove(long key, V value) {
+	if(value == null)
+	    throw(new NullPointerException("value"));
+	int m = keys.length - 1, n = 0, only = -1, match = -1;
+	for(int s = hash(key) & m; vals[s] != null; s = (s + 1) & m) {
+	    if(keys[s] == key) {
+		n++;
+		only = s;
+		if((match < 0) && vals[s].equals(value))
+		    match = s;
+	    }
+	}
+	int s = (n == 1) ? only : match;
+	if(s < 0)
+	    return(null);
+	V ret = (V)vals[s];
+	delete(s);
+	return(ret);
+    }
+
+    /* Like HashMultiMap.get(), returns null if the key is
+     * ambiguous. */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+	int m = keys.length - 1;
+	Object ret = null;
+	for(int s = hash(key) & m; vals[s] != null; s = (s + 1) & m) {
+	    if(keys[s] == key) {
+		if(ret != null)
+		    return(null);
+		ret = vals[s];
+	    }
+	}
+	return((V)ret);
+    }
+
+    @SuppressWarnings("unchecked")
+    public Collection<V> getall(long key) {
+	int m = keys.length - 1;
+	Collection<V> ret = new ArrayList<>(1);
+	for(int s = hash(key) & m; vals[s] != null; s = (s + 1) & m) {
+	    if(keys[s] == key)
+		ret.add((V)vals[s]);
+	}
+	return(ret);
+    }
+
+    public int size() {
+	return(size);
+    }
+
+    /* Copies all values into dst from off, which must have room
+     * for them, and returns the number copied. */
+    public int values(Object[] dst, int off) {
+	int n = 0;
+	for(int i = 0; i < vals.length; i++) {
+	    if(vals[i] != null)
+		dst[off + n++] = vals[i];
+	}
+	return(n);
+    }
+}
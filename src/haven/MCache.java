@@ -40,6 +40,7 @@ public class MCache implements MapSource {
     public static final Coord cutsz = Coord.of(25, 25);
     public static final Coord cutn = cmaps.div(cutsz);
     public static final Coord sgridsz = new Coord(100, 100);
+    public static final Config.Variable<Boolean> parcuts = Config.Variable.propb("haven.parcuts", true);
     private final Object setmon = new Object();
     public Resource.Spec[] nsets = new Resource.Spec[16];
     @SuppressWarnings("unchecked")
@@ -287,7 +288,9 @@ public class MCache implements MapSource {
 
 	private class Cut {
 	    MapMesh mesh;
-	    Defer.Future<MapMesh> dmesh;
+	    /* Whole-grid builds share one future, indexed by dmi. */
+	    Defer.Future<MapMesh[]> dmesh;
+	    int dmi;
 	    Map<OverlayInfo, RenderTree.Node> ols = new HashMap<>();
 	    Map<OverlayInfo, RenderTree.Node> olols = new HashMap<>();
 	}
@@ -425,7 +428,7 @@ public class MCache implements MapSource {
 		    if(cut.dmesh != null) {
 			if(cut.dmesh.done() || (cut.mesh == null)) {
 			    MapMesh old = cut.mesh;
-			    cut.mesh = cut.dmesh.get();
+			    cut.mesh = cut.dmesh.get()[cut.dmi];
 			    cut.dmesh = null;
 			    cut.ols.clear();
 			    cut.olols.clear();
@@ -468,25 +471,82 @@ public class MCache implements MapSource {
 	    return(geticut(cc).olols.get(id));
 	}
 
+	public MapMesh makecut(Coord cc) {
+	    Random rnd = new Random(id);
+	    rnd.setSeed(rnd.nextInt() ^ cc.x);
+	    rnd.setSeed(rnd.nextInt() ^ cc.y);
+	    return(MapMesh.build(MCache.this, rnd, ul.add(cc.mul(cutsz)), cutsz));
+	}
+
+	/* Builds the cuts still missing from buf in parallel. Cuts
+	 * already built are kept when one of them is still loading, so
+	 * that a retry only builds what is left. */
+	public void makecuts(MapMesh[] buf) {
+	    Loading[] l = {null};
+	    Utils.parallel(buf.length, i -> {
+		    if(buf[i] == null) {
+			try {
+			    buf[i] = makecut(Coord.of(i % cutn.x, i / cutn.x));
+			} catch(Loading e) {
+			    l[0] = e;
+			}
+		    }
+		});
+	    if(l[0] != null)
+		throw(l[0]);
+	}
+
+	private boolean shared(Defer.Future<?> f) {
+	    for(Cut cut : cuts) {
+		if(cut.dmesh == f)
+		    return(true);
+	    }
+	    return(false);
+	}
+
 	private void buildcut(final Coord cc) {
 	    final Cut cut = geticut(cc);
 	    Defer.Future<?> prev = cut.dmesh;
-	    cut.dmesh = Defer.later(new Defer.Callable<MapMesh>() {
-		    public MapMesh call() {
-			Random rnd = new Random(id);
-			rnd.setSeed(rnd.nextInt() ^ cc.x);
-			rnd.setSeed(rnd.nextInt() ^ cc.y);
-			return(MapMesh.build(MCache.this, rnd, ul.add(cc.mul(cutsz)), cutsz));
+	    cut.dmesh = Defer.later(new Defer.Callable<MapMesh[]>() {
+		    public MapMesh[] call() {
+			return(new MapMesh[] {makecut(cc)});
 		    }
 
 		    public String toString() {
 			return("Building map...");
 		    }
 		});
-	    if(prev != null)
+	    cut.dmi = 0;
+	    if((prev != null) && !shared(prev))
 		prev.cancel();
 	}
 
+	/* Builds all cuts as one deferred task, split across the
+	 * work pool, instead of queueing each cut on its own. */
+	private void buildcuts() {
+	    Set<Defer.Future<?>> prev = new HashSet<>();
+	    Defer.Future<MapMesh[]> all = Defer.later(new Defer.Callable<MapMesh[]>() {
+		    final MapMesh[] buf = new MapMesh[cuts.length];
+
+		    public MapMesh[] call() {
+			makecuts(buf);
+			return(buf);
+		    }
+
+		    public String toString() {
+			return("Building map...");
+		    }
+		});
+	    for(int i = 0; i < cuts.length; i++) {
+		if(cuts[i].dmesh != null)
+		    prev.add(cuts[i].dmesh);
+		cuts[i].dmesh = all;
+		cuts[i].dmi = i;
+	    }
+	    for(Defer.Future<?> f : prev)
+		f.cancel();
+	}
+
 	public void ivneigh(Coord nc) {
 	    Coord cc = new Coord();
 	    for(cc.y = 0; cc.y < cutn.y; cc.y++) {
@@ -514,9 +574,13 @@ public class MCache implements MapSource {
 	}
 	
 	private void invalidate() {
-	    for(int y = 0; y < cutn.y; y++) {
-		for(int x = 0; x < cutn.x; x++)
-		    buildcut(Coord.of(x, y));
+	    if(parcuts.get()) {
+		buildcuts();
+	    } else {
+		for(int y = 0; y < cutn.y; y++) {
+		    for(int x = 0; x < cutn.x; x++)
+			buildcut(Coord.of(x, y));
+		}
 	    }
 	    fo = new Flavobjs[cutn.x * cutn.y];
 	    for(Coord ic : new Coord[] {
@@ -354,6 +354,7 @@ public class MainFrame extends java.awt.Frame implements Console.Directory {
 	    } catch(IOException e) {}
 	    */
 	}
+	ResManifest.prefetch(Resource.remote());
 	if(!nopreload.get()) {
 	    try {
 		InputStream pls;
@@ -27,11 +27,15 @@
 package haven;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.locks.*;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
 import java.io.*;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.awt.image.WritableRaster;
 import haven.render.*;
 import haven.Defer.Future;
@@ -273,6 +277,67 @@ public class MapFile {
 	}
     }
 
+    /* Zoom levels invalidated by grid updates are rebuilt in the
+     * background, bottom-up, and only for the zoomgrids that were
+     * actually stored, so that the map never has to build them
+     * synchronously. Updates are coalesced for a short while to
+     * avoid rebuilding the same levels over and over. */
+    private final Object zmon = new Object();
+    private Thread zbuilder = null;
+    private final Map<Segment, Map<Coord, Integer>> zdirty = new HashMap<>();
+    private long zlast = 0;
+    private class ZoomBuilder extends HackThread {
+	ZoomBuilder() {
+	    super("Mapfile zoom builder");
+	    setDaemon(true);
+	}
+
+	public void run() {
+	    try {
+		long last = System.currentTimeMillis();
+		while(true) {
+		    Map<Segment, Map<Coord, Integer>> work;
+		    long now = System.currentTimeMillis();
+		    synchronized(zmon) {
+			if(zdirty.isEmpty()) {
+			    if(now - last > 10000) {
+				zbuilder = null;
+				return;
+			    }
+			    zmon.wait(5000);
+			    continue;
+			} else if(now - zlast < 1000) {
+			    zmon.wait(1000 - (now - zlast));
+			    continue;
+			}
+			work = new HashMap<>(zdirty);
+			zdirty.clear();
+		    }
+		    for(Map.Entry<Segment, Map<Coord, Integer>> ent : work.entrySet())
+			ent.getKey().rebuild(ent.getValue());
+		    last = now;
+		}
+	    } catch(InterruptedException e) {
+	    } finally {
+		synchronized(zmon) {
+		    zbuilder = null;
+		}
+	    }
+	}
+    }
+    private void zdirty(Segment seg, Coord sc, int lvl) {
+	synchronized(zmon) {
+	    zdirty.computeIfAbsent(seg, k -> new HashMap<>()).merge(sc, lvl, Math::max);
+	    zlast = System.currentTimeMillis();
+	    if(zbuilder == null) {
+		Thread nb = new ZoomBuilder();
+		nb.start();
+		zbuilder = nb;
+	    }
+	    zmon.notifyAll();
+	}
+    }
+
     public abstract static class MarkerOld {
 	public long seg;
 	public Coord tc;
@@ -432,7 +497,7 @@ public class MapFile {
 	    return(zmap[c.x + (c.y * cmaps.x)]);
 	}
 
-	private BufferedImage tiletex(int t, BufferedImage[] texes, boolean[] cached) {
+	private Resource.Image tiletex(int t, Resource.Image[] texes, boolean[] cached) {
 	    if(!cached[t]) {
 		Resource r = null;
 		try {
@@ -445,7 +510,7 @@ public class MapFile {
 		if(r != null) {
 		    Resource.Image ir = r.layer(Resource.imgc);
 		    if(ir != null) {
-			texes[t] = ir.img;
+			texes[t] = ir;
 		    }
 		}
 		cached[t] = true;
@@ -453,38 +518,51 @@ public class MapFile {
 	    return(texes[t]);
 	}
 
+	private static void putrgb(byte[] px, int i, int rgb) {
+	    int o = i * 4;
+	    px[o + 0] = (byte)(rgb >>> 16);
+	    px[o + 1] = (byte)(rgb >>>  8);
+	    px[o + 2] = (byte)(rgb >>>  0);
+	    px[o + 3] = (byte)(rgb >>> 24);
+	}
+
+	/* Works directly on the pixel array of the output raster and
+	 * on the pixel arrays the tile images keep of themselves. */
 	public BufferedImage render(Coord off) {
-	    BufferedImage[] texes = new BufferedImage[tilesets.length];
+	    int w = cmaps.x, h = cmaps.y;
+	    Resource.Image[] texes = new Resource.Image[tilesets.length];
 	    boolean[] cached = new boolean[tilesets.length];
+	    int[] prio = new int[tilesets.length];
+	    for(int t = 0; t < tilesets.length; t++)
+		prio[t] = tilesets[t].prio;
+	    /* Pixels of each tileset used, looked up once per render. */
+	    int[][] tpx = new int[tilesets.length][];
+	    int[] tw = new int[tilesets.length], th = new int[tilesets.length];
 	    WritableRaster buf = PUtils.imgraster(cmaps);
-	    Coord c = new Coord();
-	    for(c.y = 0; c.y < cmaps.y; c.y++) {
-		for(c.x = 0; c.x < cmaps.x; c.x++) {
-		    int t = gettile(c);
-		    BufferedImage tex = tiletex(t, texes, cached);
+	    byte[] px = ((DataBufferByte)buf.getDataBuffer()).getData();
+	    for(int y = 0, i = 0; y < h; y++) {
+		for(int x = 0; x < w; x++, i++) {
+		    int t = tiles[i];
+		    if(!cached[t]) {
+			Resource.Image tex = tiletex(t, texes, cached);
+			if(tex != null) {
+			    tpx[t] = tex.argb();
+			    tw[t] = tex.img.getWidth();
+			    th[t] = tex.img.getHeight();
+			}
+		    }
 		    int rgb = 0;
-		    if(tex != null)
-			rgb = tex.getRGB(Utils.floormod(c.x + off.x, tex.getWidth()),
-					 Utils.floormod(c.y + off.y, tex.getHeight()));
-		    buf.setSample(c.x, c.y, 0, (rgb & 0x00ff0000) >>> 16);
-		    buf.setSample(c.x, c.y, 1, (rgb & 0x0000ff00) >>>  8);
-		    buf.setSample(c.x, c.y, 2, (rgb & 0x000000ff) >>>  0);
-		    buf.setSample(c.x, c.y, 3, (rgb & 0xff000000) >>> 24);
+		    if(tpx[t] != null)
+			rgb = tpx[t][(Utils.floormod(y + off.y, th[t]) * tw[t]) + Utils.floormod(x + off.x, tw[t])];
+		    putrgb(px, i, rgb);
 		}
 	    }
-	    for(c.y = 1; c.y < cmaps.y - 1; c.y++) {
-		for(c.x = 1; c.x < cmaps.x - 1; c.x++) {
-		    int p = tilesets[gettile(c)].prio;
-		    if((tilesets[gettile(c.add(-1, 0))].prio > p) ||
-		       (tilesets[gettile(c.add( 1, 0))].prio > p) ||
-		       (tilesets[gettile(c.add(0, -1))].prio > p) ||
-		       (tilesets[gettile(c.add(0,  1))].prio > p))
-		    {
-			buf.setSample(c.x, c.y, 0, 0);
-			buf.setSample(c.x, c.y, 1, 0);
-			buf.setSample(c.x, c.y, 2, 0);
-			buf.setSample(c.x, c.y, 3, 255);
-		    }
+	    for(int y = 1; y < h - 1; y++) {
+		for(int x = 1, i = (y * w) + 1; x < w - 1; x++, i++) {
+		    int p = prio[tiles[i]];
+		    if((prio[tiles[i - 1]] > p) || (prio[tiles[i + 1]] > p) ||
+		       (prio[tiles[i - w]] > p) || (prio[tiles[i + w]] > p))
+			putrgb(px, i, 0xff000000);
 		}
 	    }
 	    return(PUtils.rasterimg(buf));
@@ -505,6 +583,7 @@ public class MapFile {
 
 	public BufferedImage olrender(Coord off, String tag) {
 	    WritableRaster buf = PUtils.imgraster(cmaps);
+	    byte[] px = ((DataBufferByte)buf.getDataBuffer()).getData();
 	    for(Overlay ol : ols) {
 		MCache.ResOverlay olid = ol.olid.loadsaved().flayer(MCache.ResOverlay.class);
 		if(!olid.tags().contains(tag))
@@ -512,15 +591,13 @@ public class MapFile {
 		Color col = olcol(olid);
 		if(col == null)
 		    continue;
-		Coord c = new Coord();
-		for(c.y = 0; c.y < cmaps.y; c.y++) {
-		    for(c.x = 0; c.x < cmaps.x; c.x++) {
-			if(ol.get(c)) {
-			    buf.setSample(c.x, c.y, 0, ((col.getRed()   * col.getAlpha()) + (buf.getSample(c.x, c.y, 1) * (255 - col.getAlpha()))) / 255);
-			    buf.setSample(c.x, c.y, 1, ((col.getGreen() * col.getAlpha()) + (buf.getSample(c.x, c.y, 1) * (255 - col.getAlpha()))) / 255);
-			    buf.setSample(c.x, c.y, 2, ((col.getBlue()  * col.getAlpha()) + (buf.getSample(c.x, c.y, 2) * (255 - col.getAlpha()))) / 255);
-			    buf.setSample(c.x, c.y, 3, Math.max(buf.getSample(c.x, c.y, 3), col.getAlpha()));
-			}
+		int r = col.getRed(), g = col.getGreen(), b = col.getBlue(), a = col.getAlpha(), ia = 255 - a;
+		for(int i = 0, o = 0; i < ol.ol.length; i++, o += 4) {
+		    if(ol.ol[i]) {
+			px[o + 0] = (byte)(((r * a) + (Utils.ub(px[o + 0]) * ia)) / 255);
+			px[o + 1] = (byte)(((g * a) + (Utils.ub(px[o + 1]) * ia)) / 255);
+			px[o + 2] = (byte)(((b * a) + (Utils.ub(px[o + 2]) * ia)) / 255);
+			px[o + 3] = (byte)Math.max(Utils.ub(px[o + 3]), a);
 		    }
 		}
 	    }
@@ -849,7 +926,13 @@ public class MapFile {
 
 	private static DataGrid fetchg(MapFile file, Segment seg, int lvl, Coord sc) {
 	    if(lvl == 0) {
-		Long id = seg.map.get(sc);
+		Long id;
+		file.lock.readLock().lock();
+		try {
+		    id = seg.map.get(sc);
+		} finally {
+		    file.lock.readLock().unlock();
+		}
 		if(id == null)
 		    return(null);
 		return(Grid.load(file, id));
@@ -862,11 +945,18 @@ public class MapFile {
 	    if((lvl < 1) || ((sc.x & ((1 << lvl) - 1)) != 0) || ((sc.y & ((1 << lvl) - 1)) != 0))
 		throw(new IllegalArgumentException(String.format("%s %s", sc, lvl)));
 	    DataGrid[] lower = new DataGrid[4];
+	    IntConsumer fetchq = i -> lower[i] = fetchg(file, seg, lvl - 1, sc.add((i % 2) << (lvl - 1), (i / 2) << (lvl - 1)));
+	    if(lvl > 1) {
+		/* The quadrants are independent, and fetching them may
+		 * recursively build missing lower levels. */
+		Utils.parallel(4, fetchq);
+	    } else {
+		for(int i = 0; i < 4; i++)
+		    fetchq.accept(i);
+	    }
 	    boolean any = false;
 	    long maxmtime = 0;
 	    for(int i = 0; i < 4; i++) {
-		int x = i % 2, y = i / 2;
-		lower[i] = fetchg(file, seg, lvl - 1, sc.add(x << (lvl - 1), y << (lvl - 1)));
 		if(lower[i] != null) {
 		    any = true;
 		    maxmtime = Math.max(maxmtime, lower[i].mtime);
@@ -882,59 +972,58 @@ public class MapFile {
 	     * it's not like it really matters that much. */
 	    int nt = 0;
 	    TileInfo[] infos;
-	    Map<String, Integer> rinfos;
+	    int[][] tmaps = new int[4][];
 	    {
 		Resource.Pool pool = null;
 		String[] sets = new String[16];
-		Set<String> hassets = new HashSet<>();
-		Map<String, Integer> vers = new HashMap<>();
+		int[] vers = new int[16];
+		Map<String, Integer> rinfos = new HashMap<>();
 		for(int i = 0; i < 4; i++) {
-		    if(lower[i] == null)
-			continue;
-		    for(int tn = 0; tn < lower[i].tilesets.length; tn++) {
-			Resource.Spec set = lower[i].tilesets[tn].res;
+		    TileInfo[] lsets = lower[i].tilesets;
+		    int[] tmap = tmaps[i] = new int[lsets.length];
+		    for(int tn = 0; tn < lsets.length; tn++) {
+			Resource.Spec set = lsets[tn].res;
 			if(pool == null)
 			    pool = set.pool;
-			vers.put(set.name, Math.max(vers.getOrDefault(set.name, 0), set.ver));
-			if(!hassets.contains(set.name)) {
-			    while(nt >= sets.length)
+			Integer idx = rinfos.get(set.name);
+			if(idx == null) {
+			    if(nt >= sets.length) {
 				sets = Utils.extend(sets, sets.length * 2);
-			    sets[nt++] = set.name;
-			    hassets.add(set.name);
+				vers = Utils.extend(vers, vers.length * 2);
+			    }
+			    sets[nt] = set.name;
+			    vers[nt] = set.ver;
+			    rinfos.put(set.name, idx = nt++);
+			} else {
+			    vers[idx] = Math.max(vers[idx], set.ver);
 			}
+			tmap[tn] = idx;
 		    }
 		}
 		infos = new TileInfo[nt];
-		rinfos = new HashMap<>();
-		for(int i = 0; i < nt; i++) {
-		    infos[i] = new TileInfo(new Resource.Spec(pool, sets[i], vers.get(sets[i])), i);
-		    rinfos.put(sets[i], i);
-		}
+		for(int i = 0; i < nt; i++)
+		    infos[i] = new TileInfo(new Resource.Spec(pool, sets[i], vers[i]), i);
 	    }
 
 	    int[] tiles = new int[cmaps.x * cmaps.y];
 	    float[] zmap = new float[cmaps.x * cmaps.y];
+	    int[] tc = new int[4];
+	    byte[] tcn = new byte[4];
 	    for(int gn = 0; gn < 4; gn++) {
 		int gx = gn % 2, gy = gn / 2;
 		DataGrid cg = lower[gn];
-		if(cg == null)
-		    continue;
-		int[] tmap = new int[cg.tilesets.length];
-		Arrays.fill(tmap, (byte)-1);
-		for(int i = 0; i < cg.tilesets.length; i++)
-		    tmap[i] = rinfos.get(cg.tilesets[i].res.name);
+		int[] tmap = tmaps[gn], ctiles = cg.tiles;
+		float[] czmap = cg.zmap;
 		Coord off = cmaps.div(2).mul(gx, gy);
-		int[] tc = new int[4];
-		byte[] tcn = new byte[4];
 		for(int y = 0; y < cmaps.y / 2; y++) {
 		    for(int x = 0; x < cmaps.x / 2; x++) {
 			int nd = 0;
 			float minz = Float.POSITIVE_INFINITY;
 			for(int sy = 0; sy < 2; sy++) {
 			    for(int sx = 0; sx < 2; sx++) {
-				Coord sgc = new Coord((x * 2) + sx, (y * 2) + sy);
-				int st = tmap[cg.gettile(sgc)];
-				minz = Math.min(minz, (float)cg.getfz(sgc));
+				int si = ((x * 2) + sx) + (((y * 2) + sy) * cmaps.x);
+				int st = tmap[ctiles[si]];
+				minz = Math.min(minz, czmap[si]);
 				st: {
 				    for(int i = 0; i < nd; i++) {
 					if(tc[i] == st) {
@@ -981,14 +1070,8 @@ public class MapFile {
 		    }
 		    for(int y = 0; y < cmaps.y / 2; y++) {
 			for(int x = 0; x < cmaps.x / 2; x++) {
-			    int n = 0;
-			    for(int sy = 0; sy < 2; sy++) {
-				for(int sx = 0; sx < 2; sx++) {
-				    Coord sgc = new Coord((x * 2) + sx, (y * 2) + sy);
-				    if(ol.get(sgc))
-					n++;
-				}
-			    }
+			    int si = (x * 2) + ((y * 2) * cmaps.x);
+			    int n = (ol.ol[si] ? 1 : 0) + (ol.ol[si + 1] ? 1 : 0) + (ol.ol[si + cmaps.x] ? 1 : 0) + (ol.ol[si + cmaps.x + 1] ? 1 : 0);
 			    if(n >= 2) {
 				if(zol == null)
 				    buf.add(zol = new Overlay(ol.olid, new boolean[cmaps.x * cmaps.y]));
@@ -1235,9 +1318,32 @@ public class MapFile {
 	    }
 	}
 
-	private void include(long id, Coord sc) {
-	    map.put(sc, id);
-	    int zl = ZoomGrid.inval(MapFile.this, this.id, sc);
+	/* Rebuild the stored zoomgrids above the given grids, up to
+	 * the level invalidated for each, and then reload whatever
+	 * is currently cached of them. Each level only depends on
+	 * the one below it, so the zoomgrids within a level are
+	 * built in parallel. */
+	private void rebuild(Map<Coord, Integer> grids) {
+	    int maxlvl = 0;
+	    for(int lvl : grids.values())
+		maxlvl = Math.max(maxlvl, lvl);
+	    for(int lvl = 1; lvl <= maxlvl; lvl++) {
+		int mask = ~((1 << lvl) - 1);
+		Set<Coord> build = new HashSet<>();
+		for(Map.Entry<Coord, Integer> ent : grids.entrySet()) {
+		    if(ent.getValue() >= lvl)
+			build.add(new Coord(ent.getKey().x & mask, ent.getKey().y & mask));
+		}
+		Coord[] bc = build.toArray(new Coord[0]);
+		int clvl = lvl;
+		Utils.parallel(bc.length, i -> {
+			try {
+			    ZoomGrid.from(MapFile.this, Segment.this, clvl, bc[i]);
+			} catch(RuntimeException e) {
+			    warn(e, "could not build zoomgrid (%d, %d) in %x@%d: %s", bc[i].x, bc[i].y, id, clvl, e);
+			}
+		    });
+	    }
 	    synchronized(zcache) {
 		/* XXX? Not sure how nice it is to iterate through the
 		 * entire zcache to do invalidations, but I also don't
@@ -1246,12 +1352,21 @@ public class MapFile {
 		 * only iterate all the levels? */
 		for(Map.Entry<ZoomCoord, ByZCoord> ent : zcache.entrySet()) {
 		    ZoomCoord zc = ent.getKey();
-		    if((zc.c.x == (sc.x & ~((1 << zc.lvl) - 1))) && (zc.c.y == (sc.y & ~((1 << zc.lvl) - 1)))) {
-			ByZCoord zg = ent.getValue();
-			zg.loading = loadzgrid(zc);
+		    int mask = ~((1 << zc.lvl) - 1);
+		    for(Coord sc : grids.keySet()) {
+			if((zc.c.x == (sc.x & mask)) && (zc.c.y == (sc.y & mask))) {
+			    ent.getValue().loading = loadzgrid(zc);
+			    break;
+			}
 		    }
 		}
 	    }
+	}
+
+	private void include(long id, Coord sc) {
+	    map.put(sc, id);
+	    int zl = ZoomGrid.inval(MapFile.this, this.id, sc);
+	    zdirty(this, sc, zl);
 	    ByCoord bc;
 	    synchronized(ccache) {
 		bc = ccache.get(sc);
@@ -1627,6 +1742,47 @@ public class MapFile {
     }
 
     private static final byte[] EXPORT_SIG = "Haven Mapfile 1".getBytes(Utils.ascii);
+    /* Exported and imported grids are loaded, encoded and decoded
+     * on the work pool ahead of the stream, but never more than
+     * this many of them at once, to keep memory use bounded for
+     * arbitrarily large map files. */
+    private static final int XFER_AHEAD = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    private static <T> T xferwait(CompletableFuture<T> f) throws InterruptedException {
+	try {
+	    return(f.get());
+	} catch(ExecutionException e) {
+	    if(e.getCause() instanceof RuntimeException)
+		throw((RuntimeException)e.getCause());
+	    if(e.getCause() instanceof Error)
+		throw((Error)e.getCause());
+	    throw(new RuntimeException(e.getCause()));
+	}
+    }
+
+    private byte[] exportgrid(long segid, Coord sc, long id) {
+	Grid grid = Grid.load(this, id);
+	if(grid == null) {
+	    /* This /should/ never happen, but for unknown
+	     * reasons (crashes? reboots?) some grids can be
+	     * included but missing. It's not like they'll be
+	     * coming back by any other means, however, so
+	     * just ignore them here. */
+	    return(null);
+	}
+	MessageBuf buf = new MessageBuf();
+	buf.adduint8(4);
+	buf.addint64(id);
+	buf.addint64(segid);
+	buf.addint64(grid.mtime);
+	buf.addcoord(sc);
+	buf.addint32(cmaps.x * cmaps.y);
+	DataGrid.savetiles(buf, grid.tilesets, grid.tiles);
+	DataGrid.savez(buf, grid.zmap);
+	DataGrid.saveols(buf, grid.ols);
+	return(buf.fin());
+    }
+
     public void export(Message out, ExportFilter filter, ExportStatus prog) throws InterruptedException {
 	if(prog == null) prog = new ExportStatus() {};
 	out.addbytes(EXPORT_SIG);
@@ -1649,32 +1805,26 @@ public class MapFile {
 		lock.readLock().unlock();
 	    }
 	    int ngrid = 0;
-	    for(Pair<Coord, Long> gd : gridbuf) {
-		prog.grid(nseg, segbuf.size(), ngrid++, gridbuf.size());
-		Grid grid = Grid.load(this, gd.b);
-		if(grid == null) {
-		    /* This /should/ never happen, but for unknown
-		     * reasons (crashes? reboots?) some grids can be
-		     * included but missing. It's not like they'll be
-		     * coming back by any other means, however, so
-		     * just ignore them here. */
-		    continue;
+	    Iterator<Pair<Coord, Long>> gi = gridbuf.iterator();
+	    Deque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+	    try {
+		while(gi.hasNext() || !pending.isEmpty()) {
+		    while(gi.hasNext() && (pending.size() < XFER_AHEAD)) {
+			Pair<Coord, Long> gd = gi.next();
+			pending.add(CompletableFuture.supplyAsync(() -> exportgrid(seg.id, gd.a, gd.b), Utils.workpool()));
+		    }
+		    prog.grid(nseg, segbuf.size(), ngrid++, gridbuf.size());
+		    byte[] od = xferwait(pending.remove());
+		    if(od != null) {
+			zout.addstring("grid");
+			zout.addint32(od.length);
+			zout.addbytes(od);
+		    }
+		    Utils.checkirq();
 		}
-		MessageBuf buf = new MessageBuf();
-		buf.adduint8(4);
-		buf.addint64(gd.b);
-		buf.addint64(seg.id);
-		buf.addint64(grid.mtime);
-		buf.addcoord(gd.a);
-		buf.addint32(cmaps.x * cmaps.y);
-		DataGrid.savetiles(buf, grid.tilesets, grid.tiles);
-		DataGrid.savez(buf, grid.zmap);
-		DataGrid.saveols(buf, grid.ols);
-		byte[] od = buf.fin();
-		zout.addstring("grid");
-		zout.addint32(od.length);
-		zout.addbytes(od);
-		Utils.checkirq();
+	    } finally {
+		for(CompletableFuture<byte[]> f : pending)
+		    f.cancel(false);
 	    }
 	    nseg++;
 	}
@@ -1824,34 +1974,52 @@ public class MapFile {
 	    return(chseg(ret));
 	}
 
-	void importgrid(Message data) {
-	    ImportedGrid grid = new ImportedGrid(data);
+	void importgrid(ImportedGrid grid) {
 	    ImportedSegment seg = segs.get(grid.segid);
 	    if(seg == null) {
 		segs.put(grid.segid, seg = new ImportedSegment());
 	    }
-	    GridInfo info;
-	    lock.readLock().lock();
-	    try {
-		info = gridinfo.get(grid.gid);
-	    } finally {
-		lock.readLock().unlock();
-	    }
-	    if(info != null) {
-		Coord off = seg.offs.get(info.seg);
-		if(off == null) {
-		    seg.offs.put(info.seg, info.sc.sub(grid.sc));
-		} else {
-		    if(!off.equals(info.sc.sub(grid.sc)))
-			throw(new RuntimeException("Inconsistent grid locations detected"));
+	    Grid rgrid = null;
+	    byte[] enc = null;
+	    while(true) {
+		GridInfo info;
+		lock.readLock().lock();
+		try {
+		    info = gridinfo.get(grid.gid);
+		} finally {
+		    lock.readLock().unlock();
 		}
-	    }
-	    Segment rseg;
-	    if(filter.includegrid(grid, info != null)) {
+		if(info != null) {
+		    Coord off = seg.offs.get(info.seg);
+		    if(off == null) {
+			seg.offs.put(info.seg, info.sc.sub(grid.sc));
+		    } else {
+			if(!off.equals(info.sc.sub(grid.sc)))
+			    throw(new RuntimeException("Inconsistent grid locations detected"));
+		    }
+		}
+		if(!filter.includegrid(grid, info != null))
+		    return;
+		/* Encode the grid data before taking the lock, so that
+		 * importing does not hold up normal map updates. */
+		if(enc == null) {
+		    rgrid = grid.togrid();
+		    MessageBuf buf = new MessageBuf();
+		    rgrid.save(buf);
+		    enc = buf.fin();
+		}
+		Segment rseg;
 		lock.writeLock().lock();
 		try {
-		    Grid rgrid = grid.togrid();
-		    rgrid.save(MapFile.this);
+		    /* Decide anew if a live update got to the grid
+		     * in the meantime. */
+		    if(gridinfo.get(grid.gid) != info)
+			continue;
+		    try(OutputStream fp = sstore("grid-%x", rgrid.id)) {
+			fp.write(enc);
+		    } catch(IOException e) {
+			throw(new StreamMessage.IOError(e));
+		    }
 		    if(seg.noff == null) {
 			if(info == null) {
 			    rseg = chseg(new Segment(seg.nseg = grid.gid));
@@ -1888,6 +2056,7 @@ public class MapFile {
 		} finally {
 		    lock.writeLock().unlock();
 		}
+		return;
 	    }
 	}
 
@@ -1948,40 +2117,62 @@ public class MapFile {
 	    }
 	}
 
+	Runnable guarded(String ctx, Runnable task) {
+	    return(() -> {
+		    try {
+			task.run();
+		    } catch(RuntimeException exc) {
+			filter.handleerror(exc, ctx);
+		    }
+		});
+	}
+
+	/* Decoding of grids happens ahead on the work pool, but
+	 * everything is applied in stream order. */
+	CompletableFuture<Runnable> record(String type, byte[] raw) {
+	    if(type.equals("grid")) {
+		return(CompletableFuture.supplyAsync(() -> {
+			    ImportedGrid grid;
+			    try {
+				grid = new ImportedGrid(new MessageBuf(raw));
+			    } catch(RuntimeException exc) {
+				return(() -> filter.handleerror(exc, "grid"));
+			    }
+			    return(guarded("grid", () -> importgrid(grid)));
+			}, Utils.workpool()));
+	    } else if(type.equals("mark")) {
+		return(CompletableFuture.completedFuture(guarded("mark", () -> importmark(new MessageBuf(raw)))));
+	    } else if(type.equals("custmark")) {
+		return(CompletableFuture.completedFuture(guarded("custmark", () -> importcmark(new MessageBuf(raw)))));
+	    }
+	    return(null);
+	}
+
 	void reimport(Message data) throws InterruptedException {
 	    if(!Arrays.equals(EXPORT_SIG, data.bytes(EXPORT_SIG.length)))
 		throw(new Message.FormatError("Invalid map file format"));
 	    data = new ZMessage(data);
+	    Deque<CompletableFuture<Runnable>> pending = new ArrayDeque<>();
 	    try {
-		while(!data.eom()) {
-		    String type = data.string();
-		    int len = data.int32();
-		    Message lay = new LimitMessage(data, len);
-		    if(type.equals("grid")) {
-			try {
-			    importgrid(lay);
-			} catch(RuntimeException exc) {
-			    filter.handleerror(exc, "grid");
-			}
-		    } else if(type.equals("mark")) {
-			try {
-			    importmark(lay);
-			} catch(RuntimeException exc) {
-			    filter.handleerror(exc, "mark");
-			}
-		    } else if(type.equals("custmark")) {
-			try {
-			    importcmark(lay);
-			} catch(RuntimeException exc) {
-			    filter.handleerror(exc, "custmark");
-			}
+		while(true) {
+		    while(!data.eom() && (pending.size() < XFER_AHEAD)) {
+			String type = data.string();
+			int len = data.int32();
+			CompletableFuture<Runnable> rec = record(type, data.bytes(len));
+			if(rec != null)
+			    pending.add(rec);
 		    }
-		    lay.skip();
+		    if(pending.isEmpty())
+			break;
+		    xferwait(pending.remove()).run();
 		    Utils.checkirq();
 		}
 	    } catch(InterruptedException e) {
 		flush();
 		throw(e);
+	    } finally {
+		for(CompletableFuture<Runnable> f : pending)
+		    f.cancel(false);
 	    }
 	    flush();
 	}
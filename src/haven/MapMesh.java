@@ -44,6 +44,8 @@ public class MapMesh implements RenderTree.Node, Disposable {
     private Map<DataID, Object> data = new LinkedHashMap<DataID, Object>();
     private List<RenderTree.Node> extras = new ArrayList<RenderTree.Node>();
     private List<Disposable> dparts = new ArrayList<Disposable>();
+    private Plan plan = null;
+    public static final Config.Variable<Boolean> planned = Config.Variable.propb("haven.meshplan", true);
 
     public interface DataID<T> {
 	public T make(MapMesh m);
@@ -113,7 +115,8 @@ public class MapMesh implements RenderTree.Node, Disposable {
 	public MapSurface() {
 	    for(int y = vs.ul.y; y < vs.br.y; y++) {
 		for(int x = vs.ul.x; x < vs.br.x; x++) {
-		    surf[vs.o(x, y)] = new Vertex(x * (float)tilesz.x, y * -(float)tilesz.y, (float)map.getfz(ul.add(x, y)));
+		    float z = (plan != null) ? plan.z(x, y) : (float)map.getfz(ul.add(x, y));
+		    surf[vs.o(x, y)] = new Vertex(x * (float)tilesz.x, y * -(float)tilesz.y, z);
 		}
 	    }
 	    for(int y = ts.ul.y; y < ts.br.y; y++) {
@@ -195,6 +198,27 @@ public class MapMesh implements RenderTree.Node, Disposable {
 	return(ret);
     }
 
+    /* The seeds the tiles of a cut are built with, in the order the
+     * build visits them, each tile's drawn from the one before it. */
+    private long[] seeds(int n) {
+	long[] ret = new long[n];
+	Random chain = new Random();
+	long s = this.rnd;
+	for(int i = 0; i < n; i++) {
+	    ret[i] = s;
+	    chain.setSeed(s);
+	    s = chain.nextLong();
+	}
+	return(ret);
+    }
+
+    /* A tile gets its generator after it has drawn the seed of the
+     * next one, as it always has. */
+    private static void tilernd(Random rnd, long seed) {
+	rnd.setSeed(seed);
+	rnd.nextLong();
+    }
+
     public static Random grnd(Coord c) {
 	Random ret = new Random(1192414289);
 	ret.setSeed(ret.nextInt() + c.x);
@@ -241,6 +265,111 @@ public class MapMesh implements RenderTree.Node, Disposable {
 	}
     }
 
+    /*
+     * The map data a cut is built from, copied out of the grids a
+     * row at a time, along with the transitions of every tile, so
+     * that laying out the mesh need not look up a grid for every
+     * tile and neighbor it visits. Cuts are small enough, and many
+     * enough are built at once, that splitting one up further does
+     * not pay for itself.
+     */
+    private static class Plan {
+	final Coord ul, sz;
+	final int tw, zw;
+	final int[] tiles;
+	final float[] z;
+	final int[] troff, trans;
+
+	Plan(MCache map, Coord ul, Coord sz) {
+	    this.ul = ul;
+	    this.sz = sz;
+	    this.tw = sz.x + 2;
+	    this.zw = sz.x + 3;
+	    this.tiles = new int[tw * (sz.y + 2)];
+	    this.z = new float[zw * (sz.y + 3)];
+	    for(int y = -1; y < sz.y + 2; y++)
+		fillrow(map, y);
+	    this.troff = new int[(sz.x * sz.y) + 1];
+	    this.trans = findtrans();
+	    for(int i = 0; i < sz.x * sz.y; i++)
+		troff[i + 1] += troff[i];
+	}
+
+	private void fillrow(MCache map, int y) {
+	    int gy = ul.y + y, zo = (y + 1) * zw, to = (y + 1) * tw;
+	    boolean trow = y <= sz.y;
+	    for(int x = -1; x < sz.x + 2;) {
+		MCache.Grid g = map.getgridt(Coord.of(ul.x + x, gy));
+		int gx = ul.x + x - g.ul.x, go = gx + ((gy - g.ul.y) * MCache.cmaps.x);
+		for(int e = Math.min(x + MCache.cmaps.x - gx, sz.x + 2); x < e; x++, go++) {
+		    z[zo + x + 1] = g.z[go];
+		    if(trow && (x <= sz.x))
+			tiles[to + x + 1] = g.tiles[go];
+		}
+	    }
+	}
+
+	int tile(int x, int y) {
+	    return(tiles[(x + 1) + ((y + 1) * tw)]);
+	}
+
+	float z(int x, int y) {
+	    return(z[(x + 1) + ((y + 1) * zw)]);
+	}
+
+	private static final int[] bx = {0, 1, 2, 1}, by = {1, 0, 1, 2};
+	private static final int[] cx = {0, 2, 2, 0}, cy = {0, 0, 2, 2};
+	private int[] findtrans() {
+	    int[] buf = new int[16];
+	    int n = 0;
+	    int tr[][] = new int[3][3];
+	    for(int y = 0; y < sz.y; y++) {
+		for(int x = 0; x < sz.x; x++) {
+		    int max = -1, n0 = n;
+		    for(int ty = -1; ty <= 1; ty++) {
+			for(int tx = -1; tx <= 1; tx++) {
+			    int tn = tile(x + tx, y + ty);
+			    tr[tx + 1][ty + 1] = tn;
+			    if(((tx != 0) || (ty != 0)) && (tn > max))
+				max = tn;
+			}
+		    }
+		    for(int i = max; i >= 0; i--) {
+			int bm = 0, cm = 0;
+			for(int o = 0; o < 4; o++) {
+			    if(tr[bx[o]][by[o]] == i)
+				bm |= 1 << o;
+			}
+			for(int o = 0; o < 4; o++) {
+			    if((bm & ((1 << o) | (1 << ((o + 1) % 4)))) != 0)
+				continue;
+			    if(tr[cx[o]][cy[o]] == i)
+				cm |= 1 << o;
+			}
+			if((bm != 0) || (cm != 0)) {
+			    if(n >= buf.length)
+				buf = Utils.extend(buf, buf.length * 2);
+			    buf[n++] = (i << 8) | (bm << 4) | cm;
+			}
+		    }
+		    troff[x + (y * sz.x) + 1] = n - n0;
+		}
+	    }
+	    return(Utils.extend(buf, n));
+	}
+
+	void dotrans(MapMesh m, Random rnd, Tiler ground, Coord lc, Coord gc) {
+	    int ti = lc.x + (lc.y * sz.x);
+	    for(int o = troff[ti]; o < troff[ti + 1]; o++) {
+		int i = trans[o] >> 8;
+		Tiler t = m.map.tiler(i);
+		if(t == null)
+		    continue;
+		t.trans(m, rnd, ground, lc, gc, 255 - i, (trans[o] >> 4) & 15, trans[o] & 15);
+	    }
+	}
+    }
+
     public static class Model extends MeshBuf implements ConsHooks {
 	public final MapMesh m;
 	public final NodeWrap mat;
@@ -287,7 +416,53 @@ public class MapMesh implements RenderTree.Node, Disposable {
 	}
     }
 
+    private static MapMesh buildplanned(MCache mc, Random rnd, Coord ul, Coord sz) {
+	MapMesh m = new MapMesh(mc, ul, sz, rnd);
+	Plan p = m.plan = new Plan(mc, ul, sz);
+	long[] seeds = m.seeds((sz.x * sz.y * 2) + 1);
+	Coord c = new Coord();
+	int k = 0;
+	rnd = new Random();
+
+	for(c.y = 0; c.y < sz.y; c.y++) {
+	    for(c.x = 0; c.x < sz.x; c.x++) {
+		tilernd(rnd, seeds[k++]);
+		mc.tiler(p.tile(c.x, c.y)).model(m, rnd, c, c.add(ul));
+	    }
+	}
+	for(Object obj : m.data.values()) {
+	    if(obj instanceof ConsHooks)
+		((ConsHooks)obj).sfin();
+	}
+	for(c.y = 0; c.y < sz.y; c.y++) {
+	    for(c.x = 0; c.x < sz.x; c.x++) {
+		Coord gc = c.add(ul);
+		Tiler ground = mc.tiler(p.tile(c.x, c.y));
+		tilernd(rnd, seeds[k++]);
+		ground.lay(m, rnd, c, gc);
+		p.dotrans(m, rnd, ground, c, gc);
+	    }
+	}
+	for(Object obj : m.data.values()) {
+	    if(obj instanceof ConsHooks)
+		((ConsHooks)obj).calcnrm();
+	}
+	rnd.setSeed(seeds[k]);
+	for(Object obj : m.data.values()) {
+	    if(obj instanceof ConsHooks)
+		((ConsHooks)obj).postcalcnrm(rnd);
+	}
+
+	m.consflat();
+	m.plan = null;
+
+	m.clean();
+	return(m);
+    }
+
     public static MapMesh build(MCache mc, Random rnd, Coord ul, Coord sz) {
+	if(planned.get())
+	    return(buildplanned(mc, rnd, ul, sz));
 	MapMesh m = new MapMesh(mc, ul, sz, rnd);
 	Coord c = new Coord();
 	rnd = m.rnd();
@@ -672,7 +847,7 @@ public class MapMesh implements RenderTree.Node, Disposable {
 	for(c.y = 0; c.y < sz.y; c.y++) {
 	    for(c.x = 0; c.x < sz.x; c.x++) {
 		Coord gc = c.add(ul);
-		Tiler t = map.tiler(map.gettile(gc));
+		Tiler t = map.tiler((plan != null) ? plan.tile(c.x, c.y) : map.gettile(gc));
 		t.lay(this, c, gc, parts.computeIfAbsent(t.clickstate(), k -> new Buf(k)), true);
 	    }
 	}
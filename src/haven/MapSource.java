@@ -53,52 +53,61 @@ public interface MapSource {
 
     public static BufferedImage drawmap(MapSource m, Area a) {
 	Coord sz = a.sz();
+	int w = sz.x, h = sz.y, bw = w + 2;
 	BufferedImage[] texes = new BufferedImage[256];
 	BufferedImage buf = TexI.mkbuf(sz);
-	Coord c = new Coord();
-	for(c.y = 0; c.y < sz.y; c.y++) {
-	    for(c.x = 0; c.x < sz.x; c.x++) {
-		int t = m.gettile(a.ul.add(c));
-		if(t < 0) {
-		    buf.setRGB(c.x, c.y, 0);
+	/* Tile IDs of the area and its immediate surroundings, except
+	 * for the corners, which are never needed. */
+	int[] tiles = new int[bw * (h + 2)];
+	Coord tc = new Coord();
+	for(int y = -1; y <= h; y++) {
+	    for(int x = -1; x <= w; x++) {
+		if(((x < 0) || (x >= w)) && ((y < 0) || (y >= h)))
+		    continue;
+		tc.x = a.ul.x + x; tc.y = a.ul.y + y;
+		tiles[(x + 1) + ((y + 1) * bw)] = m.gettile(tc);
+	    }
+	}
+	int[] px = new int[w * h];
+	for(int y = 0, i = 0; y < h; y++) {
+	    for(int x = 0; x < w; x++, i++) {
+		int t = tiles[(x + 1) + ((y + 1) * bw)];
+		if(t < 0)
 		    continue;
-		}
 		BufferedImage tex = tileimg(m, texes, t);
-		int rgb = 0;
 		if(tex != null)
-		    rgb = tex.getRGB(Utils.floormod(c.x + a.ul.x, tex.getWidth()),
-				     Utils.floormod(c.y + a.ul.y, tex.getHeight()));
-		buf.setRGB(c.x, c.y, rgb);
+		    px[i] = tex.getRGB(Utils.floormod(x + a.ul.x, tex.getWidth()),
+				       Utils.floormod(y + a.ul.y, tex.getHeight()));
 	    }
 	}
-	for(c.y = 1; c.y < sz.y - 1; c.y++) {
-	    for(c.x = 1; c.x < sz.x - 1; c.x++) {
-		int t = m.gettile(a.ul.add(c));
+	for(int y = 1; y < h - 1; y++) {
+	    for(int x = 1; x < w - 1; x++) {
+		int t = tiles[(x + 1) + ((y + 1) * bw)];
 		if(t < 0)
 		    continue;
 		Tiler tl = m.tiler(t);
 		if(tl instanceof haven.resutil.Ridges.RidgeTile) {
-		    if(haven.resutil.Ridges.brokenp(m, a.ul.add(c))) {
-			for(int y = c.y - 1; y <= c.y + 1; y++) {
-			    for(int x = c.x - 1; x <= c.x + 1; x++) {
-				Color cc = new Color(buf.getRGB(x, y));
-				buf.setRGB(x, y, Utils.blendcol(cc, Color.BLACK, ((x == c.x) && (y == c.y))?1:0.1).getRGB());
+		    if(haven.resutil.Ridges.brokenp(m, a.ul.add(x, y))) {
+			for(int by = y - 1; by <= y + 1; by++) {
+			    for(int bx = x - 1; bx <= x + 1; bx++) {
+				Color cc = new Color(px[bx + (by * w)]);
+				px[bx + (by * w)] = Utils.blendcol(cc, Color.BLACK, ((bx == x) && (by == y))?1:0.1).getRGB();
 			    }
 			}
 		    }
 		}
 	    }
 	}
-	for(c.y = 0; c.y < sz.y; c.y++) {
-	    for(c.x = 0; c.x < sz.x; c.x++) {
-		int t = m.gettile(a.ul.add(c));
-		if((m.gettile(a.ul.add(c).add(-1, 0)) > t) ||
-		   (m.gettile(a.ul.add(c).add( 1, 0)) > t) ||
-		   (m.gettile(a.ul.add(c).add(0, -1)) > t) ||
-		   (m.gettile(a.ul.add(c).add(0,  1)) > t))
-		    buf.setRGB(c.x, c.y, Color.BLACK.getRGB());
+	int black = Color.BLACK.getRGB();
+	for(int y = 0, i = 0; y < h; y++) {
+	    for(int x = 0; x < w; x++, i++) {
+		int o = (x + 1) + ((y + 1) * bw);
+		int t = tiles[o];
+		if((tiles[o - 1] > t) || (tiles[o + 1] > t) || (tiles[o - bw] > t) || (tiles[o + bw] > t))
+		    px[i] = black;
 	    }
 	}
+	buf.setRGB(0, 0, w, h, px, 0, w);
 	return(buf);
     }
 }
@@ -735,6 +735,12 @@ public class MapView extends PView implements DTarget, Console.Directory {
 	final Map<Gob, RenderTree.Slot> current = new HashMap<>();
 	RenderTree.Slot slot;
 
+	/* The player's own gob is added ahead of everything else. */
+	private Loader.Future<?> defadd(Gob ob) {
+	    int prio = (ob.id == plgob) ? Loader.PRIO_HIGH : Loader.PRIO_NORM;
+	    return(glob.loader.defer(() -> addgob(ob), null, prio));
+	}
+
 	private void addgob(Gob ob) {
 	    RenderTree.Slot slot = this.slot;
 	    if(slot == null)
@@ -768,7 +774,7 @@ public class MapView extends PView implements DTarget, Console.Directory {
 		this.slot = slot;
 		synchronized(oc) {
 		    for(Gob ob : oc)
-			adding.put(ob, glob.loader.defer(() -> addgob(ob), null));
+			adding.put(ob, defadd(ob));
 		    oc.callback(this);
 		}
 	    }
@@ -792,7 +798,7 @@ public class MapView extends PView implements DTarget, Console.Directory {
 	    synchronized(this) {
 		if(current.containsKey(ob))
 		    throw(new RuntimeException());
-		adding.put(ob, glob.loader.defer(() -> addgob(ob), null));
+		adding.put(ob, defadd(ob));
 	    }
 	}
 
@@ -2049,7 +2055,7 @@ public class MapView extends PView implements DTarget, Console.Directory {
 			ret.place();
 			return(ret);
 		    }
-		});
+		}, true, Loader.PRIO_HIGH);
 	} else if(msg == "unplace") {
 	    Loader.Future<Plob> placing = this.placing;
 	    if(placing != null) {
@@ -33,11 +33,13 @@ import java.nio.*;
 
 public class MeshBuf {
     public final Collection<Vertex> v = new ArrayList<Vertex>();
-    public final Collection<Face> f = new ArrayList<Face>();
     private VertexBuf vbuf = null;
     private int nextid = 0;
     private Layer<?>[] layers = new Layer<?>[0];
     private LayerID<?>[] lids = new LayerID<?>[0];
+    /* Faces are kept only as the indices of their vertices. */
+    private int[] fv = new int[48];
+    private int nf = 0;
 
     public abstract class Layer<T> {
 	public final int idx;
@@ -47,22 +49,50 @@ public class MeshBuf {
 	    layers = Utils.extend(layers, nextid);
 	    lids = Utils.extend(lids, nextid);
 	    layers[idx] = this;
-	    for(Vertex o : v)
-		o.attrs = Utils.extend(o.attrs, nextid);
 	}
 
-	public void set(Vertex v, T data) {
-	    v.attrs[idx] = data;
+	public abstract void set(Vertex v, T data);
+	public abstract T get(Vertex v);
+
+	/* Returns null if no vertex has had its data set. */
+	public abstract VertexBuf.AttribData build(int nv);
+
+	public void copy(VertexBuf src, Vertex[] vmap, int off) {}
+    }
+
+    /* Per-vertex data kept directly as floats, nc to a vertex, so
+     * that it needs neither boxing nor copying into the vertex
+     * buffer. Vertices whose data is never set get zeroes. */
+    public abstract class FloatLayer<T> extends Layer<T> {
+	public final int nc;
+	private float[] data = new float[0];
+	private boolean any = false;
+
+	public FloatLayer(int nc) {
+	    this.nc = nc;
 	}
 
-	@SuppressWarnings("unchecked")
-	public T get(Vertex v) {
-	    return((T)v.attrs[idx]);
+	protected float[] data(Vertex v) {
+	    int e = (v.idx + 1) * nc;
+	    if(e > data.length)
+		data = Utils.extend(data, Math.max(data.length * 2, e));
+	    any = true;
+	    return(data);
 	}
 
-	public abstract VertexBuf.AttribData build(Collection<T> in);
+	protected float get(Vertex v, int c) {
+	    int o = (v.idx * nc) + c;
+	    return((o < data.length) ? data[o] : 0);
+	}
 
-	public void copy(VertexBuf src, Vertex[] vmap, int off) {}
+	protected FloatBuffer fbuf(int nv) {
+	    if(!any)
+		return(null);
+	    FloatBuffer ret = Utils.wfbuf(nv * nc);
+	    ret.put(data, 0, Math.min(data.length, nv * nc));
+	    ret.position(nv * nc);
+	    return(ret);
+	}
     }
 
     public static abstract class LayerID<L> {
@@ -87,13 +117,22 @@ public class MeshBuf {
 	}
     }
 
-    public class Tex extends Layer<Coord3f> {
-	public VertexBuf.TexelData build(Collection<Coord3f> in) {
-	    FloatBuffer data = Utils.wfbuf(in.size() * 2);
-	    for(Coord3f c : in) {
-		data.put(c.x); data.put(c.y);
-	    }
-	    return(new VertexBuf.TexelData(data));
+    public class Tex extends FloatLayer<Coord3f> {
+	public Tex() {super(2);}
+
+	public void set(Vertex v, Coord3f c) {
+	    float[] d = data(v);
+	    int o = v.idx * 2;
+	    d[o] = c.x; d[o + 1] = c.y;
+	}
+
+	public Coord3f get(Vertex v) {
+	    return(new Coord3f(get(v, 0), get(v, 1), 0));
+	}
+
+	public VertexBuf.TexelData build(int nv) {
+	    FloatBuffer data = fbuf(nv);
+	    return((data == null) ? null : new VertexBuf.TexelData(data));
 	}
 
 	public void copy(VertexBuf buf, Vertex[] vmap, int off) {
@@ -108,14 +147,23 @@ public class MeshBuf {
     }
     public static final LayerID<Tex> tex = new CLayerID<Tex>(Tex.class);
 
-    public class Col extends Layer<Color> {
-	public VertexBuf.ColorData build(Collection<Color> in) {
-	    FloatBuffer data = Utils.wfbuf(in.size() * 4);
-	    for(Color c : in) {
-		data.put(c.getRed() / 255.0f);  data.put(c.getGreen() / 255.0f);
-		data.put(c.getBlue() / 255.0f); data.put(c.getAlpha() / 255.0f);
-	    }
-	    return(new VertexBuf.ColorData(data));
+    public class Col extends FloatLayer<Color> {
+	public Col() {super(4);}
+
+	public void set(Vertex v, Color c) {
+	    float[] d = data(v);
+	    int o = v.idx * 4;
+	    d[o + 0] = c.getRed() / 255.0f;  d[o + 1] = c.getGreen() / 255.0f;
+	    d[o + 2] = c.getBlue() / 255.0f; d[o + 3] = c.getAlpha() / 255.0f;
+	}
+
+	public Color get(Vertex v) {
+	    return(new Color(get(v, 0), get(v, 1), get(v, 2), get(v, 3)));
+	}
+
+	public VertexBuf.ColorData build(int nv) {
+	    FloatBuffer data = fbuf(nv);
+	    return((data == null) ? null : new VertexBuf.ColorData(data));
 	}
     }
     public static final LayerID<Col> col = new CLayerID<Col>(Col.class);
@@ -126,55 +174,68 @@ public class MeshBuf {
 	}
     }
 
-    public abstract class AttribLayer<T> extends Layer<T> {
+    public abstract class AttribLayer<T> extends FloatLayer<T> {
 	public final Attribute attrib;
 
-	public AttribLayer(Attribute attrib) {
+	public AttribLayer(Attribute attrib, int nc) {
+	    super(nc);
 	    this.attrib = attrib;
 	}
+
+	public AttribData build(int nv) {
+	    FloatBuffer data = fbuf(nv);
+	    return((data == null) ? null : new AttribData(attrib, nc, data));
+	}
     }
 
     public class Vec1Layer extends AttribLayer<Float> {
-	public Vec1Layer(Attribute attrib) {super(attrib);}
+	public Vec1Layer(Attribute attrib) {super(attrib, 1);}
+
+	public void set(Vertex v, Float d) {
+	    data(v)[v.idx] = d;
+	}
 
-	public AttribData build(Collection<Float> in) {
-	    FloatBuffer data = Utils.wfbuf(in.size());
-	    for(Float d : in)
-		data.put(d);
-	    return(new AttribData(attrib, 1, data));
+	public Float get(Vertex v) {
+	    return(get(v, 0));
 	}
     }
     public class Vec2Layer extends AttribLayer<Coord3f> {
-	public Vec2Layer(Attribute attrib) {super(attrib);}
+	public Vec2Layer(Attribute attrib) {super(attrib, 2);}
 
-	public AttribData build(Collection<Coord3f> in) {
-	    FloatBuffer data = Utils.wfbuf(in.size() * 2);
-	    for(Coord3f d : in) {
-		data.put(d.x); data.put(d.y);
-	    }
-	    return(new AttribData(attrib, 2, data));
+	public void set(Vertex v, Coord3f c) {
+	    float[] d = data(v);
+	    int o = v.idx * 2;
+	    d[o] = c.x; d[o + 1] = c.y;
+	}
+
+	public Coord3f get(Vertex v) {
+	    return(new Coord3f(get(v, 0), get(v, 1), 0));
 	}
     }
     public class Vec3Layer extends AttribLayer<Coord3f> {
-	public Vec3Layer(Attribute attrib) {super(attrib);}
+	public Vec3Layer(Attribute attrib) {super(attrib, 3);}
 
-	public AttribData build(Collection<Coord3f> in) {
-	    FloatBuffer data = Utils.wfbuf(in.size() * 3);
-	    for(Coord3f d : in) {
-		data.put(d.x); data.put(d.y); data.put(d.z);
-	    }
-	    return(new AttribData(attrib, 3, data));
+	public void set(Vertex v, Coord3f c) {
+	    float[] d = data(v);
+	    int o = v.idx * 3;
+	    d[o] = c.x; d[o + 1] = c.y; d[o + 2] = c.z;
+	}
+
+	public Coord3f get(Vertex v) {
+	    return(new Coord3f(get(v, 0), get(v, 1), get(v, 2)));
 	}
     }
     public class Vec4Layer extends AttribLayer<float[]> {
-	public Vec4Layer(Attribute attrib) {super(attrib);}
+	public Vec4Layer(Attribute attrib) {super(attrib, 4);}
 
-	public AttribData build(Collection<float[]> in) {
-	    FloatBuffer data = Utils.wfbuf(in.size() * 4);
-	    for(float[] d : in) {
-		data.put(d[0]); data.put(d[1]); data.put(d[2]); data.put(d[3]);
-	    }
-	    return(new AttribData(attrib, 4, data));
+	public void set(Vertex v, float[] c) {
+	    float[] d = data(v);
+	    int o = v.idx * 4;
+	    d[o] = c[0]; d[o + 1] = c[1]; d[o + 2] = c[2]; d[o + 3] = c[3];
+	}
+
+	public float[] get(Vertex v) {
+	    return(new float[] {get(v, 0), get(v, 1), get(v, 2), get(v, 3)});
 	}
     }
 
@@ -217,12 +278,12 @@ public class MeshBuf {
 
     public class Vertex {
 	public Coord3f pos, nrm;
-	private Object[] attrs = new Object[layers.length];
-	private short idx;
+	private final int idx;
 
 	public Vertex(Coord3f pos, Coord3f nrm) {
 	    this.pos = pos;
 	    this.nrm = nrm;
+	    this.idx = v.size();
 	    v.add(this);
 	}
 
@@ -236,7 +297,9 @@ public class MeshBuf {
 	
 	public Face(Vertex v1, Vertex v2, Vertex v3) {
 	    this.v1 = v1; this.v2 = v2; this.v3 = v3;
-	    f.add(this);
+	    if(nf + 3 > fv.length)
+		fv = Utils.extend(fv, fv.length * 2);
+	    fv[nf++] = v1.idx; fv[nf++] = v2.idx; fv[nf++] = v3.idx;
 	}
     }
 
@@ -300,42 +363,29 @@ public class MeshBuf {
 	return(copy(src, defmapper));
     }
 
-    @SuppressWarnings("unchecked")
-    private <T> VertexBuf.AttribData mklayer(Layer<T> l, Object[] abuf) {
-	int i = 0;
-	boolean f = false;
-	for(Vertex v : this.v) {
-	    if((abuf[i++] = v.attrs[l.idx]) != null)
-		f = true;
-	}
-	if(!f)
-	    return(null);
-	return(l.build(Arrays.asList((T[])abuf)));
-    }
-
     private void mkvbuf() {
 	if(v.isEmpty())
 	    throw(new RuntimeException("Tried to build empty vertex buffer"));
+	if(v.size() > 65535)
+	    throw(new RuntimeException("Too many vertices in meshbuf"));
 
 	FloatBuffer pos, nrm;
 	{
-	    pos = Utils.wfbuf(v.size() * 3);
-	    nrm = Utils.wfbuf(v.size() * 3);
-	    int pi = 0, ni = 0;
-	    short i = 0;
+	    float[] pa = new float[v.size() * 3], na = new float[v.size() * 3];
+	    int pi = 0;
 	    for(Vertex v : this.v) {
-		pos.put(pi + 0, v.pos.x);
-		pos.put(pi + 1, v.pos.y);
-		pos.put(pi + 2, v.pos.z);
-		nrm.put(pi + 0, v.nrm.x);
-		nrm.put(pi + 1, v.nrm.y);
-		nrm.put(pi + 2, v.nrm.z);
+		pa[pi + 0] = v.pos.x;
+		pa[pi + 1] = v.pos.y;
+		pa[pi + 2] = v.pos.z;
+		na[pi + 0] = v.nrm.x;
+		na[pi + 1] = v.nrm.y;
+		na[pi + 2] = v.nrm.z;
 		pi += 3;
-		ni += 3;
-		v.idx = i++;
-		if(i == 0)
-		    throw(new RuntimeException("Too many vertices in meshbuf"));
 	    }
+	    pos = Utils.wfbuf(pa.length);
+	    pos.put(pa).rewind();
+	    nrm = Utils.wfbuf(na.length);
+	    nrm.put(na).rewind();
 	}
 
 	VertexBuf.AttribData[] arrays = new VertexBuf.AttribData[layers.length + 2];
@@ -343,9 +393,8 @@ public class MeshBuf {
 	arrays[li++] = new VertexBuf.VertexData(pos);
 	arrays[li++] = new VertexBuf.NormalData(nrm);
 
-	Object[] abuf = new Object[v.size()];
 	for(int i = 0; i < layers.length; i++) {
-	    VertexBuf.AttribData l = mklayer(layers[i], abuf);
+	    VertexBuf.AttribData l = layers[i].build(v.size());
 	    if(l != null)
 		arrays[li++] = l;
 	}
@@ -354,26 +403,21 @@ public class MeshBuf {
     }
 
     public void clearfaces() {
-	this.f.clear();
+	nf = 0;
     }
 
     public FastMesh mkmesh() {
-	if(f.isEmpty())
+	if(nf == 0)
 	    throw(new RuntimeException("Tried to build empty mesh"));
 	if(this.vbuf == null)
 	    mkvbuf();
-	short[] idx = new short[f.size() * 3];
-	int ii = 0;
-	for(Face f : this.f) {
-	    idx[ii + 0] = f.v1.idx;
-	    idx[ii + 1] = f.v2.idx;
-	    idx[ii + 2] = f.v3.idx;
-	    ii += 3;
-	}
+	short[] idx = new short[nf];
+	for(int i = 0; i < nf; i++)
+	    idx[i] = (short)fv[i];
 	return(new FastMesh(this.vbuf, idx));
     }
 
     public boolean emptyp() {
-	return(f.isEmpty());
+	return(nf == 0);
     }
 }
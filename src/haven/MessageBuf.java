@@ -98,6 +98,18 @@ public class MessageBuf extends Message implements java.io.Serializable {
 	return(rt - rh);
     }
 
+    /* Returns a view of the next len bytes of this message and
+     * skips past them. The view shares the backing array instead
+     * of copying it, which is safe since MessageBufs never modify
+     * read data in place. */
+    public MessageBuf slice(int len) {
+	if(rt - rh < len)
+	    throw(new EOF("Required " + len + " bytes, got only " + (rt - rh)).msg(this));
+	MessageBuf ret = new MessageBuf(rbuf, rh, len);
+	rh += len;
+	return(ret);
+    }
+
     public void rewind() {
 	rh = oh;
     }
@@ -52,6 +52,7 @@ public class MiniMap extends Widget {
     public Location sessloc;
     public GobIcon.Settings iconconf;
     public List<DisplayIcon> icons = Collections.emptyList();
+    private IconIndex iconidx;
     protected Locator setloc;
     protected boolean follow;
     protected int zoomlevel = 0;
@@ -83,6 +84,12 @@ public class MiniMap extends Widget {
 	super.attached();
     }
 
+    public void destroy() {
+	if(iconidx != null)
+	    iconidx.close();
+	super.destroy();
+    }
+
     public static class Location {
 	public final Segment seg;
 	public final Coord tc;
@@ -217,7 +224,13 @@ public class MiniMap extends Widget {
 	    } catch(Loading l) {
 	    }
 	}
-	icons = findicons(icons);
+	if((ui.sess == null) || (iconconf == null)) {
+	    icons = Collections.emptyList();
+	} else {
+	    if(iconidx == null)
+		iconidx = new IconIndex(ui.sess.glob.oc);
+	    icons = iconidx.update(iconconf, ui.sess.glob.party.memb);
+	}
 	if(CFG.MMAP_SHOW_BIOMES.get()) {
 	    Coord mc = rootxlate(ui.mc);
 	    if(mc.isect(Coord.z, sz)) {
@@ -317,6 +330,10 @@ public class MiniMap extends Widget {
 		return(true);
 	    return(false);
 	}
+
+	/* Set when the gob no longer shows this icon, which is then
+	 * only kept until its notification has run. */
+	boolean retired = false;
     
 	public Object tooltip() {
 	    KinInfo kin = kin();
@@ -659,45 +676,249 @@ public class MiniMap extends Widget {
 	}
     }
 
-    public List<DisplayIcon> findicons(Collection<? extends DisplayIcon> prev) {
-	if((ui.sess == null) || (iconconf == null))
-	    return(Collections.emptyList());
-	Map<Gob, DisplayIcon> pmap = Collections.emptyMap();
-	if(prev != null) {
-	    pmap = new HashMap<>();
-	    for(DisplayIcon disp : prev)
-		pmap.put(disp.gob, disp);
-	}
-	List<DisplayIcon> ret = new ArrayList<>();
-	OCache oc = ui.sess.glob.oc;
-	synchronized(oc) {
-	    for(Gob gob : oc) {
-		try {
-		    GobIcon icon = gob.getattr(GobIcon.class);
-		    if(icon != null) {
-			GobIcon.Setting conf = iconconf.get(icon.res.get());
-			if((conf != null) && conf.show && GobIconCategoryList.GobCategory.categorize(conf).enabled()) {
-			    DisplayIcon disp = pmap.remove(gob);
-			    if(disp == null)
-				disp = new DisplayIcon(icon, conf);
-			    disp.update(gob.rc, gob.a);
-			    KinInfo kin = gob.getattr(KinInfo.class);
-			    if((kin != null) && (kin.group < BuddyWnd.gc.length))
-				disp.col = BuddyWnd.gc[kin.group];
-			    ret.add(disp);
-			}
+    private static class IconGroup {
+	final GobIcon.Setting conf;
+	final GobIconCategoryList.GobCategory cat;
+	final Set<Gob> gobs = new HashSet<>();
+	boolean shown;
+
+	IconGroup(GobIcon.Setting conf) {
+	    this.conf = conf;
+	    this.cat = GobIconCategoryList.GobCategory.categorize(conf);
+	    this.shown = shown();
+	}
+
+	boolean shown() {
+	    return(conf.show && cat.enabled());
+	}
+    }
+
+    private static class IconEntry {
+	final GobIcon icon;
+	IconGroup grp;
+	DisplayIcon disp;
+
+	IconEntry(GobIcon icon) {this.icon = icon;}
+    }
+
+    /*
+     * Keeps the displayed icons from object-cache and gob change
+     * notifications, so that each tick only looks at the gobs that
+     * changed, and at the icon settings for changed visibility,
+     * rather than at every gob. The icons are kept sorted by z as
+     * they come and go.
+     */
+    private class IconIndex implements OCache.ChangeCallback {
+	final OCache oc;
+	private final Set<Gob> live = new HashSet<>();
+	private Set<Gob> dirty = new HashSet<>();
+	/* The rest is only used from tick(). */
+	private final Map<Gob, IconEntry> entries = new HashMap<>();
+	private final Map<GobIcon.Setting, IconGroup> groups = new HashMap<>();
+	private final Set<Gob> unconf = new HashSet<>();
+	private final List<DisplayIcon> sorted = new ArrayList<>();
+	private GobIcon.Settings conf;
+	private Map<String, GobIcon.Setting> confset;
+	private Map<Long, Party.Member> memb;
+
+	IconIndex(OCache oc) {
+	    this.oc = oc;
+	    synchronized(oc) {
+		oc.callback(this);
+		synchronized(this) {
+		    for(Gob gob : oc.snapshot()) {
+			live.add(gob);
+			dirty.add(gob);
 		    }
-		} catch(Loading l) {}
+		}
+	    }
+	}
+
+	public synchronized void added(Gob ob) {
+	    live.add(ob);
+	    dirty.add(ob);
+	}
+
+	public synchronized void removed(Gob ob) {
+	    live.remove(ob);
+	    dirty.add(ob);
+	}
+
+	public synchronized void changed(Gob ob) {
+	    dirty.add(ob);
+	}
+
+	private synchronized boolean live(Gob gob) {
+	    return(live.contains(gob));
+	}
+
+	private void insert(DisplayIcon disp) {
+	    int lo = 0, hi = sorted.size();
+	    while(lo < hi) {
+		int m = (lo + hi) >>> 1;
+		if(sorted.get(m).z <= disp.z)
+		    lo = m + 1;
+		else
+		    hi = m;
+	    }
+	    sorted.add(lo, disp);
+	}
+
+	private void retire(IconEntry e) {
+	    if(e.disp == null)
+		return;
+	    if(e.disp.force())
+		e.disp.retired = true;
+	    else
+		sorted.remove(e.disp);
+	    e.disp = null;
+	}
+
+	private DisplayIcon display(Gob gob, IconEntry e) {
+	    for(DisplayIcon disp : sorted) {
+		if(disp.retired && (disp.gob == gob) && (disp.icon == e.icon)) {
+		    disp.retired = false;
+		    return(disp);
+		}
 	    }
+	    DisplayIcon disp = new DisplayIcon(e.icon, e.grp.conf);
+	    insert(disp);
+	    return(disp);
 	}
-	for(DisplayIcon disp : pmap.values()) {
-	    if(disp.force())
-		ret.add(disp);
+
+	private void setgroup(Gob gob, IconEntry e, IconGroup grp) {
+	    if(e.grp == grp)
+		return;
+	    if(e.grp != null) {
+		e.grp.gobs.remove(gob);
+		if(e.grp.gobs.isEmpty())
+		    groups.remove(e.grp.conf);
+	    }
+	    if((e.grp = grp) != null)
+		grp.gobs.add(gob);
+	}
+
+	private void drop(Gob gob) {
+	    IconEntry e = entries.remove(gob);
+	    if(e != null) {
+		retire(e);
+		setgroup(gob, e, null);
+	    }
+	    unconf.remove(gob);
+	}
+
+	/* Returns false if the icon could not yet be resolved. */
+	private boolean refresh(Gob gob) {
+	    GobIcon icon = live(gob) ? gob.getattr(GobIcon.class) : null;
+	    IconEntry e = entries.get(gob);
+	    if((e != null) && (e.icon != icon)) {
+		drop(gob);
+		e = null;
+	    }
+	    if(icon == null)
+		return(true);
+	    if(e == null)
+		entries.put(gob, e = new IconEntry(icon));
+	    GobIcon.Setting conf;
+	    try {
+		conf = this.conf.get(icon.res.get());
+	    } catch(Loading l) {
+		return(false);
+	    }
+	    if(conf == null) {
+		setgroup(gob, e, null);
+		retire(e);
+		unconf.add(gob);
+		return(true);
+	    }
+	    unconf.remove(gob);
+	    IconGroup grp = groups.get(conf);
+	    if(grp == null)
+		groups.put(conf, grp = new IconGroup(conf));
+	    setgroup(gob, e, grp);
+	    if(!grp.shown || memb.containsKey(gob.id)) {
+		retire(e);
+		return(true);
+	    }
+	    if(e.disp == null)
+		e.disp = display(gob, e);
+	    KinInfo kin = gob.getattr(KinInfo.class);
+	    if((kin != null) && (kin.group < BuddyWnd.gc.length))
+		e.disp.col = BuddyWnd.gc[kin.group];
+	    return(true);
+	}
+
+	private void reconf(Collection<Gob> into) {
+	    for(IconGroup grp : groups.values()) {
+		boolean shown = grp.shown();
+		if(shown != grp.shown) {
+		    grp.shown = shown;
+		    into.addAll(grp.gobs);
+		}
+	    }
+	}
+
+	List<DisplayIcon> update(GobIcon.Settings conf, Map<Long, Party.Member> memb) {
+	    Set<Gob> dirty;
+	    synchronized(this) {
+		dirty = this.dirty;
+		this.dirty = new HashSet<>();
+	    }
+	    if(conf != this.conf) {
+		this.conf = conf;
+		groups.clear();
+		for(IconEntry e : entries.values())
+		    e.grp = null;
+		dirty.addAll(entries.keySet());
+	    } else {
+		reconf(dirty);
+	    }
+	    if(conf.settings != confset) {
+		confset = conf.settings;
+		dirty.addAll(unconf);
+	    }
+	    if(memb != this.memb) {
+		if(this.memb != null) {
+		    for(Long id : this.memb.keySet())
+			dirty.add(oc.getgob(id));
+		}
+		for(Long id : memb.keySet())
+		    dirty.add(oc.getgob(id));
+		dirty.remove(null);
+		this.memb = memb;
+	    }
+	    List<Gob> retry = null;
+	    for(Gob gob : dirty) {
+		if(!refresh(gob)) {
+		    if(retry == null)
+			retry = new ArrayList<>();
+		    retry.add(gob);
+		}
+	    }
+	    if(retry != null) {
+		synchronized(this) {
+		    this.dirty.addAll(retry);
+		}
+	    }
+	    for(Iterator<DisplayIcon> i = sorted.iterator(); i.hasNext();) {
+		DisplayIcon disp = i.next();
+		if(!disp.retired)
+		    disp.update(disp.gob.rc, disp.gob.a);
+		else if(!disp.force())
+		    i.remove();
+	    }
+	    /* XXX: This is a bit of a hack to avoid unknown-player
+	     * notifications only before initial party information has
+	     * been received. Not sure if there's a better
+	     * solution. */
+	    if(memb.isEmpty() || sorted.isEmpty())
+		return(Collections.emptyList());
+	    return(sorted);
+	}
+
+	void close() {
+	    oc.uncallback(this);
 	}
-	Collections.sort(ret, (a, b) -> a.z - b.z);
-	if(ret.size() == 0)
-	    return(Collections.emptyList());
-	return(ret);
     }
 
     public void drawicons(GOut g) {
@@ -711,23 +932,6 @@ public class MiniMap extends Widget {
 	g.chcolor();
     }
 
-    public void remparty() {
-	Map<Long, Party.Member> memb = ui.sess.glob.party.memb;
-	if(memb.isEmpty()) {
-	    /* XXX: This is a bit of a hack to avoid unknown-player
-	     * notifications only before initial party information has
-	     * been received. Not sure if there's a better
-	     * solution. */
-	    icons.clear();
-	    return;
-	}
-	for(Iterator<DisplayIcon> it = icons.iterator(); it.hasNext();) {
-	    DisplayIcon icon = it.next();
-	    if(memb.containsKey(icon.gob.id))
-		it.remove();
-	}
-    }
-
     public void drawparty(GOut g) {
 	for(Party.Member m : ui.sess.glob.party.memb.values()) {
 	    try {
@@ -762,7 +966,6 @@ public class MiniMap extends Widget {
 	if(loc == null)
 	    return;
 	redisplay(loc);
-	remparty();
 	drawparts(g);
     }
 
@@ -0,0 +1,196 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.zip.*;
+
+/*
+ * Recordings of the raw datagram traffic of a session, for replaying
+ * it offline. A recording is a signature followed by a sequence of
+ * independently compressed blocks of datagrams, each with its
+ * direction and the time in milliseconds since the start of the
+ * recording. Blocks are written out at least every second, so that
+ * the recording of a client that dies stays readable up to its last
+ * complete block.
+ */
+public class NetLog {
+    public static final Config.Variable<Path> path = Config.Variable.propp("haven.netlog", "");
+    private static final byte[] SIG = "Haven Netlog 2".getBytes(Utils.ascii);
+    private static final int BLOCKSIZE = 65536, MAXBLOCK = 1 << 24;
+    private static final long FLUSHTIME = 1000;
+
+    public static class Packet {
+	public final int time;
+	public final boolean out;
+	public final byte[] data;
+
+	public Packet(int time, boolean out, byte[] data) {
+	    this.time = time;
+	    this.out = out;
+	    this.data = data;
+	}
+    }
+
+    /* Block format: 32-bit uncompressed and compressed lengths,
+     * followed by the deflated packets. */
+    public static class Writer implements Closeable {
+	private final long start = System.currentTimeMillis();
+	private final StreamMessage fp;
+	private MessageBuf block = new MessageBuf();
+	private final Deflater zip = new Deflater();
+	private byte[] zbuf = new byte[BLOCKSIZE];
+	private long lastflush = start;
+	private boolean closed = false;
+
+	public Writer(OutputStream fp) {
+	    this.fp = new StreamMessage(fp);
+	    this.fp.addbytes(SIG);
+	    this.fp.flush();
+	}
+
+	private void flushblock() {
+	    byte[] raw = block.fin();
+	    block = new MessageBuf();
+	    zip.reset();
+	    zip.setInput(raw);
+	    zip.finish();
+	    int zlen = 0;
+	    while(!zip.finished()) {
+		if(zlen == zbuf.length)
+		    zbuf = java.util.Arrays.copyOf(zbuf, zbuf.length * 2);
+		zlen += zip.deflate(zbuf, zlen, zbuf.length - zlen);
+	    }
+	    fp.addint32(raw.length);
+	    fp.addint32(zlen);
+	    fp.addbytes(zbuf, 0, zlen);
+	    fp.flush();
+	}
+
+	public synchronized void write(boolean dir, byte[] buf, int off, int len) {
+	    if(closed)
+		return;
+	    try {
+		long now = System.currentTimeMillis();
+		block.adduint8(dir ? 1 : 0);
+		block.addint32((int)(now - start));
+		block.adduint16(len);
+		block.addbytes(buf, off, len);
+		if((block.size() >= BLOCKSIZE) || (now - lastflush >= FLUSHTIME)) {
+		    flushblock();
+		    lastflush = now;
+		}
+	    } catch(StreamMessage.IOError e) {
+		new Warning(e, "network log failed").issue();
+		closed = true;
+		zip.end();
+	    }
+	}
+
+	public synchronized void close() {
+	    if(closed)
+		return;
+	    closed = true;
+	    try {
+		if(block.size() > 0)
+		    flushblock();
+	    } finally {
+		zip.end();
+		fp.close();
+	    }
+	}
+    }
+
+    public static Writer record(Path path) {
+	try {
+	    return(new Writer(new BufferedOutputStream(Files.newOutputStream(path))));
+	} catch(IOException e) {
+	    new Warning(e, "could not open network log " + path).issue();
+	    return(null);
+	}
+    }
+
+    public static class Reader implements Closeable {
+	private final StreamMessage fp;
+	private final Inflater zip = new Inflater();
+	private Message in = Message.nil;
+	public int npackets = 0;
+	public long nbytes = 0;
+
+	public Reader(InputStream fp) {
+	    this.fp = new StreamMessage(fp);
+	    if(!java.util.Arrays.equals(SIG, this.fp.bytes(SIG.length)))
+		throw(new Message.FormatError("Invalid network log format"));
+	}
+
+	/* A block cut short, as by the recording client dying, ends
+	 * the recording. */
+	private boolean nextblock() {
+	    try {
+		if(fp.eom())
+		    return(false);
+		int rlen = fp.int32(), zlen = fp.int32();
+		if((rlen < 0) || (rlen > MAXBLOCK) || (zlen < 0) || (zlen > MAXBLOCK))
+		    return(false);
+		byte[] zdata = fp.bytes(zlen), raw = new byte[rlen];
+		zip.reset();
+		zip.setInput(zdata);
+		if((zip.inflate(raw) != rlen) || !zip.finished())
+		    return(false);
+		in = new MessageBuf(raw);
+		return(true);
+	    } catch(Message.EOF | DataFormatException e) {
+		return(false);
+	    }
+	}
+
+	/* Returns null at the end of the recording. */
+	public Packet next() {
+	    while(in.eom()) {
+		if(!nextblock())
+		    return(null);
+	    }
+	    boolean out = in.uint8() != 0;
+	    int time = in.int32();
+	    byte[] data = in.bytes(in.uint16());
+	    npackets++;
+	    nbytes += data.length;
+	    return(new Packet(time, out, data));
+	}
+
+	public void close() {
+	    zip.end();
+	    fp.close();
+	}
+    }
+
+    public static Reader replay(Path path) throws IOException {
+	return(new Reader(new BufferedInputStream(Files.newInputStream(path))));
+    }
+}
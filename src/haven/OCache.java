@@ -28,6 +28,7 @@ package haven;
 
 import java.util.*;
 import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.lang.annotation.*;
 import java.lang.reflect.*;
 import haven.render.Render;
@@ -61,14 +62,21 @@ public class OCache implements Iterable<Gob> {
     public static final Coord2d posres = Coord2d.of(0x1.0p-10, 0x1.0p-10).mul(11, 11);
     /* XXX: Use weak refs */
     private Collection<Collection<Gob>> local = new LinkedList<Collection<Gob>>();
-    private HashMultiMap<Long, Gob> objs = new HashMultiMap<Long, Gob>();
+    private LongMultiMap<Gob> objs = new LongMultiMap<Gob>();
+    /* Immutable snapshot of all gobs, rebuilt lazily after changes,
+     * so that iterating them neither allocates nor locks. */
+    private volatile Gob[] snapshot = new Gob[0];
+    private volatile boolean sdirty = false;
     private Glob glob;
     private final Collection<ChangeCallback> cbs = new WeakList<ChangeCallback>();
     public final PathVisualizer paths = new PathVisualizer();
+    public final GobGrid grid = new GobGrid();
 
     public interface ChangeCallback {
 	public void added(Gob ob);
 	public void removed(Gob ob);
+	/* Called when a gob's icon or kin information changes. */
+	public default void changed(Gob ob) {}
     }
 
     public OCache(Glob glob) {
@@ -82,15 +90,50 @@ public class OCache implements Iterable<Gob> {
     }
     
     public void gobAction(Consumer<Gob> action) {
-	synchronized (this) {
-	    for (Gob g : this) {
-	        action.accept(g);
+	for(Gob g : snapshot())
+	    action.accept(g);
+    }
+
+    /* Returns all current gobs, including local ones. The returned
+     * array is shared and must not be modified. */
+    public Gob[] snapshot() {
+	if(sdirty) {
+	    synchronized(this) {
+		if(sdirty) {
+		    int n = objs.size();
+		    for(Collection<Gob> gc : local)
+			n += gc.size();
+		    Gob[] buf = new Gob[n];
+		    int o = objs.values(buf, 0);
+		    for(Collection<Gob> gc : local) {
+			for(Gob g : gc)
+			    buf[o++] = g;
+		    }
+		    snapshot = buf;
+		    sdirty = false;
+		}
 	    }
-	    local.forEach(gobs -> gobs.forEach(action));
 	}
+	return(snapshot);
+    }
+
+    public Stream<Gob> stream() {return Stream.of(snapshot());}
+
+    /* Local gobs are found by these as well, but only those that
+     * were in their collection when it was added. */
+    public void forEachWithin(Coord2d c, double r, Consumer<? super Gob> action) {
+	grid.forEachWithin(c, r, action);
+    }
+
+    public void forEachIn(Coord2d ul, Coord2d br, Consumer<? super Gob> action) {
+	grid.forEachIn(ul, br, action);
+    }
+
+    public List<Gob> within(Coord2d c, double r) {
+	List<Gob> ret = new ArrayList<>();
+	grid.forEachWithin(c, r, ret::add);
+	return(ret);
     }
-    
-    public synchronized Stream<Gob> stream() {return Stream.of(objs.values().toArray(new Gob[0]));}
 
     public synchronized void callback(ChangeCallback cb) {
 	cbs.add(cb);
@@ -106,7 +149,9 @@ public class OCache implements Iterable<Gob> {
 	    synchronized(this) {
 		cbs = new ArrayList<>(this.cbs);
 		objs.put(ob.id, ob);
+		sdirty = true;
 	    }
+	    grid.add(ob);
 	    for(ChangeCallback cb : cbs) {
 		cb.added(ob);
 	    }
@@ -120,8 +165,10 @@ public class OCache implements Iterable<Gob> {
 	    old = objs.remove(ob.id, ob);
 	    if((old != null) && (old != ob))
 		throw(new RuntimeException(String.format("object %d removed wrong object", ob.id)));
+	    sdirty = true;
 	    cbs = new ArrayList<>(this.cbs);
 	}
+	grid.remove(ob);
 	if(old != null) {
 	    synchronized(old) {
 		old.removed();
@@ -132,20 +179,20 @@ public class OCache implements Iterable<Gob> {
     }
 
     public void ctick(double dt) {
-	ArrayList<Gob> copy = new ArrayList<Gob>();
-	synchronized(this) {
-	    for(Gob g : this)
-		copy.add(g);
-	}
-	Consumer<Gob> task = g -> {
-	    synchronized(g) {
-		g.ctick(dt);
+	Gob[] copy = snapshot();
+	if(!Config.par.get()) {
+	    for(Gob g : copy) {
+		synchronized(g) {
+		    g.ctick(dt);
+		}
 	    }
-	};
-	if(!Config.par.get())
-	    copy.forEach(task);
-	else
-	    copy.parallelStream().forEach(task);
+	} else {
+	    Arrays.stream(copy).parallel().forEach(g -> {
+		    synchronized(g) {
+			g.ctick(dt);
+		    }
+		});
+	}
 	paths.tick(dt);
 	if(glob.sess.ui != null && glob.sess.ui.gui != null && glob.sess.ui.gui.mapfile != null) {
 	    glob.sess.ui.gui.mapfile.updateGobMarkers();
@@ -153,21 +200,17 @@ public class OCache implements Iterable<Gob> {
     }
 
     public void gtick(Render g) {
-	ArrayList<Gob> copy = new ArrayList<Gob>();
-	synchronized(this) {
-	    for(Gob ob : this)
-		copy.add(ob);
-	}
+	Gob[] copy = snapshot();
 	if(!Config.par.get()) {
-	    copy.forEach(ob -> {
-		    synchronized(ob) {
-			ob.gtick(g);
-		    }
-		});
+	    for(Gob ob : copy) {
+		synchronized(ob) {
+		    ob.gtick(g);
+		}
+	    }
 	} else {
 	    Collection<Render> subs = new ArrayList<>();
 	    ThreadLocal<Render> subv = new ThreadLocal<>();
-	    copy.parallelStream().forEach(ob -> {
+	    Arrays.stream(copy).parallel().forEach(ob -> {
 		    Render sub = subv.get();
 		    if(sub == null) {
 			sub = g.env().render();
@@ -185,12 +228,21 @@ public class OCache implements Iterable<Gob> {
 	}
     }
 
-    @SuppressWarnings("unchecked")
     public Iterator<Gob> iterator() {
-	Collection<Iterator<Gob>> is = new LinkedList<Iterator<Gob>>();
-	for(Collection<Gob> gc : local)
-	    is.add(gc.iterator());
-	return(new I2<Gob>(objs.values().iterator(), new I2<Gob>(is)));
+	Gob[] copy = snapshot();
+	return(new Iterator<Gob>() {
+		int i = 0;
+
+		public boolean hasNext() {
+		    return(i < copy.length);
+		}
+
+		public Gob next() {
+		    if(i >= copy.length)
+			throw(new NoSuchElementException());
+		    return(copy[i++]);
+		}
+	    });
     }
 
     public void ladd(Collection<Gob> gob) {
@@ -198,8 +250,12 @@ public class OCache implements Iterable<Gob> {
 	synchronized(this) {
 	    cbs = new ArrayList<>(this.cbs);
 	    local.add(gob);
+	    /* Note that the contents of local collections are only
+	     * picked up as of the next change. */
+	    sdirty = true;
 	}
 	for(Gob g : gob) {
+	    grid.add(g);
 	    synchronized(g) {
 		for(ChangeCallback cb : cbs)
 		    cb.added(g);
@@ -212,8 +268,10 @@ public class OCache implements Iterable<Gob> {
 	synchronized(this) {
 	    cbs = new ArrayList<>(this.cbs);
 	    local.remove(gob);
+	    sdirty = true;
 	}
 	for(Gob g : gob) {
+	    grid.remove(g);
 	    synchronized(g) {
 		for(ChangeCallback cb : cbs)
 		    cb.removed(g);
@@ -221,6 +279,15 @@ public class OCache implements Iterable<Gob> {
 	}
     }
 
+    public void changed(Gob ob) {
+	Collection<ChangeCallback> cbs;
+	synchronized(this) {
+	    cbs = new ArrayList<>(this.cbs);
+	}
+	for(ChangeCallback cb : cbs)
+	    cb.changed(ob);
+    }
+
     public synchronized Gob getgob(long id) {
 	return(objs.get(id));
     }
@@ -362,6 +429,7 @@ public class OCache implements Iterable<Gob> {
 	public boolean nremoved, added, gremoved, virtual;
 	public Gob gob;
 	public Loader.Future<?> applier;
+	private boolean queued;
 
 	public GobInfo(long id, int frame) {
 	    this.id = id;
@@ -391,9 +459,22 @@ public class OCache implements Iterable<Gob> {
 			if((d = pending.peek()) == null)
 			    break;
 		    }
+		    long st = System.nanoTime();
 		    synchronized(gob) {
-			deltas.get(d.type).apply(gob, d.clone());
+			try {
+			    deltas.get(d.type).apply(gob, d.clone());
+			} catch(Loading l) {
+			    throw(l);
+			} catch(RuntimeException e) {
+			    /* Drop the broken delta, lest it hold up
+			     * every later one. */
+			    synchronized(this) {
+				pending.remove(d);
+			    }
+			    throw(e);
+			}
 		    }
+		    dstats.add(d.type, System.nanoTime() - st);
 		    synchronized(this) {
 			if((pending.poll()) != d)
 			    throw(new RuntimeException());
@@ -407,24 +488,192 @@ public class OCache implements Iterable<Gob> {
 	    }
 	    synchronized(this) {
 		applier = null;
+		queued = false;
+		checkdirty(false);
+	    }
+	}
+
+	/* Run from the delta applier. Whatever cannot be applied
+	 * right away, typically for want of some resource, is handed
+	 * over to the loader, which knows how to wait for it. */
+	private void batchapply() {
+	    try {
+		apply();
+	    } catch(Loading l) {
+		synchronized(this) {
+		    queued = false;
+		    applier = glob.loader.defer(this::apply, null, Loader.PRIO_HIGH);
+		}
+	    } catch(RuntimeException e) {
+		synchronized(this) {
+		    applier = null;
+		    queued = false;
+		}
+		new Warning(e, "could not apply deltas to object " + id).level(Warning.ERROR).issue();
 		checkdirty(false);
 	    }
 	}
 
 	public void checkdirty(boolean interrupt) {
 	    synchronized(this) {
-		if(applier == null) {
+		if((applier == null) && !queued) {
 		    if(nremoved ? (added && !gremoved) : (!added || !pending.isEmpty())) {
-			applier = glob.loader.defer(this::apply, null);
+			queued = true;
+			ready(this);
 		    }
-		} else if(interrupt) {
+		} else if(interrupt && (applier != null)) {
 		    applier.restart();
 		}
 	    }
 	}
     }
 
-    private final Map<Long, GobInfo> netinfo = new HashMap<>();
+    /* Gobs with deltas to apply are collected and applied in
+     * batches, independent gobs in parallel, while the deltas of
+     * each gob are still applied in order by one thread at a
+     * time. */
+    private final List<GobInfo> ready = new ArrayList<>();
+    private Thread dapplier = null;
+
+    private void ready(GobInfo ng) {
+	synchronized(ready) {
+	    ready.add(ng);
+	    if(dapplier == null) {
+		Thread nt = new DeltaApplier();
+		nt.start();
+		dapplier = nt;
+	    }
+	    ready.notifyAll();
+	}
+    }
+
+    private class DeltaApplier extends HackThread {
+	DeltaApplier() {
+	    super("Object delta applier");
+	    setDaemon(true);
+	}
+
+	public void run() {
+	    try {
+		long last = System.currentTimeMillis();
+		while(true) {
+		    GobInfo[] batch;
+		    synchronized(ready) {
+			long now = System.currentTimeMillis();
+			if(ready.isEmpty()) {
+			    if(now - last > 10000) {
+				dapplier = null;
+				return;
+			    }
+			    ready.wait(5000);
+			    continue;
+			}
+			batch = ready.toArray(new GobInfo[0]);
+			ready.clear();
+			last = now;
+		    }
+		    /* Errors in single objects are reported by
+		     * batchapply, and do not stop the batch. */
+		    if((batch.length < 4) || !Config.par.get()) {
+			for(GobInfo ng : batch)
+			    ng.batchapply();
+		    } else {
+			Arrays.stream(batch).parallel().forEach(GobInfo::batchapply);
+		    }
+		}
+	    } catch(InterruptedException e) {
+	    } finally {
+		synchronized(ready) {
+		    if(dapplier == this) {
+			dapplier = null;
+			/* Should this thread die of anything worse,
+			 * leave nothing stranded. */
+			if(!ready.isEmpty()) {
+			    Thread nt = new DeltaApplier();
+			    nt.start();
+			    dapplier = nt;
+			}
+		    }
+		}
+	    }
+	}
+    }
+
+    /* Timing of applied deltas, per type, in power-of-two
+     * nanosecond buckets. */
+    public static class DeltaStats {
+	public static final int NB = 32;
+	private final AtomicLongArray hist = new AtomicLongArray(128 * NB);
+	private final AtomicLongArray total = new AtomicLongArray(128);
+	private static String[] names = null;
+
+	public void add(int type, long ns) {
+	    int b = Math.min(NB - 1, 64 - Long.numberOfLeadingZeros(Math.max(ns, 1) - 1));
+	    hist.incrementAndGet((type & 0x7f) * NB + b);
+	    total.addAndGet(type & 0x7f, ns);
+	}
+
+	public long[] histogram(int type) {
+	    long[] ret = new long[NB];
+	    for(int i = 0; i < NB; i++)
+		ret[i] = hist.get((type & 0x7f) * NB + i);
+	    return(ret);
+	}
+
+	public static String name(int type) {
+	    if(names == null) {
+		String[] buf = new String[128];
+		for(Field f : OCache.class.getFields()) {
+		    if(f.getName().startsWith("OD_") && (f.getType() == Integer.TYPE)) {
+			try {
+			    int v = f.getInt(null);
+			    if((v >= 0) && (v < buf.length))
+				buf[v] = f.getName().substring(3).toLowerCase();
+			} catch(IllegalAccessException e) {
+			}
+		    }
+		}
+		names = buf;
+	    }
+	    String ret = names[type & 0x7f];
+	    return((ret == null) ? Integer.toString(type) : ret);
+	}
+
+	/* Upper bound, in nanoseconds, of the given quantile. */
+	public long quantile(int type, double q) {
+	    long[] h = histogram(type);
+	    long n = 0, c = 0;
+	    for(long v : h)
+		n += v;
+	    for(int i = 0; i < NB; i++) {
+		if((c += h[i]) >= n * q)
+		    return(1L << i);
+	    }
+	    return(1L << (NB - 1));
+	}
+
+	/* Summarizes the three most costly types. */
+	public String toString() {
+	    Integer[] types = new Integer[128];
+	    for(int i = 0; i < types.length; i++)
+		types[i] = i;
+	    Arrays.sort(types, (a, b) -> Long.compare(total.get(b), total.get(a)));
+	    StringBuilder buf = new StringBuilder();
+	    for(int i = 0; (i < 3) && (total.get(types[i]) > 0); i++) {
+		int t = types[i];
+		long n = 0;
+		for(long v : histogram(t))
+		    n += v;
+		if(i > 0)
+		    buf.append(", ");
+		buf.append(String.format("%s %d %.1fus p90<%dus", name(t), n, (total.get(t) / 1e3) / n, quantile(t, 0.9) / 1000));
+	    }
+	    return(buf.toString());
+	}
+    }
+    public final DeltaStats dstats = new DeltaStats();
+
+    private final LongMap<GobInfo> netinfo = new LongMap<>();
 
     private GobInfo netremove(long id, int frame) {
 	synchronized(netinfo) {
@@ -463,7 +712,7 @@ public class OCache implements Iterable<Gob> {
     public static class ObjDelta {
 	public int fl, frame;
 	public long id;
-	public final List<PMessage> attrs = new LinkedList<>();
+	public final List<PMessage> attrs = new ArrayList<>(4);
 	public boolean rem = false;
 
 	public ObjDelta(int fl, long id, int frame) {
@@ -472,6 +721,40 @@ public class OCache implements Iterable<Gob> {
 	    this.frame = frame;
 	}
 	public ObjDelta() {}
+
+	/* Decodes one object delta from an OBJDATA message. The
+	 * attributes are slices of the message's own buffer. */
+	public static ObjDelta read(MessageBuf msg) {
+	    int fl = msg.uint8();
+	    long id = msg.uint32();
+	    int frame = msg.int32();
+	    ObjDelta delta = new ObjDelta(fl, id, frame);
+	    while(true) {
+		int afl = 0, len, type = msg.uint8();
+		if(type == OD_END)
+		    break;
+		if((type & 0x80) == 0) {
+		    len = (type & 0x78) >> 3;
+		    if(len > 0)
+			len++;
+		    type = compodmap[type & 0x7];
+		} else {
+		    type = type & 0x7f;
+		    if(((afl = msg.uint8()) & 0x80) == 0) {
+			len = afl & 0x7f;
+			afl = 0;
+		    } else {
+			len = msg.uint16();
+		    }
+		}
+		PMessage attr = PMessage.slice(type, msg, len);
+		if(type == OD_REM)
+		    delta.rem = true;
+		else
+		    delta.attrs.add(attr);
+	    }
+	    return(delta);
+	}
     }
 
     public GobInfo receive(ObjDelta delta) {
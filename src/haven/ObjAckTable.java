@@ -0,0 +1,175 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven;
+
+/*
+ * Tracks the object acknowledgements a session owes the server,
+ * in a primitive open-addressed table keyed on object ID. Updates
+ * for an object that arrive before its previous acknowledgement
+ * has gone out are coalesced into it, and an acknowledgement is
+ * sent at most every SENDIV milliseconds per object, and a last
+ * time once no update has been received for EXPIRE milliseconds.
+ */
+public class ObjAckTable {
+    public static final int SENDIV = 200, EXPIRE = 120;
+    private long[] ids = new long[64];
+    private int[] frames = new int[64];
+    private long[] recv = new long[64], sent = new long[64];
+    private boolean[] used = new boolean[64], dirty = new boolean[64];
+    private int size = 0;
+    private long next = Long.MAX_VALUE;
+    /* Output of collect() */
+    public long[] ackids = new long[64];
+    public int[] ackframes = new int[64];
+    public long nsent = 0, ncoal = 0, nexp = 0;
+
+    private static int hash(long id) {
+	long h = id * 0x9e3779b97f4a7c15L;
+	return((int)(h ^ (h >>> 32)));
+    }
+
+    private void resize(int nsz) {
+	long[] oids = ids, orecv = recv, osent = sent;
+	int[] oframes = frames;
+	boolean[] oused = used, odirty = dirty;
+	ids = new long[nsz]; frames = new int[nsz];
+	recv = new long[nsz]; sent = new long[nsz];
+	used = new boolean[nsz]; dirty = new boolean[nsz];
+	for(int i = 0; i < oids.length; i++) {
+	    if(!oused[i])
+		continue;
+	    int s = hash(oids[i]) & (nsz - 1);
+	    while(used[s])
+		s = (s + 1) & (nsz - 1);
+	    ids[s] = oids[i]; frames[s] = oframes[i];
+	    recv[s] = orecv[i]; sent[s] = osent[i];
+	    used[s] = true; dirty[s] = odirty[i];
+	}
+    }
+
+    private void remove(int i) {
+	int m = ids.length - 1;
+	used[i] = false;
+	size--;
+	/* Shift the rest of the cluster back to keep probing intact. */
+	for(int j = (i + 1) & m; used[j]; j = (j + 1) & m) {
+	    int h = hash(ids[j]) & m;
+	    if(((j - h) & m) >= ((j - i) & m)) {
+		ids[i] = ids[j]; frames[i] = frames[j];
+		recv[i] = recv[j]; sent[i] = sent[j];
+		used[i] = true; dirty[i] = dirty[j];
+		used[j] = false;
+		i = j;
+	    }
+	}
+    }
+
+    /* Record the objects of one received datagram. Returns true if
+     * the writer needs waking, which is only the case when the
+     * earliest due time has moved closer. */
+    public synchronized boolean got(long[] gids, int[] gframes, int n, long now) {
+	if((size + n) * 2 > ids.length) {
+	    int nsz = ids.length;
+	    while((size + n) * 2 > nsz)
+		nsz *= 2;
+	    resize(nsz);
+	}
+	long pnext = next;
+	int m = ids.length - 1;
+	for(int o = 0; o < n; o++) {
+	    long id = gids[o];
+	    int s = hash(id) & m;
+	    while(used[s] && (ids[s] != id))
+		s = (s + 1) & m;
+	    if(used[s]) {
+		if(gframes[o] > frames[s])
+		    frames[s] = gframes[o];
+		if(dirty[s])
+		    ncoal++;
+		dirty[s] = true;
+		recv[s] = now;
+	    } else {
+		ids[s] = id; frames[s] = gframes[o];
+		recv[s] = now; sent[s] = 0;
+		used[s] = true; dirty[s] = true;
+		size++;
+		next = Math.min(next, now);
+	    }
+	}
+	return(next < pnext);
+    }
+
+    /* The earliest time at which collect() will have something to
+     * do, or -1 if nothing is tracked. */
+    public synchronized long next() {
+	return((size == 0) ? -1 : next);
+    }
+
+    /* Collect the acknowledgements due at the given time into
+     * ackids and ackframes, and return their number. */
+    public synchronized int collect(long now) {
+	if((size == 0) || (now < next))
+	    return(0);
+	int n = 0;
+	long nnext = Long.MAX_VALUE;
+	for(int i = 0; i < ids.length; i++) {
+	    if(!used[i])
+		continue;
+	    boolean send = (now - sent[i] >= SENDIV), del = (now - recv[i] >= EXPIRE);
+	    if(send || del) {
+		if(n >= ackids.length) {
+		    ackids = Utils.extend(ackids, ackids.length * 2);
+		    ackframes = Utils.extend(ackframes, ackframes.length * 2);
+		}
+		ackids[n] = ids[i]; ackframes[n] = frames[i];
+		n++;
+		sent[i] = now;
+		dirty[i] = false;
+	    }
+	    if(del) {
+		remove(i);
+		nexp++;
+		/* Another entry may have been shifted into this slot. */
+		i--;
+		continue;
+	    }
+	    nnext = Math.min(nnext, Math.min(sent[i] + SENDIV, recv[i] + EXPIRE));
+	}
+	nsent += n;
+	next = nnext;
+	return(n);
+    }
+
+    public synchronized int size() {
+	return(size);
+    }
+
+    public String stats() {
+	return(String.format("%d s%d c%d e%d", size(), nsent, ncoal, nexp));
+    }
+}
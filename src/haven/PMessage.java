@@ -50,4 +50,10 @@ public class PMessage extends MessageBuf {
     public PMessage(PMessage msg) {
 	this(msg.type, msg);
     }
+
+    /* Like MessageBuf.slice(), but typed. */
+    public static PMessage slice(int type, MessageBuf from, int len) {
+	from.skip(len);
+	return(new PMessage(type, from.rbuf, from.rh - len, len));
+    }
 }
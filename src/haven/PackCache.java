@@ -0,0 +1,618 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.nio.channels.*;
+import java.net.*;
+import static haven.Utils.pj;
+
+/* A cache store keeping all entries in a few append-only pack
+ * files, rather than in one file per entry as HashDirCache does.
+ * Entries are read straight out of memory-mapped pack files, and
+ * superseded entries are reclaimed by a background compactor. Only
+ * one client at a time may own a pack directory. */
+public class PackCache implements ResCache {
+    public static final long packsize = 64L << 20;
+    private static final long mapchunk = 16L << 20;
+    private static final int RECVER = 1, IDXMAGIC = 0x48504932;
+    public final URI id;
+    private final Path dir;
+    private final FileChannel lockfp;
+    private final Map<String, Entry> index = new HashMap<>();
+    private final Map<String, Tomb> tombs = new HashMap<>();
+    private final TreeMap<Integer, Pack> packs = new TreeMap<>();
+    private Pack cur = null;
+    private boolean dirty = false;
+
+    private static class Entry {
+	final Pack pack;
+	final long off;
+	final int len, reclen;
+	/* The oldest pack that may still hold a record of the name. */
+	int first;
+
+	Entry(Pack pack, long off, int len, int reclen) {
+	    this.pack = pack;
+	    this.off = off;
+	    this.len = len;
+	    this.reclen = reclen;
+	    this.first = pack.seq;
+	}
+    }
+
+    /* A removal record that must be kept, because packs older than
+     * the removal, from first up to floor, may still hold records of
+     * the name that a rescan would otherwise bring back. */
+    private static class Tomb {
+	final Pack pack;
+	final int reclen, first, floor;
+
+	Tomb(Pack pack, int reclen, int first, int floor) {
+	    this.pack = pack;
+	    this.reclen = reclen;
+	    this.first = first;
+	    this.floor = floor;
+	}
+    }
+
+    private static class Pack {
+	final int seq;
+	final Path path;
+	final FileChannel fp;
+	/* Written under the cache lock. Sealed packs are no longer
+	 * appended to. */
+	volatile long size;
+	volatile boolean sealed = false;
+	long live;
+	private MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+	private int refs = 0;
+	private boolean retired = false;
+
+	Pack(int seq, Path path) throws IOException {
+	    this.seq = seq;
+	    this.path = path;
+	    this.fp = Utils.ioretry(() -> FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE));
+	}
+
+	/* Packs are mapped in fixed chunks, each once it is complete,
+	 * so that reading freshly appended entries does not remap the
+	 * file. Whatever lies in the incomplete tail chunk of the
+	 * active pack, or straddles two chunks, is read directly. */
+	private MappedByteBuffer chunk(int ci) throws IOException {
+	    long start = ci * mapchunk, end = start + mapchunk, size = this.size;
+	    if(end > size) {
+		if(!sealed)
+		    return(null);
+		end = size;
+	    }
+	    synchronized(this) {
+		if(ci >= chunks.length)
+		    chunks = Arrays.copyOf(chunks, ci + 1);
+		if(chunks[ci] == null)
+		    chunks[ci] = fp.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		return(chunks[ci]);
+	    }
+	}
+
+	/* The caller must hold a reference to the pack. */
+	ByteBuffer slice(long off, int len) throws IOException {
+	    int ci = (int)(off / mapchunk);
+	    int coff = (int)(off - (ci * mapchunk));
+	    if(coff + len <= mapchunk) {
+		MappedByteBuffer map = chunk(ci);
+		if(map != null) {
+		    ByteBuffer ret = map.duplicate();
+		    ret.limit(coff + len).position(coff);
+		    return(ret.slice());
+		}
+	    }
+	    ByteBuffer ret = ByteBuffer.allocate(len);
+	    if(!readat(fp, ret, off))
+		throw(new EOFException("truncated pack entry in " + path));
+	    return(ret);
+	}
+
+	/* Readers hold references while slicing, so that a pack
+	 * dropped by the compactor is only closed once they are
+	 * done with it. Existing mappings stay valid after that. */
+	synchronized void acquire() {
+	    refs++;
+	}
+
+	void release() throws IOException {
+	    boolean close;
+	    synchronized(this) {
+		close = (--refs == 0) && retired;
+	    }
+	    if(close)
+		fp.close();
+	}
+
+	void retire() throws IOException {
+	    boolean close;
+	    synchronized(this) {
+		retired = true;
+		close = (refs == 0);
+	    }
+	    if(close)
+		fp.close();
+	}
+
+	void write(ByteBuffer buf, long off) throws IOException {
+	    while(buf.remaining() > 0)
+		off += fp.write(buf, off);
+	}
+    }
+
+    private static class BufferStream extends InputStream {
+	private final ByteBuffer buf;
+
+	BufferStream(ByteBuffer buf) {
+	    this.buf = buf;
+	}
+
+	public int read() {
+	    if(!buf.hasRemaining())
+		return(-1);
+	    return(Utils.ub(buf.get()));
+	}
+
+	public int read(byte[] dst, int off, int len) {
+	    if(!buf.hasRemaining())
+		return(-1);
+	    len = Math.min(len, buf.remaining());
+	    buf.get(dst, off, len);
+	    return(len);
+	}
+
+	public int available() {
+	    return(buf.remaining());
+	}
+
+	public long skip(long n) {
+	    n = Math.max(Math.min(n, buf.remaining()), 0);
+	    buf.position(buf.position() + (int)n);
+	    return(n);
+	}
+    }
+
+    private PackCache(URI id, Path dir, FileChannel lockfp) throws IOException {
+	this.id = id;
+	this.dir = dir;
+	this.lockfp = lockfp;
+	open();
+	Thread th = new HackThread(this::compactor, "Pack cache compactor");
+	th.setDaemon(true);
+	th.start();
+    }
+
+    private Path packpath(int seq) {
+	return(pj(dir, String.format("data.%d", seq)));
+    }
+
+    private Pack newpack() throws IOException {
+	int seq = packs.isEmpty() ? 0 : (packs.lastKey() + 1);
+	Pack ret = new Pack(seq, packpath(seq));
+	ret.fp.truncate(0);
+	packs.put(seq, ret);
+	return(ret);
+    }
+
+    /* Record format: version byte, UTF-8 name prefixed by its 16-bit
+     * length, 32-bit data length (-1 for removal), data. */
+    private static ByteBuffer header(String name, int len) {
+	byte[] nm = name.getBytes(Utils.utf8);
+	ByteBuffer ret = ByteBuffer.allocate(7 + nm.length);
+	ret.put((byte)RECVER).putShort((short)nm.length).put(nm).putInt(len);
+	ret.flip();
+	return(ret);
+    }
+
+    private void put(String name, Entry ent) {
+	Entry prev = index.put(name, ent);
+	Tomb tomb = tombs.remove(name);
+	if(prev != null) {
+	    prev.pack.live -= prev.reclen;
+	    ent.first = Math.min(ent.first, prev.first);
+	}
+	if(tomb != null) {
+	    tomb.pack.live -= tomb.reclen;
+	    ent.first = Math.min(ent.first, tomb.first);
+	}
+	ent.pack.live += ent.reclen;
+    }
+
+    /* Tombstones count as live data for as long as they are
+     * needed, so that the compactor carries them forward. */
+    private void tomb(String name, Pack pack, int reclen) {
+	Entry prev = index.remove(name);
+	Tomb tomb = tombs.remove(name);
+	Tomb nt;
+	if(prev != null) {
+	    prev.pack.live -= prev.reclen;
+	    nt = new Tomb(pack, reclen, prev.first, pack.seq);
+	} else if(tomb != null) {
+	    tomb.pack.live -= tomb.reclen;
+	    nt = new Tomb(pack, reclen, tomb.first, tomb.floor);
+	} else {
+	    return;
+	}
+	if(needed(nt)) {
+	    tombs.put(name, nt);
+	    pack.live += reclen;
+	}
+    }
+
+    private boolean needed(Tomb tomb) {
+	return(!packs.subMap(tomb.first, tomb.floor).isEmpty());
+    }
+
+    private static boolean readat(FileChannel fp, ByteBuffer buf, long off) throws IOException {
+	while(buf.hasRemaining()) {
+	    int rv = fp.read(buf, off);
+	    if(rv < 0)
+		return(false);
+	    off += rv;
+	}
+	buf.flip();
+	return(true);
+    }
+
+    private void scan(Pack pack, long from) throws IOException {
+	long size = pack.fp.size(), off = from;
+	while(off < size) {
+	    ByteBuffer hd = ByteBuffer.allocate(3);
+	    if(!readat(pack.fp, hd, off) || (hd.get() != RECVER))
+		break;
+	    ByteBuffer rest = ByteBuffer.allocate((hd.getShort() & 0xffff) + 4);
+	    if(!readat(pack.fp, rest, off + 3))
+		break;
+	    byte[] nm = new byte[rest.remaining() - 4];
+	    rest.get(nm);
+	    int len = rest.getInt();
+	    int hlen = 7 + nm.length, dlen = Math.max(len, 0);
+	    if(off + hlen + dlen > size)
+		break;
+	    if(len < 0)
+		tomb(new String(nm, Utils.utf8), pack, hlen);
+	    else
+		put(new String(nm, Utils.utf8), new Entry(pack, off + hlen, len, hlen + dlen));
+	    off += hlen + dlen;
+	}
+	/* Drop any truncated record left by an interrupted write. */
+	if(off < size)
+	    pack.fp.truncate(off);
+	pack.size = off;
+    }
+
+    private boolean readindex() {
+	Path ipath = pj(dir, "index");
+	if(!Files.exists(ipath))
+	    return(false);
+	try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(ipath)))) {
+	    if(in.readInt() != IDXMAGIC)
+		return(false);
+	    Map<Integer, Long> sizes = new HashMap<>();
+	    for(int i = 0, n = in.readInt(); i < n; i++) {
+		int seq = in.readInt();
+		long size = in.readLong();
+		Path path = packpath(seq);
+		if(!Files.exists(path) || (Files.size(path) < size))
+		    return(false);
+		packs.put(seq, new Pack(seq, path));
+		sizes.put(seq, size);
+	    }
+	    for(int i = 0, n = in.readInt(); i < n; i++) {
+		String name = in.readUTF();
+		Pack pack = packs.get(in.readInt());
+		long off = in.readLong();
+		int len = in.readInt(), reclen = in.readInt(), first = in.readInt();
+		if(pack == null)
+		    return(false);
+		Entry ent = new Entry(pack, off, len, reclen);
+		ent.first = first;
+		put(name, ent);
+	    }
+	    for(int i = 0, n = in.readInt(); i < n; i++) {
+		String name = in.readUTF();
+		Pack pack = packs.get(in.readInt());
+		int reclen = in.readInt(), first = in.readInt(), floor = in.readInt();
+		if(pack == null)
+		    return(false);
+		tombs.put(name, new Tomb(pack, reclen, first, floor));
+		pack.live += reclen;
+	    }
+	    for(Pack pack : packs.values())
+		scan(pack, sizes.get(pack.seq));
+	    return(true);
+	} catch(IOException e) {
+	    return(false);
+	}
+    }
+
+    private void writeindex() throws IOException {
+	Path tmp = Files.createTempFile(dir, "index", ".new");
+	try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+	    out.writeInt(IDXMAGIC);
+	    out.writeInt(packs.size());
+	    for(Pack pack : packs.values()) {
+		out.writeInt(pack.seq);
+		out.writeLong(pack.size);
+	    }
+	    out.writeInt(index.size());
+	    for(Map.Entry<String, Entry> e : index.entrySet()) {
+		Entry ent = e.getValue();
+		out.writeUTF(e.getKey());
+		out.writeInt(ent.pack.seq);
+		out.writeLong(ent.off);
+		out.writeInt(ent.len);
+		out.writeInt(ent.reclen);
+		out.writeInt(ent.first);
+	    }
+	    out.writeInt(tombs.size());
+	    for(Map.Entry<String, Tomb> e : tombs.entrySet()) {
+		Tomb tomb = e.getValue();
+		out.writeUTF(e.getKey());
+		out.writeInt(tomb.pack.seq);
+		out.writeInt(tomb.reclen);
+		out.writeInt(tomb.first);
+		out.writeInt(tomb.floor);
+	    }
+	}
+	Utils.ioretry(() -> {
+		try {
+		    return(Files.move(tmp, pj(dir, "index"), StandardCopyOption.ATOMIC_MOVE));
+		} catch(AtomicMoveNotSupportedException e) {
+		    return(Files.move(tmp, pj(dir, "index"), StandardCopyOption.REPLACE_EXISTING));
+		}
+	    });
+	dirty = false;
+    }
+
+    private void open() throws IOException {
+	Set<Integer> found = new TreeSet<>();
+	try(DirectoryStream<Path> ls = Files.newDirectoryStream(dir, "data.*")) {
+	    for(Path p : ls) {
+		String sfx = p.getFileName().toString().substring(5);
+		if(Utils.strcheck(sfx, Character::isDigit))
+		    found.add(Integer.parseInt(sfx));
+	    }
+	}
+	synchronized(this) {
+	    if(!readindex()) {
+		index.clear();
+		tombs.clear();
+		for(Pack pack : packs.values())
+		    pack.fp.close();
+		packs.clear();
+		for(int seq : found) {
+		    Pack pack = new Pack(seq, packpath(seq));
+		    packs.put(seq, pack);
+		    scan(pack, 0);
+		}
+		dirty = true;
+	    }
+	    for(int seq : found) {
+		if(!packs.containsKey(seq))
+		    Files.deleteIfExists(packpath(seq));
+	    }
+	    if(!packs.isEmpty())
+		cur = packs.lastEntry().getValue();
+	    for(Pack pack : packs.values())
+		pack.sealed = (pack != cur);
+	}
+    }
+
+    private void append(String name, byte[] data, int len) throws IOException {
+	ByteBuffer head = header(name, len);
+	int hlen = head.remaining(), dlen = Math.max(len, 0);
+	synchronized(this) {
+	    if((cur == null) || (cur.size >= packsize)) {
+		if(cur != null)
+		    cur.sealed = true;
+		cur = newpack();
+	    }
+	    long off = cur.size;
+	    cur.write(head, off);
+	    if(dlen > 0)
+		cur.write(ByteBuffer.wrap(data, 0, dlen), off + hlen);
+	    cur.size = off + hlen + dlen;
+	    if(len < 0)
+		tomb(name, cur, hlen);
+	    else
+		put(name, new Entry(cur, off + hlen, len, hlen + dlen));
+	    dirty = true;
+	    notifyAll();
+	}
+    }
+
+    public OutputStream store(String name) throws IOException {
+	return(new ByteArrayOutputStream() {
+		private boolean closed = false;
+
+		public void close() throws IOException {
+		    if(closed)
+			return;
+		    closed = true;
+		    append(name, buf, count);
+		}
+	    });
+    }
+
+    public InputStream fetch(String name) throws IOException {
+	Entry ent;
+	synchronized(this) {
+	    if((ent = index.get(name)) == null)
+		throw(new FileNotFoundException(name));
+	    ent.pack.acquire();
+	}
+	try {
+	    return(new BufferStream(ent.pack.slice(ent.off, ent.len)));
+	} finally {
+	    ent.pack.release();
+	}
+    }
+
+    public void remove(String name) throws IOException {
+	synchronized(this) {
+	    if(!index.containsKey(name))
+		throw(new FileNotFoundException(name));
+	}
+	append(name, null, -1);
+    }
+
+    private void compact(Pack pack) throws IOException {
+	List<String> names = new ArrayList<>();
+	synchronized(this) {
+	    for(Map.Entry<String, Entry> e : index.entrySet()) {
+		if(e.getValue().pack == pack)
+		    names.add(e.getKey());
+	    }
+	    /* Carry tombstones still shadowing older packs forward. */
+	    for(Map.Entry<String, Tomb> e : new ArrayList<>(tombs.entrySet())) {
+		Tomb tomb = e.getValue();
+		if(tomb.pack != pack)
+		    continue;
+		if(needed(tomb)) {
+		    append(e.getKey(), null, -1);
+		} else {
+		    tombs.remove(e.getKey());
+		    pack.live -= tomb.reclen;
+		}
+	    }
+	}
+	for(String name : names) {
+	    Entry ent;
+	    synchronized(this) {
+		ent = index.get(name);
+	    }
+	    if((ent == null) || (ent.pack != pack))
+		continue;
+	    ByteBuffer data = pack.slice(ent.off, ent.len);
+	    byte[] buf = new byte[ent.len];
+	    data.get(buf);
+	    synchronized(this) {
+		/* Skip entries stored anew while copying. */
+		if(index.get(name) == ent)
+		    append(name, buf, buf.length);
+	    }
+	}
+	synchronized(this) {
+	    if(pack.live > 0)
+		return;
+	    packs.remove(pack.seq);
+	    for(Iterator<Tomb> i = tombs.values().iterator(); i.hasNext();) {
+		Tomb tomb = i.next();
+		if(!needed(tomb)) {
+		    tomb.pack.live -= tomb.reclen;
+		    i.remove();
+		}
+	    }
+	    writeindex();
+	}
+	pack.retire();
+	try {
+	    Files.deleteIfExists(pack.path);
+	} catch(IOException e) {
+	    /* Likely still mapped on Windows; an unreferenced pack is
+	     * deleted on the next start instead. */
+	}
+    }
+
+    private void compactor() {
+	try {
+	    while(true) {
+		Pack victim = null;
+		synchronized(this) {
+		    wait(10000);
+		    for(Pack pack : packs.values()) {
+			if((pack != cur) && (pack.live < pack.size / 2)) {
+			    victim = pack;
+			    break;
+			}
+		    }
+		}
+		try {
+		    if(victim != null)
+			compact(victim);
+		    synchronized(this) {
+			if(dirty)
+			    writeindex();
+		    }
+		} catch(IOException e) {
+		    new Warning(e, "could not compact pack cache " + dir).issue();
+		}
+	    }
+	} catch(InterruptedException e) {
+	}
+    }
+
+    public String toString() {
+	return("PackCache(" + id + ")");
+    }
+
+    private static final Map<URI, PackCache> current = new HashMap<>();
+    public static PackCache get(URI id) throws IOException {
+	synchronized(current) {
+	    PackCache ret = current.get(id);
+	    if(ret == null) {
+		long h = 0;
+		String nm = id.toString();
+		for(int i = 0; i < nm.length(); i++)
+		    h = (h * 31) + nm.charAt(i);
+		Path dir = pj(HashDirCache.findbase(), String.format("pack-%016x", h));
+		Files.createDirectories(dir);
+		FileChannel lockfp = Utils.ioretry(() -> FileChannel.open(pj(dir, "lock"), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE));
+		try {
+		    if(lockfp.tryLock() == null)
+			throw(new IOException("pack cache " + dir + " is in use by another client"));
+		} catch(IOException e) {
+		    lockfp.close();
+		    throw(e);
+		}
+		current.put(id, ret = new PackCache(id, dir, lockfp));
+	    }
+	    return(ret);
+	}
+    }
+
+    public static PackCache create() {
+	try {
+	    if(cachebase.get() != null)
+		return(get(cachebase.get().toURI()));
+	    if(Resource.resurl.get() != null)
+		return(get(Resource.resurl.get().toURI()));
+	    return(get(URI.create("urn:haven-cache:default")));
+	} catch(Exception e) {
+	    return(null);
+	}
+    }
+}
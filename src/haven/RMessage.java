@@ -48,6 +48,7 @@ public class RMessage extends PMessage {
     public long last = 0;
     public int retx = 0;
     public int seq;
+    public boolean acked = false;
 
     public RMessage(int type, byte[] blob, int off, int len) {
 	super(type, blob, off, len);
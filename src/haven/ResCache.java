@@ -30,13 +30,25 @@ import java.io.*;
 
 public interface ResCache {
     public static final Config.Variable<java.net.URL> cachebase = Config.Variable.propu("haven.cachebase", "");
+    public static final Config.Variable<String> cachetype = Config.Variable.prop("haven.cachetype", "hashdir");
     public OutputStream store(String name) throws IOException;
     public InputStream fetch(String name) throws IOException;
+    public default void remove(String name) throws IOException {
+	throw(new IOException("cannot remove entries from " + this));
+    }
     
     public static ResCache global = StupidJavaCodeContainer.makeglobal();
     
     public static class StupidJavaCodeContainer {
 	private static ResCache makeglobal() {
+	    if(cachetype.get().equals("pack")) {
+		PackCache pack = PackCache.create();
+		if(pack != null) {
+		    /* Keep serving entries stored before switching. */
+		    HashDirCache old = HashDirCache.create();
+		    return((old == null) ? pack : new Fallback(pack, old));
+		}
+	    }
 	    return(HashDirCache.create());
 	}
     }
@@ -83,6 +95,19 @@ public interface ResCache {
 	    return(pri.store(name));
 	}
 
+	public void remove(String name) throws IOException {
+	    boolean found = false;
+	    for(ResCache c : Utils.extend(new ResCache[] {pri}, sec)) {
+		try {
+		    c.remove(name);
+		    found = true;
+		} catch(FileNotFoundException e) {
+		}
+	    }
+	    if(!found)
+		throw(new FileNotFoundException(name));
+	}
+
 	public String toString() {
 	    return("Fllback(" + pri + " + " + java.util.Arrays.asList(sec) + ")");
 	}
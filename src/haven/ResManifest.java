@@ -0,0 +1,165 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.util.*;
+import java.io.*;
+
+/* Records which resources a session requests, and when relative to
+ * its start, so that the next start of the client can prefetch them
+ * in the same order before they are actually needed. */
+public class ResManifest {
+    public static final Config.Variable<Boolean> enabled = Config.Variable.propb("haven.resmanifest", false);
+    public static final String cachename = "tmp/resmanifest";
+    public static final double window = 120;
+    public static final int maxents = 5000;
+    private static ResManifest current = null;
+    public final Resource.Pool pool;
+    private final double start = Utils.rtime();
+    private final Map<String, Entry> seen = new LinkedHashMap<>();
+    private boolean done = false;
+
+    public static class Entry {
+	public final String name;
+	public final int ver;
+	public final double time;
+
+	public Entry(String name, int ver, double time) {
+	    this.name = name;
+	    this.ver = ver;
+	    this.time = time;
+	}
+    }
+
+    private ResManifest(Resource.Pool pool) {
+	this.pool = pool;
+    }
+
+    private void requested(String name, int ver) {
+	double t = Utils.rtime() - start;
+	boolean fin = false;
+	synchronized(this) {
+	    if(done)
+		return;
+	    if(t > window) {
+		fin = true;
+	    } else if(!seen.containsKey(name) && (seen.size() < maxents)) {
+		seen.put(name, new Entry(name, ver, t));
+	    }
+	}
+	if(fin)
+	    Defer.later(() -> {finish(); return(null);});
+    }
+
+    public void finish() {
+	List<Entry> ents;
+	synchronized(this) {
+	    if(done)
+		return;
+	    done = true;
+	    ents = new ArrayList<>(seen.values());
+	}
+	synchronized(ResManifest.class) {
+	    if(current == this)
+		current = null;
+	}
+	pool.reqhook(null);
+	if((ResCache.global == null) || ents.isEmpty())
+	    return;
+	try(Writer w = new OutputStreamWriter(ResCache.global.store(cachename), Utils.utf8)) {
+	    for(Entry ent : ents)
+		w.write(String.format("%s:%d:%.3f\n", ent.name, ent.ver, ent.time));
+	} catch(IOException e) {
+	    new Warning(e, "could not save resource manifest").issue();
+	}
+    }
+
+    public static void record(Resource.Pool pool) {
+	if(!enabled.get())
+	    return;
+	ResManifest prev, rec = new ResManifest(pool);
+	synchronized(ResManifest.class) {
+	    prev = current;
+	    current = rec;
+	}
+	if(prev != null)
+	    prev.finish();
+	pool.reqhook(rec::requested);
+    }
+
+    public static void stop() {
+	ResManifest cur;
+	synchronized(ResManifest.class) {
+	    cur = current;
+	}
+	if(cur != null)
+	    cur.finish();
+    }
+
+    public static List<Entry> load(InputStream fp) throws IOException {
+	List<Entry> ret = new ArrayList<>();
+	BufferedReader in = new BufferedReader(new InputStreamReader(fp, Utils.utf8));
+	String ln;
+	while((ln = in.readLine()) != null) {
+	    String[] parts = ln.split(":");
+	    if(parts.length != 3)
+		continue;
+	    try {
+		ret.add(new Entry(parts[0], Integer.parseInt(parts[1]), Double.parseDouble(parts[2])));
+	    } catch(NumberFormatException e) {
+		continue;
+	    }
+	}
+	ret.sort((a, b) -> Double.compare(a.time, b.time));
+	return(ret);
+    }
+
+    /* Queue the recorded resources below normal priority, so that
+     * only otherwise idle loader threads fetch them. Earlier requests
+     * are given higher priority, and equal priorities are serviced
+     * in queueing order. */
+    public static void prefetch(Resource.Pool pool) {
+	if(!enabled.get() || (ResCache.global == null))
+	    return;
+	List<Entry> ents;
+	try(InputStream fp = ResCache.global.fetch(cachename)) {
+	    ents = load(fp);
+	} catch(FileNotFoundException e) {
+	    return;
+	} catch(IOException e) {
+	    new Warning(e, "could not read resource manifest").issue();
+	    return;
+	}
+	for(Entry ent : ents) {
+	    int prio = (ent.time < 10) ? -1 : (ent.time < 30) ? -2 : -3;
+	    try {
+		pool.load(ent.name, ent.ver, prio);
+	    } catch(RuntimeException e) {
+	    }
+	}
+    }
+}
@@ -56,6 +56,8 @@ public class Resource implements Serializable {
     public static Class<Tooltip> tooltip = Tooltip.class;
     
     private Collection<Layer> layers = new LinkedList<Layer>();
+    private transient Map<Class<?>, List<Layer>> lindex = null;
+    private transient Map<Class<?>, Map<Object, Layer>> idindex = null;
     public final String name;
     public int ver;
     public ResSource source;
@@ -485,13 +487,15 @@ public class Resource implements Serializable {
     }
 
     public static class Pool {
-	public int nloaders = 2;
-	private final Collection<Loader> loaders = new LinkedList<Loader>();
-	private final List<ResSource> sources = new LinkedList<ResSource>();
+	public int nloaders = 2, ndecoders = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+	private final List<ResSource> sources = new java.util.concurrent.CopyOnWriteArrayList<ResSource>();
 	private final Map<String, Resource> cache = new CacheMap<String, Resource>();
 	private final PrioQueue<Queued> queue = new PrioQueue<Queued>();
 	private final Map<String, Queued> queued = new HashMap<String, Queued>();
+	private final Stage fetch = new Stage("Haven resource loader", queue, this::fetch, () -> nloaders);
+	private final Stage decode = new Stage("Haven resource decoder", new PrioQueue<Queued>(), this::decode, () -> ndecoders);
 	private final Pool parent;
+	private volatile BiConsumer<String, Integer> reqhook = null;
 
 	public Pool(Pool parent, ResSource... sources) {
 	    this.parent = parent;
@@ -507,6 +511,10 @@ public class Resource implements Serializable {
 	    sources.add(src);
 	}
 
+	public void reqhook(BiConsumer<String, Integer> hook) {
+	    this.reqhook = hook;
+	}
+
 	private class Queued extends Named implements Prioritized, Serializable {
 	    transient final Collection<Queued> rdep = new LinkedList<Queued>();
 	    final Waitable.Queue wq = new Waitable.Queue();
@@ -516,6 +524,9 @@ public class Resource implements Serializable {
 	    Resource res;
 	    LoadException error;
 	    boolean found = false;
+	    int srcidx = 0;
+	    transient byte[] data;
+	    transient ResSource datasrc;
 
 	    Queued(String name, int ver, int prio) {
 		super(name, ver);
@@ -568,11 +579,7 @@ public class Resource implements Serializable {
 	    private void prior(Queued prior) {
 		if((res = prior.res) == null) {
 		    error = prior.error;
-		    synchronized(queue) {
-			queue.add(this);
-			queue.notify();
-		    }
-		    ckld();
+		    fetch.add(this);
 		} else {
 		    done();
 		}
@@ -583,36 +590,64 @@ public class Resource implements Serializable {
 	    }
 	}
 
-	private void handle(Queued res) {
-	    for(ResSource src : sources) {
+	private void fail(Queued res, ResSource src, Throwable t) {
+	    if(!(t instanceof FileNotFoundException))
+		res.found = true;
+	    LoadException error;
+	    if(t instanceof LoadException)
+		error = (LoadException)t;
+	    else
+		error = new LoadException(String.format("Load error in resource %s(v%d), from %s", res.name, res.ver, src), t, null);
+	    error.src = src;
+	    if(res.error != null) {
+		error.prev = res.error;
+		error.addSuppressed(res.error);
+	    }
+	    res.error = error;
+	}
+
+	private void fetch(Queued res) {
+	    while(res.srcidx < sources.size()) {
+		ResSource src = sources.get(res.srcidx++);
 		try(InputStream in = src.get(res.name)) {
 		    res.found = true;
-		    Resource ret = new Resource(this, res.name, res.ver);
-		    ret.source = src;
-		    ret.load(in);
-		    res.res = ret;
-		    res.error = null;
-		    break;
+		    res.data = Utils.readall(in);
+		    res.datasrc = src;
 		} catch(Throwable t) {
-		    if(!(t instanceof FileNotFoundException))
-			res.found = true;
-		    LoadException error;
-		    if(t instanceof LoadException)
-			error = (LoadException)t;
-		    else
-			error = new LoadException(String.format("Load error in resource %s(v%d), from %s", res.name, res.ver, src), t, null);
-		    error.src = src;
-		    if(res.error != null) {
-			error.prev = res.error;
-			error.addSuppressed(res.error);
-		    }
-		    res.error = error;
+		    fail(res, src, t);
+		    continue;
+		}
+		decode.add(res);
+		return;
+	    }
+	    res.done();
+	}
+
+	private void decode(Queued res) {
+	    byte[] data = res.data;
+	    ResSource src = res.datasrc;
+	    res.data = null;
+	    res.datasrc = null;
+	    try {
+		Resource ret = new Resource(this, res.name, res.ver);
+		ret.source = src;
+		ret.load(new ByteArrayInputStream(data));
+		res.res = ret;
+		res.error = null;
+	    } catch(Throwable t) {
+		fail(res, src, t);
+		if(res.srcidx < sources.size()) {
+		    fetch.add(res);
+		    return;
 		}
 	    }
 	    res.done();
 	}
 
 	public Named load(String name, int ver, int prio) {
+	    BiConsumer<String, Integer> hook = reqhook;
+	    if(hook != null)
+		hook.accept(name, ver);
 	    Queued ret;
 	    synchronized(cache) {
 		Resource cur = cache.get(name);
@@ -643,6 +678,9 @@ public class Resource implements Serializable {
 			}
 			queued.remove(name);
 			queue.removeid(cq);
+			synchronized(decode.queue) {
+			    decode.queue.removeid(cq);
+			}
 		    }
 		    Queued nq = new Queued(name, ver, prio);
 		    queued.put(name, nq);
@@ -670,7 +708,7 @@ public class Resource implements Serializable {
 		    ret = nq;
 		}
 	    }
-	    ckld();
+	    fetch.ck();
 	    return(ret);
 	}
 
@@ -681,42 +719,49 @@ public class Resource implements Serializable {
 	    return(load(String.format("dyn/%x", id), 1));
 	}
 
-	private void ckld() {
-	    int qsz;
-	    synchronized(queue) {
-		qsz = queue.size();
+	/* Resource loading is split into an I/O stage, which fetches
+	 * the raw data from the sources, and a CPU stage, which decodes
+	 * and initializes the layers. Each stage has its own queue and
+	 * its own concurrency limit, so that slow fetches do not hold
+	 * up decoding of data that is already available. */
+	private class Stage implements Runnable {
+	    final String name;
+	    final PrioQueue<Queued> queue;
+	    final Consumer<Queued> handler;
+	    final IntSupplier limit;
+	    int nthreads = 0;
+
+	    Stage(String name, PrioQueue<Queued> queue, Consumer<Queued> handler, IntSupplier limit) {
+		this.name = name;
+		this.queue = queue;
+		this.handler = handler;
+		this.limit = limit;
 	    }
-	    synchronized(loaders) {
-		while(loaders.size() < Math.min(nloaders, qsz)) {
-		    final Loader n = new Loader();
-		    Thread th = AccessController.doPrivileged(new PrivilegedAction<Thread>() {
-			    public Thread run() {
-				return(new HackThread(loadergroup, n, "Haven resource loader"));
-			    }
-			});
-		    th.setDaemon(true);
-		    th.start();
-		    while(!n.added) {
-			try {
-			    loaders.wait();
-			} catch(InterruptedException e) {
-			    Thread.currentThread().interrupt();
-			    return;
-			}
-		    }
+
+	    void add(Queued res) {
+		synchronized(queue) {
+		    queue.add(res);
+		    queue.notify();
 		}
+		ck();
 	    }
-	}
 
-	public class Loader implements Runnable {
-	    private boolean added = false;
+	    void ck() {
+		synchronized(queue) {
+		    while(nthreads < Math.min(limit.getAsInt(), queue.size())) {
+			Thread th = AccessController.doPrivileged(new PrivilegedAction<Thread>() {
+				public Thread run() {
+				    return(new HackThread(loadergroup, Stage.this, name));
+				}
+			    });
+			th.setDaemon(true);
+			th.start();
+			nthreads++;
+		    }
+		}
+	    }
 
 	    public void run() {
-		synchronized(loaders) {
-		    loaders.add(this);
-		    added = true;
-		    loaders.notifyAll();
-		}
 		boolean intd = false;
 		try {
 		    while(true) {
@@ -730,27 +775,40 @@ public class Resource implements Serializable {
 				    return;
 			    }
 			}
-			handle(cur);
+			handler.accept(cur);
 			cur = null;
 		    }
 		} catch(InterruptedException e) {
 		    intd = true;
 		} finally {
-		    synchronized(loaders) {
-			loaders.remove(this);
+		    synchronized(queue) {
+			nthreads--;
 		    }
 		    if(!intd)
-			ckld();
+			ck();
+		}
+	    }
+
+	    int depth() {
+		synchronized(queue) {
+		    return(queue.size());
 		}
 	    }
 	}
 
 	public int qdepth() {
 	    int ret = (parent == null)?0:parent.qdepth();
-	    synchronized(queue) {
-		ret += queue.size();
-	    }
-	    return(ret);
+	    return(ret + fetch.depth() + decode.depth());
+	}
+
+	public int fqdepth() {
+	    int ret = (parent == null)?0:parent.fqdepth();
+	    return(ret + fetch.depth());
+	}
+
+	public int dqdepth() {
+	    int ret = (parent == null)?0:parent.dqdepth();
+	    return(ret + decode.depth());
 	}
 
 	public int numloaded() {
@@ -1035,6 +1093,7 @@ public class Resource implements Serializable {
 	public transient BufferedImage img;
 	private transient BufferedImage scaled;
 	private transient Tex tex, rawtex;
+	private transient volatile int[] argb;
 	public final int z, subz;
 	public final boolean nooff;
 	public final int id;
@@ -1073,10 +1132,21 @@ public class Resource implements Serializable {
 		}
 	    }
 	    this.kvdata = kvdata.isEmpty() ? Collections.emptyMap() : kvdata;
-	    try {
-		img = readimage(new MessageInputStream(buf));
-	    } catch(IOException e) {
-		throw(new LoadException(e, Resource.this));
+	    byte[] enc = buf.bytes();
+	    ImageCache.Decoded cached = null;
+	    String ckey = null;
+	    if(ImageCache.enabled.get()) {
+		ckey = ImageCache.key(Resource.this, enc);
+		cached = ImageCache.fetch(ckey);
+	    }
+	    if(cached != null) {
+		img = cached.img;
+	    } else {
+		try {
+		    img = readimage(new ByteArrayInputStream(enc));
+		} catch(IOException e) {
+		    throw(new LoadException(e, Resource.this));
+		}
 	    }
 	    sz = Utils.imgsz(img);
 	    if(tsz == null)
@@ -1089,7 +1159,13 @@ public class Resource implements Serializable {
 		 * area. */
 		so = new Coord(Math.min(so.x, tsz.x - ssz.x), Math.min(so.y, sz.y - ssz.y));
 	    }
-	    scaled = PUtils.uiscale(img, ssz);
+	    if((cached != null) && Utils.imgsz(cached.scaled).equals(ssz)) {
+		scaled = cached.scaled;
+	    } else {
+		scaled = PUtils.uiscale(img, ssz);
+		if(ckey != null)
+		    ImageCache.store(ckey, img, scaled);
+	    }
 	}
 
 	public BufferedImage scaled() {
@@ -1111,6 +1187,18 @@ public class Resource implements Serializable {
 	    return(rawtex);
 	}
 
+	/* The unscaled image as packed ARGB pixels, row by row, kept
+	 * for as long as the image itself. */
+	public int[] argb() {
+	    if(argb == null) {
+		synchronized(this) {
+		    if(argb == null)
+			argb = img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+		}
+	    }
+	    return(argb);
+	}
+
 	public Tex tex() {
 	    if(tex == null) {
 		synchronized(this) {
@@ -1829,13 +1917,52 @@ public class Resource implements Serializable {
 	}
     }
 
+    private static final ClassValue<Class<?>[]> lsupers = new ClassValue<Class<?>[]>() {
+	    private void add(Collection<Class<?>> buf, Class<?> cl) {
+		if((cl == null) || !buf.add(cl))
+		    return;
+		add(buf, cl.getSuperclass());
+		for(Class<?> iface : cl.getInterfaces())
+		    add(buf, iface);
+	    }
+
+	    protected Class<?>[] computeValue(Class<?> cl) {
+		Collection<Class<?>> buf = new LinkedHashSet<>();
+		add(buf, cl);
+		return(buf.toArray(new Class<?>[0]));
+	    }
+	};
+
+    /* Index the layers by every class and interface they are
+     * instances of, so that lookups by class need neither scan the
+     * layer list nor allocate. */
+    private void indexlayers() {
+	Map<Class<?>, List<Layer>> lindex = new HashMap<>();
+	Map<Class<?>, Map<Object, Layer>> idindex = new HashMap<>();
+	for(Layer l : layers) {
+	    for(Class<?> cl : lsupers.get(l.getClass())) {
+		lindex.computeIfAbsent(cl, k -> new ArrayList<>(1)).add(l);
+		if(l instanceof IDLayer)
+		    idindex.computeIfAbsent(cl, k -> new HashMap<>()).putIfAbsent(((IDLayer<?>)l).layerid(), l);
+	    }
+	}
+	for(Map.Entry<Class<?>, List<Layer>> e : lindex.entrySet())
+	    e.setValue(Collections.unmodifiableList(e.getValue()));
+	this.idindex = idindex;
+	this.lindex = lindex;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <L> List<L> indexed(Class<L> cl) {
+	if(lindex == null)
+	    indexlayers();
+	List<Layer> ret = lindex.get(cl);
+	return((ret == null) ? Collections.emptyList() : (List<L>)ret);
+    }
+
     public <L extends Layer> Collection<L> layers(final Class<L> cl) {
 	used = true;
-	return(new DefaultCollection<L>() {
-		public Iterator<L> iterator() {
-		    return(Utils.filter(layers.iterator(), cl));
-		}
-	    });
+	return(indexed(cl));
     }
 
     public static class NoSuchLayerException extends NoSuchElementException {
@@ -1846,11 +1973,8 @@ public class Resource implements Serializable {
 
     public <L extends Layer> L layer(Class<L> cl) {
 	used = true;
-	for(Layer l : layers) {
-	    if(cl.isInstance(l))
-		return(cl.cast(l));
-	}
-	return(null);
+	List<L> ls = indexed(cl);
+	return(ls.isEmpty() ? null : ls.get(0));
     }
     public <L extends Layer> L flayer(Class<L> cl) {
 	L l = layer(cl);
@@ -1860,38 +1984,31 @@ public class Resource implements Serializable {
 
     public <L> Collection<L> layers(Class<L> cl, Predicate<? super L> sel) {
 	used = true;
+	List<L> ls = indexed(cl);
 	if(sel == null)
-	    sel = l -> true;
-	Predicate<? super L> dsel = sel;
+	    return(ls);
 	return(new DefaultCollection<L>() {
 		public Iterator<L> iterator() {
-		    return(Utils.filter(Utils.filter(layers.iterator(), cl), dsel));
+		    return(Utils.filter(ls.iterator(), sel));
 		}
 	    });
     }
 
     public <L> L layer(Class<L> cl, Predicate<? super L> sel) {
 	used = true;
-	for(Layer l : layers) {
-	    if(cl.isInstance(l)) {
-		L lc = cl.cast(l);
-		if((sel == null) || sel.test(lc))
-		    return(lc);
-	    }
+	for(L l : indexed(cl)) {
+	    if((sel == null) || sel.test(l))
+		return(l);
 	}
 	return(null);
     }
 
     public <I, L extends IDLayer<I>> L layer(Class<L> cl, I id) {
 	used = true;
-	for(Layer l : layers) {
-	    if(cl.isInstance(l)) {
-		L ll = cl.cast(l);
-		if(ll.layerid().equals(id))
-		    return(ll);
-	    }
-	}
-	return(null);
+	if(idindex == null)
+	    indexlayers();
+	Map<Object, Layer> ids = idindex.get(cl);
+	return((ids == null) ? null : cl.cast(ids.get(id)));
     }
     public <I, L extends IDLayer<I>> L flayer(Class<L> cl, I id) {
 	L l = layer(cl, id);
@@ -1933,6 +2050,7 @@ public class Resource implements Serializable {
 	this.layers = layers;
 	for(Layer l : layers)
 	    l.init();
+	indexlayers();
 	used = false;
     }
 
@@ -30,6 +30,8 @@ import java.io.IOException;
 import java.lang.ref.Reference;
 import java.lang.ref.WeakReference;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.util.*;
 import java.util.function.*;
 import java.io.*;
@@ -64,7 +66,12 @@ public class Session implements Resource.Resolver {
 	"gfx/hud/chr/custom/asoft"
     };
 
-    DatagramSocket sk;
+    volatile DatagramChannel sk;
+    private SocketAddress local;
+    private volatile boolean closing = false;
+    private boolean senderr = false;
+    final NetLog.Reader replay;
+    NetLog.Writer netlog = null;
     SocketAddress server;
     Thread rworker, sworker;
     Object[] args;
@@ -77,7 +84,13 @@ public class Session implements Resource.Resolver {
     LinkedList<PMessage> uimsgs = new LinkedList<PMessage>();
     Map<Integer, PMessage> waiting = new TreeMap<Integer, PMessage>();
     LinkedList<RMessage> pending = new LinkedList<RMessage>();
-    Map<Long, ObjAck> objacks = new TreeMap<Long, ObjAck>();
+    final ObjAckTable objacks = new ObjAckTable();
+    /* Unacknowledged messages, keyed on when they are next due to
+     * be sent, so that the writer only needs to look at those that
+     * actually are. */
+    final TimerWheel<RMessage> retxq = new TimerWheel<>(5, 512, System.currentTimeMillis());
+    private final ByteBuffer sbuf = ByteBuffer.allocate(65536);
+    private static final byte[] beatmsg = {MSG_BEAT};
     String username;
     byte[] cookie;
     final Map<Integer, CachedRes> rescache = new TreeMap<Integer, CachedRes>();
@@ -269,24 +282,12 @@ public class Session implements Resource.Resolver {
 	return id;
     }
 
-    private class ObjAck {
-	long id;
-	int frame;
-	long recv;
-	long sent;
-		
-	public ObjAck(long id, int frame, long recv) {
-	    this.id = id;
-	    this.frame = frame;
-	    this.recv = recv;
-	    this.sent = 0;
-	}
-    }
-
     private class RWorker extends HackThread {
 	boolean alive;
 	int fragtype = -1;
 	byte[] fragbuf = null;
+	long[] ackids = new long[64];
+	int[] ackframes = new int[64];
 		
 	public RWorker() {
 	    super("Session reader");
@@ -297,57 +298,32 @@ public class Session implements Resource.Resolver {
 	    synchronized(pending) {
 		for(ListIterator<RMessage> i = pending.listIterator(); i.hasNext(); ) {
 		    RMessage msg = i.next();
-		    if(msg.seq <= seq)
+		    if(msg.seq <= seq) {
+			msg.acked = true;
 			i.remove();
+		    }
 		}
 	    }
 	}
 		
-	private void getobjdata(Message msg) {
+	private void getobjdata(MessageBuf msg) {
 	    OCache oc = glob.oc;
+	    int nack = 0;
 	    while(!msg.eom()) {
-		int fl = msg.uint8();
-		long id = msg.uint32();
-		int frame = msg.int32();
-		OCache.ObjDelta delta = new OCache.ObjDelta(fl, id, frame);
-		while(true) {
-		    int afl = 0, len, type = msg.uint8();
-		    if(type == OCache.OD_END)
-			break;
-		    if((type & 0x80) == 0) {
-			len = (type & 0x78) >> 3;
-			if(len > 0)
-			    len++;
-			type = OCache.compodmap[type & 0x7];
-		    } else {
-			type = type & 0x7f;
-			if(((afl = msg.uint8()) & 0x80) == 0) {
-			    len = afl & 0x7f;
-			    afl = 0;
-			} else {
-			    len = msg.uint16();
-			}
-		    }
-		    PMessage attr = new PMessage(type, msg, len);
-		    if(type == OCache.OD_REM)
-			delta.rem = true;
-		    else
-			delta.attrs.add(attr);
-		}
+		OCache.ObjDelta delta = OCache.ObjDelta.read(msg);
 		oc.receive(delta);
-		synchronized(objacks) {
-		    if(objacks.containsKey(id)) {
-			ObjAck a = objacks.get(id);
-			if(frame > a.frame)
-			    a.frame = frame;
-			a.recv = System.currentTimeMillis();
-		    } else {
-			objacks.put(id, new ObjAck(id, frame, System.currentTimeMillis()));
-		    }
+		if(nack >= ackids.length) {
+		    ackids = Utils.extend(ackids, ackids.length * 2);
+		    ackframes = Utils.extend(ackframes, ackframes.length * 2);
 		}
+		ackids[nack] = delta.id;
+		ackframes[nack] = delta.frame;
+		nack++;
 	    }
-	    synchronized(sworker) {
-		sworker.notifyAll();
+	    if(objacks.got(ackids, ackframes, nack, System.currentTimeMillis())) {
+		synchronized(sworker) {
+		    sworker.notifyAll();
+		}
 	    }
 	}
 
@@ -445,98 +421,163 @@ public class Session implements Resource.Resolver {
 	public void run() {
 	    try {
 		alive = true;
-		try {
-		    sk.setSoTimeout(1000);
-		} catch(SocketException e) {
-		    throw(new RuntimeException(e));
+		if(replay != null)
+		    replay();
+		else
+		    receive();
+	    } finally {
+		if(netlog != null)
+		    netlog.close();
+		synchronized(Session.this) {
+		    state = "dead";
+		    Session.this.notifyAll();
 		}
+	    }
+	}
+
+	private void receive() {
+	    Selector sel;
+	    DatagramChannel ch = sk;
+	    try {
+		sel = Selector.open();
+		ch.register(sel, SelectionKey.OP_READ);
+	    } catch(IOException e) {
+		throw(new RuntimeException(e));
+	    }
+	    ByteBuffer rbuf = ByteBuffer.allocate(65536);
+	    try {
 		while(alive) {
-		    DatagramPacket p = new DatagramPacket(new byte[65536], 65536);
+		    SocketAddress from;
 		    try {
-			sk.receive(p);
-		    } catch(java.nio.channels.ClosedByInterruptException e) {
-			/* Except apparently Sun's J2SE doesn't throw this when interrupted :P*/
-			break;
-		    } catch(SocketTimeoutException e) {
+			rbuf.clear();
+			if((from = ch.receive(rbuf)) == null) {
+			    sel.select(1000);
+			    sel.selectedKeys().clear();
+			    continue;
+			}
+		    } catch(ClosedChannelException e) {
+			/* An interrupted sender closes the channel while
+			 * holding sbuf, and reopens it before letting go. */
+			synchronized(sbuf) {
+			    if(!alive || (sk == ch))
+				break;
+			    ch = sk;
+			}
+			try {
+			    ch.register(sel, SelectionKey.OP_READ);
+			} catch(IOException e2) {
+			    throw(new RuntimeException(e2));
+			}
 			continue;
 		    } catch(IOException e) {
 			throw(new RuntimeException(e));
 		    }
-		    if(!p.getSocketAddress().equals(server))
+		    if(!from.equals(server) || (rbuf.position() < 1))
 			continue;
-		    PMessage msg = new PMessage(p.getData()[0], p.getData(), 1, p.getLength() - 1);
-		    if(msg.type == MSG_SESS) {
-			if(state == "conn") {
-			    int error = msg.uint8();
-			    synchronized(Session.this) {
-				if(error == 0) {
-				    state = "";
-				} else {
-				    connfailed = error;
-				    switch(connfailed) {
-				    case SESSERR_AUTH:
-					connerror = "Invalid authentication token";
-					break;
-				    case SESSERR_BUSY:
-					connerror = "Already logged in";
-					break;
-				    case SESSERR_CONN:
-					connerror = "Could not connect to server";
-					break;
-				    case SESSERR_PVER:
-					connerror = "This client is too old";
-					break;
-				    case SESSERR_EXPR:
-					connerror = "Authentication token expired";
-					break;
-				    case SESSERR_MESG:
-					connerror = msg.string();
-					break;
-				    default:
-					connerror = "Connection failed";
-				    }
-				    Session.this.close();
-				}
-				Session.this.notifyAll();
-			    }
-			}
+		    if(netlog != null)
+			netlog.write(false, rbuf.array(), 0, rbuf.position());
+		    handle(Arrays.copyOf(rbuf.array(), rbuf.position()));
+		}
+	    } finally {
+		try {
+		    sel.close();
+		    synchronized(sbuf) {
+			sk.close();
 		    }
-		    if(state != "conn") {
-			if(msg.type == MSG_SESS) {
-			} else if(msg.type == MSG_REL) {
-			    int seq = msg.uint16();
-			    while(!msg.eom()) {
-				int type = msg.uint8();
-				if((type & 0x80) != 0) {
-				    type &= 0x7f;
-				    int len = msg.uint16();
-				    getrel(seq, new PMessage(type, msg.bytes(len)));
-				} else {
-				    getrel(seq, new PMessage(type, msg.bytes()));
-				}
-				seq++;
-			    }
-			} else if(msg.type == MSG_ACK) {
-			    gotack(msg.uint16());
-			} else if(msg.type == MSG_MAPDATA) {
-			    glob.map.mapdata(msg);
-			} else if(msg.type == MSG_OBJDATA) {
-			    getobjdata(msg);
-			} else if(msg.type == MSG_CLOSE) {
-			    synchronized(Session.this) {
-				state = "fin";
-				Session.this.notifyAll();
+		} catch(IOException e) {
+		}
+	    }
+	}
+
+	/* Feeds the received datagrams of a recording through the
+	 * normal handling as fast as possible, and then waits for the
+	 * UI to consume what it was sent. */
+	private void replay() {
+	    try {
+		for(NetLog.Packet p; alive && ((p = replay.next()) != null);) {
+		    if(!p.out && (p.data.length > 0))
+			handle(p.data);
+		}
+		while(alive) {
+		    synchronized(uimsgs) {
+			if(uimsgs.isEmpty())
+			    break;
+		    }
+		    Thread.sleep(10);
+		}
+	    } catch(InterruptedException e) {
+	    } finally {
+		replay.close();
+	    }
+	}
+
+	private void handle(byte[] data) {
+	    PMessage msg = new PMessage(data[0], data, 1, data.length - 1);
+	    if(msg.type == MSG_SESS) {
+		if(state == "conn") {
+		    int error = msg.uint8();
+		    synchronized(Session.this) {
+			if(error == 0) {
+			    state = "";
+			} else {
+			    connfailed = error;
+			    switch(connfailed) {
+			    case SESSERR_AUTH:
+				connerror = "Invalid authentication token";
+				break;
+			    case SESSERR_BUSY:
+				connerror = "Already logged in";
+				break;
+			    case SESSERR_CONN:
+				connerror = "Could not connect to server";
+				break;
+			    case SESSERR_PVER:
+				connerror = "This client is too old";
+				break;
+			    case SESSERR_EXPR:
+				connerror = "Authentication token expired";
+				break;
+			    case SESSERR_MESG:
+				connerror = msg.string();
+				break;
+			    default:
+				connerror = "Connection failed";
 			    }
 			    Session.this.close();
-			} else {
-			    throw(new MessageException("Unknown message type: " + msg.type, msg));
 			}
+			Session.this.notifyAll();
 		    }
 		}
-	    } finally {
-		synchronized(Session.this) {
-		    state = "dead";
-		    Session.this.notifyAll();
+	    }
+	    if(state != "conn") {
+		if(msg.type == MSG_SESS) {
+		} else if(msg.type == MSG_REL) {
+		    int seq = msg.uint16();
+		    while(!msg.eom()) {
+			int type = msg.uint8();
+			if((type & 0x80) != 0) {
+			    type &= 0x7f;
+			    int len = msg.uint16();
+			    getrel(seq, PMessage.slice(type, msg, len));
+			} else {
+			    getrel(seq, PMessage.slice(type, msg, msg.rem()));
+			}
+			seq++;
+		    }
+		} else if(msg.type == MSG_ACK) {
+		    gotack(msg.uint16());
+		} else if(msg.type == MSG_MAPDATA) {
+		    glob.map.mapdata(msg);
+		} else if(msg.type == MSG_OBJDATA) {
+		    getobjdata(msg);
+		} else if(msg.type == MSG_CLOSE) {
+		    synchronized(Session.this) {
+			state = "fin";
+			Session.this.notifyAll();
+		    }
+		    Session.this.close();
+		} else {
+		    throw(new MessageException("Unknown message type: " + msg.type, msg));
 		}
 	    }
 	}
@@ -547,6 +588,19 @@ public class Session implements Resource.Resolver {
 	}
     }
 
+    private static int txtime(int retx) {
+	if(retx == 0)
+	    return(0);
+	else if(retx == 1)
+	    return(80);
+	else if(retx < 4)
+	    return(200);
+	else if(retx < 10)
+	    return(620);
+	else
+	    return(2000);
+    }
+
     private class SWorker extends HackThread {
 		
 	public SWorker() {
@@ -556,136 +610,11 @@ public class Session implements Resource.Resolver {
 		
 	public void run() {
 	    try {
-		long to, last = 0, retries = 0;
-		while(true) {
-					
-		    long now = System.currentTimeMillis();
-		    if(state == "conn") {
-			if(now - last > 2000) {
-			    if(++retries > 5) {
-				synchronized(Session.this) {
-				    connfailed = SESSERR_CONN;
-				    connerror = "Could not connect to server";
-				    Session.this.notifyAll();
-				    return;
-				}
-			    }
-			    String protocol = "Hafen";
-			    if(!Config.confid.equals(""))
-				protocol += "/" + Config.confid;
-			    PMessage msg = new PMessage(MSG_SESS);
-			    msg.adduint16(2);
-			    msg.addstring(protocol);
-			    msg.adduint16(PVER);
-			    msg.addstring(username);
-			    msg.adduint16(cookie.length);
-			    msg.addbytes(cookie);
-			    msg.addlist(args);
-			    sendmsg(msg);
-			    last = now;
-			}
-			Thread.sleep(100);
-		    } else {
-			to = 5000;
-			synchronized(pending) {
-			    if(pending.size() > 0)
-				to = 60;
-			}
-			synchronized(objacks) {
-			    if((objacks.size() > 0) && (to > 120))
-				to = 200;
-			}
-			synchronized(this) {
-			    if(acktime > 0)
-				to = acktime + ackthresh - now;
-			    if(to > 0)
-				this.wait(to);
-			}
-			now = System.currentTimeMillis();
-			boolean beat = true;
-			/*
-			  if((closing != -1) && (now - closing > 500)) {
-			  Message cm = new Message(MSG_CLOSE);
-			  sendmsg(cm);
-			  closing = now;
-			  if(++ctries > 5)
-			  getThreadGroup().interrupt();
-			  }
-			*/
-			synchronized(pending) {
-			    if(pending.size() > 0) {
-				for(RMessage msg : pending) {
-				    int txtime;
-				    if(msg.retx == 0)
-					txtime = 0;
-				    else if(msg.retx == 1)
-					txtime = 80;
-				    else if(msg.retx < 4)
-					txtime = 200;
-				    else if(msg.retx < 10)
-					txtime = 620;
-				    else
-					txtime = 2000;
-				    if(now - msg.last > txtime) { /* XXX */
-					msg.last = now;
-					msg.retx++;
-					PMessage rmsg = new PMessage(MSG_REL);
-					rmsg.adduint16(msg.seq);
-					rmsg.adduint8(msg.type);
-					rmsg.addbytes(msg.fin());
-					sendmsg(rmsg);
-				    }
-				}
-				beat = false;
-			    }
-			}
-			synchronized(objacks) {
-			    PMessage msg = null;
-			    for(Iterator<ObjAck> i = objacks.values().iterator(); i.hasNext();) {
-				ObjAck a = i.next();
-				boolean send = false, del = false;
-				if(now - a.sent > 200)
-				    send = true;
-				if(now - a.recv > 120)
-				    send = del = true;
-				if(send) {
-				    if(msg == null) {
-					msg = new PMessage(MSG_OBJACK);
-				    } else if(msg.size() > 1000 - 8) {
-					sendmsg(msg);
-					beat = false;
-					msg = new PMessage(MSG_OBJACK);
-				    }
-				    msg.adduint32(a.id);
-				    msg.addint32(a.frame);
-				    a.sent = now;
-				}
-				if(del)
-				    i.remove();
-			    }
-			    if(msg != null) {
-				sendmsg(msg);
-				beat = false;
-			    }
-			}
-			synchronized(this) {
-			    if((acktime > 0) && (now - acktime >= ackthresh)) {
-				byte[] msg = {MSG_ACK, 0, 0};
-				Utils.uint16e(ackseq, msg, 1);
-				sendmsg(msg);
-				acktime = -1;
-				beat = false;
-			    }
-			}
-			if(beat) {
-			    if(now - last > 5000) {
-				sendmsg(new byte[] {MSG_BEAT});
-				last = now;
-			    }
-			}
-		    }
+		try {
+		    if(!loop())
+			return;
+		} catch(InterruptedException e) {
 		}
-	    } catch(InterruptedException e) {
 		for(int i = 0; i < 5; i++) {
 		    sendmsg(new PMessage(MSG_CLOSE));
 		    long f = System.currentTimeMillis();
@@ -707,19 +636,136 @@ public class Session implements Resource.Resolver {
 		rworker.interrupt();
 	    }
 	}
+
+	/* Returns true when the session is closed, after which it is
+	 * closed with the server, or false if it never connected. */
+	private boolean loop() throws InterruptedException {
+	    long to, last = 0, retries = 0;
+	    while(!closing) {
+					
+		long now = System.currentTimeMillis();
+		if(state == "conn") {
+		    if(now - last > 2000) {
+			if(++retries > 5) {
+			    synchronized(Session.this) {
+				connfailed = SESSERR_CONN;
+				connerror = "Could not connect to server";
+				Session.this.notifyAll();
+				return(false);
+			    }
+			}
+			String protocol = "Hafen";
+			if(!Config.confid.equals(""))
+			    protocol += "/" + Config.confid;
+			PMessage msg = new PMessage(MSG_SESS);
+			msg.adduint16(2);
+			msg.addstring(protocol);
+			msg.adduint16(PVER);
+			msg.addstring(username);
+			msg.adduint16(cookie.length);
+			msg.addbytes(cookie);
+			msg.addlist(args);
+			sendmsg(msg);
+			last = now;
+		    }
+		    synchronized(this) {
+			if(!closing)
+			    this.wait(100);
+		    }
+		} else {
+		    synchronized(this) {
+			long due = now + 5000;
+			long rnext = retxq.next(), anext = objacks.next();
+			if(rnext >= 0)
+			    due = Math.min(due, rnext);
+			if(anext >= 0)
+			    due = Math.min(due, anext);
+			if(acktime > 0)
+			    due = Math.min(due, acktime + ackthresh);
+			to = due - now;
+			if((to > 0) && !closing)
+			    this.wait(to);
+		    }
+		    now = System.currentTimeMillis();
+		    boolean beat = true;
+		    /*
+		      if((closing != -1) && (now - closing > 500)) {
+		      Message cm = new Message(MSG_CLOSE);
+		      sendmsg(cm);
+		      closing = now;
+		      if(++ctries > 5)
+		      getThreadGroup().interrupt();
+		      }
+		    */
+		    for(RMessage msg; (msg = retxq.poll(now)) != null;) {
+			synchronized(pending) {
+			    if(msg.acked)
+				continue;
+			}
+			msg.last = now;
+			msg.retx++;
+			sendrel(msg);
+			retxq.schedule(msg, now + txtime(msg.retx) + 1);
+		    }
+		    synchronized(pending) {
+			if(pending.size() > 0)
+			    beat = false;
+		    }
+		    int nack = objacks.collect(now);
+		    for(int i = 0; i < nack; i += 125) {
+			synchronized(sbuf) {
+			    byte[] buf = sbuf.array();
+			    int n = Math.min(nack - i, 125);
+			    buf[0] = MSG_OBJACK;
+			    for(int o = 0; o < n; o++) {
+				Utils.uint32e(objacks.ackids[i + o], buf, 1 + (o * 8));
+				Utils.int32e(objacks.ackframes[i + o], buf, 5 + (o * 8));
+			    }
+			    transmit(1 + (n * 8));
+			}
+			beat = false;
+		    }
+		    synchronized(this) {
+			if((acktime > 0) && (now - acktime >= ackthresh)) {
+			    synchronized(sbuf) {
+				byte[] buf = sbuf.array();
+				buf[0] = MSG_ACK;
+				Utils.uint16e(ackseq, buf, 1);
+				transmit(3);
+			    }
+			    acktime = -1;
+			    beat = false;
+			}
+		    }
+		    if(beat) {
+			if(now - last > 5000) {
+			    sendmsg(beatmsg);
+			    last = now;
+			}
+		    }
+		}
+	    }
+	    return(true);
+	}
     }
 
-    public Session(SocketAddress server, String username, byte[] cookie, Object... args) {
+    private Session(SocketAddress server, NetLog.Reader replay, String username, byte[] cookie, Object[] args) {
 	this.server = server;
+	this.replay = replay;
 	this.username = username;
 	this.cookie = cookie;
 	this.args = args;
 	glob = new Glob(this);
 	character = new CharacterInfo();
-	try {
-	    sk = new DatagramSocket();
-	} catch(SocketException e) {
-	    throw(new RuntimeException(e));
+	if(replay == null) {
+	    try {
+		sk = open(null);
+		local = sk.getLocalAddress();
+	    } catch(IOException e) {
+		throw(new RuntimeException(e));
+	    }
+	    if(NetLog.path.get() != null)
+		netlog = NetLog.record(NetLog.path.get());
 	}
 	rworker = new RWorker();
 	rworker.start();
@@ -728,6 +774,17 @@ public class Session implements Resource.Resolver {
 
 	Arrays.stream(LOCAL_CACHED).forEach(this::cacheres);
 	Config.setUserName(username);
+	ResManifest.record(Resource.remote());
+    }
+
+    public Session(SocketAddress server, String username, byte[] cookie, Object... args) {
+	this(server, null, username, cookie, args);
+    }
+
+    /* Replays a recorded session instead of connecting to a server;
+     * nothing is sent anywhere. */
+    public Session(NetLog.Reader replay, String username) {
+	this(null, replay, username, new byte[0], new Object[0]);
     }
 
     private void sendack(int seq) {
@@ -739,8 +796,19 @@ public class Session implements Resource.Resolver {
 	}
     }
 
+    /* The session writer is not interrupted, since that would close
+     * the channel under any send it is doing, and it still has to
+     * tell the server that the session is closing. */
     public void close() {
-	sworker.interrupt();
+	ResManifest.stop();
+	synchronized(sworker) {
+	    closing = true;
+	    sworker.notifyAll();
+	}
+    }
+
+    public String stats() {
+	return(String.format("R %d, A %s", retxq.size(), objacks.stats()));
     }
 
     public synchronized boolean alive() {
@@ -754,6 +822,7 @@ public class Session implements Resource.Resolver {
 	synchronized(pending) {
 	    pending.add(msg);
 	}
+	retxq.schedule(msg, System.currentTimeMillis());
 	synchronized(sworker) {
 	    sworker.notify();
 	}
@@ -767,17 +836,78 @@ public class Session implements Resource.Resolver {
 	}
     }
 
+    /* Messages are encoded straight into the shared send buffer,
+     * which must be held while doing so. */
+    private void transmit(int len) {
+	/* The session request carries the login cookie, and replay
+	 * needs none of the outbound traffic anyway. */
+	if((netlog != null) && (sbuf.get(0) != MSG_SESS))
+	    netlog.write(true, sbuf.array(), 0, len);
+	if(sk == null)
+	    return;
+	/* A pending interrupt would close the channel on entry. */
+	boolean intr = Thread.interrupted();
+	try {
+	    for(int retry = 0; true; retry++) {
+		DatagramChannel ch = sk;
+		sbuf.clear();
+		sbuf.limit(len);
+		try {
+		    ch.send(sbuf, server);
+		    senderr = false;
+		    break;
+		} catch(ClosedByInterruptException e) {
+		    intr |= Thread.interrupted();
+		    if(retry > 0)
+			throw(e);
+		    sk = open(local);
+		}
+	    }
+	} catch(ClosedByInterruptException e) {
+	    new Warning(e, "could not reopen channel to server").issue();
+	} catch(ClosedChannelException e) {
+	    /* The receiver has closed the channel with the session. */
+	} catch(IOException e) {
+	    if(!senderr)
+		new Warning(e, "could not send to server").issue();
+	    senderr = true;
+	} finally {
+	    if(intr)
+		Thread.currentThread().interrupt();
+	}
+    }
+
+    private static DatagramChannel open(SocketAddress local) throws IOException {
+	DatagramChannel ch = DatagramChannel.open();
+	ch.configureBlocking(false);
+	ch.bind(local);
+	return(ch);
+    }
+
+    private void sendrel(RMessage msg) {
+	synchronized(sbuf) {
+	    byte[] buf = sbuf.array();
+	    buf[0] = MSG_REL;
+	    Utils.uint16e(msg.seq, buf, 1);
+	    buf[3] = (byte)msg.type;
+	    msg.fin(buf, 4);
+	    transmit(Math.min(msg.size() + 4, buf.length));
+	}
+    }
+
     public void sendmsg(PMessage msg) {
-	byte[] buf = new byte[msg.size() + 1];
-	buf[0] = (byte)msg.type;
-	msg.fin(buf, 1);
-	sendmsg(buf);
+	synchronized(sbuf) {
+	    byte[] buf = sbuf.array();
+	    buf[0] = (byte)msg.type;
+	    msg.fin(buf, 1);
+	    transmit(Math.min(msg.size() + 1, buf.length));
+	}
     }
 
     public void sendmsg(byte[] msg) {
-	try {
-	    sk.send(new DatagramPacket(msg, msg.length, server));
-	} catch(IOException e) {
+	synchronized(sbuf) {
+	    System.arraycopy(msg, 0, sbuf.array(), 0, msg.length);
+	    transmit(msg.length);
 	}
     }
 }
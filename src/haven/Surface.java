@@ -30,7 +30,10 @@ import java.util.*;
 
 public class Surface {
     private List<Vertex> v = new ArrayList<Vertex>();
-    private Collection<Face> f = new ArrayList<Face>();
+    /* Faces are kept only as the indices of their vertices, in the
+     * order their corners' normals are computed in. */
+    private int[] fi = new int[48];
+    private int nf = 0;
     private Map<DataID, Object> data = new HashMap<DataID, Object>();
     public Vertex[] vl, fv, tv;
 
@@ -83,44 +86,36 @@ public class Surface {
 
 	public Face(Vertex v1, Vertex v2, Vertex v3) {
 	    this.v1 = v1; this.v2 = v2; this.v3 = v3;
-	    f.add(this);
+	    if(nf + 3 > fi.length)
+		fi = Utils.extend(fi, fi.length * 2);
+	    fi[nf++] = v1.vi; fi[nf++] = v2.vi; fi[nf++] = v3.vi;
 	}
     }
 
     public void fin() {
-	this.vl = new Vertex[this.v.size()];
-	for(Vertex v : this.v)
-	    vl[v.vi] = v;
-	int nc = this.f.size() * 3;
-	class Corner {
-	    Vertex v, f, t;
-	    Corner(Vertex v, Vertex f, Vertex t) {this.v = v; this.f = f; this.t = t;}
+	int nv = this.v.size();
+	this.vl = this.v.toArray(new Vertex[nv]);
+	/* Group the corners of all faces by vertex, keeping them in
+	 * face order within each vertex. */
+	int[] fi = this.fi;
+	int nc = nf;
+	for(int i = 0; i < nc; i++)
+	    vl[fi[i]].ne++;
+	for(int i = 0, e = 0; i < nv; i++) {
+	    vl[i].ei = e;
+	    e += vl[i].ne;
 	}
-	Corner[] cl = new Corner[nc];
-	int i = 0;
-	for(Face f : this.f) {
-	    cl[i++] = new Corner(f.v1, f.v3, f.v2);
-	    cl[i++] = new Corner(f.v2, f.v1, f.v3);
-	    cl[i++] = new Corner(f.v3, f.v2, f.v1);
-	}
-	Arrays.sort(cl, new Comparator<Corner>() {
-		public int compare(Corner a, Corner b) {
-		    return(a.v.vi - b.v.vi);
-		}
-	    });
+	int[] fill = new int[nv];
 	this.fv = new Vertex[nc];
 	this.tv = new Vertex[nc];
-	Vertex pv = null;
-	for(i = 0; i < nc; i++) {
-	    if(pv != cl[i].v) {
-		pv = cl[i].v;
-		pv.ei = i;
-	    }
-	    this.fv[i] = cl[i].f;
-	    this.tv[i] = cl[i].t;
-	    pv.ne++;
+	for(int i = 0; i < nc; i += 3) {
+	    Vertex v1 = vl[fi[i]], v2 = vl[fi[i + 1]], v3 = vl[fi[i + 2]];
+	    int o;
+	    o = v1.ei + fill[v1.vi]++; fv[o] = v3; tv[o] = v2;
+	    o = v2.ei + fill[v2.vi]++; fv[o] = v1; tv[o] = v3;
+	    o = v3.ei + fill[v3.vi]++; fv[o] = v2; tv[o] = v1;
 	}
-	this.v = null; this.f = null;
+	this.v = null; this.fi = null;
     }
 
     public void clear() {
@@ -134,10 +129,17 @@ public class Surface {
 	public Coord3f get(Vertex v) {
 	    Coord3f ret = buf[v.vi];
 	    if(ret == null) {
-		Coord3f nn = Coord3f.o;
-		for(int i = 0, o = v.ei; i < v.ne; i++, o++)
-		    nn = nn.add(tv[o].sub(v).cmul(fv[o].sub(v)).norm());
-		ret = buf[v.vi] = nn.div(v.ne);
+		float nx = 0, ny = 0, nz = 0;
+		for(int i = 0, o = v.ei; i < v.ne; i++, o++) {
+		    float tx = tv[o].x - v.x, ty = tv[o].y - v.y, tz = tv[o].z - v.z;
+		    float fx = fv[o].x - v.x, fy = fv[o].y - v.y, fz = fv[o].z - v.z;
+		    float cx = ty * fz - tz * fy, cy = tz * fx - tx * fz, cz = tx * fy - ty * fx;
+		    float a = (float)Math.sqrt((cx * cx) + (cy * cy) + (cz * cz));
+		    if(a != 0.0) {
+			nx += cx / a; ny += cy / a; nz += cz / a;
+		    }
+		}
+		ret = buf[v.vi] = Coord3f.of(nx / v.ne, ny / v.ne, nz / v.ne);
 	    }
 	    return(ret);
 	}
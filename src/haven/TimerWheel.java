@@ -0,0 +1,103 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven;
+
+/*
+ * A hashed timer wheel, for scheduling large numbers of short
+ * timeouts such that only the due ones need to be looked at. Time
+ * is divided into ticks of res milliseconds, and entries are
+ * returned by poll() once the tick they are due in has fully
+ * passed, so an entry is never returned early, and at most res
+ * milliseconds late. Due times farther ahead than the span of the
+ * wheel are clamped to its span, so users scheduling such should
+ * check the time again when they are returned. Steady-state
+ * operation does not allocate.
+ */
+public class TimerWheel<T> {
+    public final int res;
+    private final Object[][] items;
+    private final int[] len;
+    private long tick;
+    private int count = 0;
+
+    public TimerWheel(int res, int nslots, long now) {
+	this.res = res;
+	this.items = new Object[nslots][];
+	this.len = new int[nslots];
+	for(int i = 0; i < nslots; i++)
+	    items[i] = new Object[4];
+	this.tick = now / res;
+    }
+
+    private int slot(long tick) {
+	return((int)(tick % items.length));
+    }
+
+    public synchronized void schedule(T item, long due) {
+	long t = Math.min(Math.max(due / res, tick), tick + items.length - 1);
+	int s = slot(t);
+	if(len[s] >= items[s].length)
+	    items[s] = Utils.extend(items[s], items[s].length * 2);
+	items[s][len[s]++] = item;
+	count++;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized T poll(long now) {
+	long lim = now / res;
+	if(count == 0) {
+	    tick = Math.max(tick, lim);
+	    return(null);
+	}
+	for(; tick < lim; tick++) {
+	    int s = slot(tick);
+	    if(len[s] > 0) {
+		T ret = (T)items[s][--len[s]];
+		items[s][len[s]] = null;
+		count--;
+		return(ret);
+	    }
+	}
+	return(null);
+    }
+
+    /* Returns the earliest time at which poll() may return
+     * something, or -1 if the wheel is empty. */
+    public synchronized long next() {
+	if(count == 0)
+	    return(-1);
+	for(long t = tick; true; t++) {
+	    if(len[slot(t)] > 0)
+		return((t + 1) * res);
+	}
+    }
+
+    public synchronized int size() {
+	return(count);
+    }
+}
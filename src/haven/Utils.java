@@ -43,6 +43,9 @@ import java.text.SimpleDateFormat;
 import java.util.prefs.*;
 import java.util.*;
 import java.util.function.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.IntStream;
 import java.awt.Graphics;
 import java.awt.Color;
 import java.awt.image.*;
@@ -1613,6 +1616,12 @@ public class Utils {
 	return(dst);
     }
 
+    public static long[] extend(long[] src, int nl) {
+	long[] dst = new long[nl];
+	System.arraycopy(src, 0, dst, 0, Math.min(src.length, dst.length));
+	return(dst);
+    }
+
     public static double[] extend(double[] src, int nl) {
 	double[] dst = new double[nl];
 	System.arraycopy(src, 0, dst, 0, Math.min(src.length, dst.length));
@@ -1844,6 +1853,27 @@ public class Utils {
 	return((System.nanoTime() - rtimeoff) / 1e9);
     }
 
+    private static ForkJoinPool workpool = null;
+    /* A pool for CPU-bound background work, leaving a processor
+     * free for the render thread. */
+    public static ForkJoinPool workpool() {
+	synchronized(Utils.class) {
+	    if(workpool == null)
+		workpool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+	    return(workpool);
+	}
+    }
+
+    /* Run body(0..n-1) in parallel on the work pool, joining the
+     * caller's pool instead when already running in one, so that
+     * nested invocations do not starve it. */
+    public static void parallel(int n, IntConsumer body) {
+	if(ForkJoinTask.inForkJoinPool())
+	    IntStream.range(0, n).parallel().forEach(body);
+	else
+	    workpool().submit(() -> IntStream.range(0, n).parallel().forEach(body)).join();
+    }
+
     public static class MapBuilder<K, V> {
 	private final Map<K, V> bk;
 
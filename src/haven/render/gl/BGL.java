@@ -144,6 +144,56 @@ public abstract class BGL {
 	}
     }
 
+    /* A description of a command kept in some other form than a
+     * closure, as reconstituted for profiling and dumping. It is
+     * not itself runnable. */
+    protected static class Described {
+	public final Object src;
+	public final int idx;
+	public final String name;
+	public final String[] argn;
+	public final Object[] args;
+
+	public Described(Object src, int idx, String name, String[] argn, Object[] args) {
+	    this.src = src;
+	    this.idx = idx;
+	    this.name = name;
+	    this.argn = argn;
+	    this.args = args;
+	}
+
+	public boolean equals(Object o) {
+	    if(!(o instanceof Described))
+		return(false);
+	    Described that = (Described)o;
+	    return((this.src == that.src) && (this.idx == that.idx));
+	}
+
+	public int hashCode() {
+	    return(System.identityHashCode(src) * 31 + idx);
+	}
+
+	public String toString() {
+	    StringBuilder buf = new StringBuilder();
+	    buf.append(name);
+	    buf.append('(');
+	    for(int i = 0; i < args.length; i++) {
+		if(i > 0)
+		    buf.append(", ");
+		buf.append(argn[i]);
+		buf.append("=");
+		if(args[i] instanceof float[])
+		    buf.append(Formatter.format((float[])args[i]));
+		else if(args[i] instanceof int[])
+		    buf.append(Formatter.format((int[])args[i]));
+		else
+		    buf.append(String.valueOf(args[i]));
+	    }
+	    buf.append(')');
+	    return(buf.toString());
+	}
+    }
+
     private static class BufState {
 	Buffer buf;
 	int position, limit;
@@ -180,12 +230,13 @@ public abstract class BGL {
     }
 
     protected abstract void add(Command cmd);
-    protected abstract Iterable<Command> dump();
+    /* Yields either Commands or their Described forms. */
+    protected abstract Iterable<Object> dump();
 
     public static class BGLException extends RuntimeException {
 	public final Dump dump;
 
-	public BGLException(BGL buf, Command mark, Throwable cause) {
+	public BGLException(BGL buf, Object mark, Throwable cause) {
 	    super(cause);
 	    dump = new Dump(buf, mark);
 	}
@@ -1016,6 +1067,15 @@ public abstract class BGL {
 	    public final String[] argn;
 	    public final Object[] args;
 
+	    public DCmd(Dump d, Described o) {
+		this.clnm = o.src.getClass().getName();
+		this.mnm = o.name;
+		this.argn = o.argn.clone();
+		this.args = new Object[o.args.length];
+		for(int i = 0; i < args.length; i++)
+		    args[i] = d.mapval(o.args[i]);
+	    }
+
 	    public DCmd(Dump d, Object o) {
 		this.clnm = o.getClass().getName();
 		if(o.getClass().getEnclosingMethod() != null) {
@@ -1058,13 +1118,13 @@ public abstract class BGL {
 	    }
 	}
 
-	public Dump(BGL buf, Command mark) {
+	public Dump(BGL buf, Object mark) {
 	    this.list = new ArrayList<DCmd>();
 	    DCmd marked = null;
-	    for(Command ocmd : buf.dump()) {
-		DCmd cmd = new DCmd(this, ocmd);
+	    for(Object ocmd : buf.dump()) {
+		DCmd cmd = (ocmd instanceof Described) ? new DCmd(this, (Described)ocmd) : new DCmd(this, ocmd);
 		list.add(cmd);
-		if(ocmd == mark)
+		if(ocmd.equals(mark))
 		    marked = cmd;
 	    }
 	    this.mark = marked;
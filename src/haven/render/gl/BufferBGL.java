@@ -27,34 +27,273 @@
 package haven.render.gl;
 
 import haven.Utils;
+import haven.Config;
 import java.util.*;
 import java.util.regex.*;
 import java.io.*;
 import java.nio.file.*;
 import com.jogamp.opengl.*;
 
+/*
+ * Commands are not kept as closures, but encoded as an opcode
+ * followed by its operands: ints, floats and booleans inline in the
+ * code array, longs and objects in arrays of their own. Commands
+ * without an encoding of their own are stored as OP_CMD with the
+ * closure as their object operand.
+ */
 public class BufferBGL extends BGL {
+    public static final Config.Variable<Boolean> opcodes = Config.Variable.propb("haven.bglops", true);
     public static final BufferBGL empty = new BufferBGL(0) {
-	    protected void add(Command cmd) {
+	    protected void op(int opc) {
 		throw(new RuntimeException());
 	    }
 	};
     private static Profile curprof = null;
-    private Command[] list;
-    private int n = 0;
+    public final boolean encode;
+    private int[] code;
+    private long[] lv;
+    private Object[] ov;
+    private int n = 0, cn = 0, ln = 0, on = 0;
 
-    public BufferBGL(int c) {
-	list = new Command[Math.max(c, 1)];
+    public BufferBGL(int c, boolean encode) {
+	c = Math.max(c, 1);
+	this.encode = encode;
+	code = new int[c * 4];
+	lv = new long[Math.max(c / 8, 1)];
+	ov = new Object[c];
     }
+    public BufferBGL(int c) {this(c, opcodes.get());}
     public BufferBGL() {this(128);}
 
+    private static final int OP_CMD = 0;
+    private static final int OP_ACTIVETEXTURE = 1;
+    private static final int OP_BINDBUFFER = 2;
+    private static final int OP_BINDFRAMEBUFFER = 3;
+    private static final int OP_BINDRENDERBUFFER = 4;
+    private static final int OP_BINDTEXTURE = 5;
+    private static final int OP_BINDVERTEXARRAY = 6;
+    private static final int OP_BLENDCOLOR = 7;
+    private static final int OP_BLENDEQUATION = 8;
+    private static final int OP_BLENDEQUATIONSEPARATE = 9;
+    private static final int OP_BLENDFUNC = 10;
+    private static final int OP_BLENDFUNCSEPARATE = 11;
+    private static final int OP_CLEAR = 12;
+    private static final int OP_CLEARBUFFERFV = 13;
+    private static final int OP_CLEARCOLOR = 14;
+    private static final int OP_COLORMASK = 15;
+    private static final int OP_COLORMASKI = 16;
+    private static final int OP_CULLFACE = 17;
+    private static final int OP_DEPTHFUNC = 18;
+    private static final int OP_DEPTHMASK = 19;
+    private static final int OP_DISABLE = 20;
+    private static final int OP_DISABLEI = 21;
+    private static final int OP_DISABLEVERTEXATTRIBARRAY = 22;
+    private static final int OP_DRAWBUFFER = 23;
+    private static final int OP_DRAWBUFFERS = 24;
+    private static final int OP_DRAWARRAYSINSTANCED = 25;
+    private static final int OP_DRAWARRAYS = 26;
+    private static final int OP_DRAWELEMENTSINSTANCED = 27;
+    private static final int OP_DRAWELEMENTS = 28;
+    private static final int OP_DRAWRANGEELEMENTS = 29;
+    private static final int OP_ENABLE = 30;
+    private static final int OP_ENABLEI = 31;
+    private static final int OP_ENABLEVERTEXATTRIBARRAY = 32;
+    private static final int OP_LINEWIDTH = 33;
+    private static final int OP_PIXELSTOREI = 34;
+    private static final int OP_POINTSIZE = 35;
+    private static final int OP_POLYGONMODE = 36;
+    private static final int OP_POLYGONOFFSET = 37;
+    private static final int OP_READBUFFER = 38;
+    private static final int OP_SAMPLECOVERAGE = 39;
+    private static final int OP_SCISSOR = 40;
+    private static final int OP_TEXPARAMETERF = 41;
+    private static final int OP_TEXPARAMETERFV = 42;
+    private static final int OP_TEXPARAMETERI = 43;
+    private static final int OP_UNIFORM1F = 44;
+    private static final int OP_UNIFORM2F = 45;
+    private static final int OP_UNIFORM3F = 46;
+    private static final int OP_UNIFORM3FV = 47;
+    private static final int OP_UNIFORM4F = 48;
+    private static final int OP_UNIFORM4FV = 49;
+    private static final int OP_UNIFORM1I = 50;
+    private static final int OP_UNIFORM2I = 51;
+    private static final int OP_UNIFORM3I = 52;
+    private static final int OP_UNIFORM4I = 53;
+    private static final int OP_UNIFORMMATRIX3FV = 54;
+    private static final int OP_UNIFORMMATRIX4FV = 55;
+    private static final int OP_USEPROGRAM = 56;
+    private static final int OP_VERTEXATTRIBDIVISOR = 57;
+    private static final int OP_VERTEXATTRIBPOINTER = 58;
+    private static final int OP_VERTEXATTRIBIPOINTER = 59;
+    private static final int OP_VIEWPORT = 60;
+    private static final int OP_BGLCALLLIST = 61;
+
+    private static class Op {
+	final String name;
+	final String[] argn;
+	final char[] kinds;
+	final int ni, nl, no;
+
+	Op(String name, String kinds, String... argn) {
+	    this.name = name;
+	    this.kinds = kinds.toCharArray();
+	    this.argn = argn;
+	    int ni = 0, nl = 0, no = 0;
+	    for(char k : this.kinds) {
+		switch(k) {
+		case 'l': nl++; break;
+		case 'o': no++; break;
+		default: ni++; break;
+		}
+	    }
+	    this.ni = ni; this.nl = nl; this.no = no;
+	}
+    }
+
+    private static final Op[] ops = {
+	new Op("cmd", "o", "cmd"),
+	new Op("glActiveTexture", "i", "texture"),
+	new Op("glBindBuffer", "io", "target", "buffer"),
+	new Op("glBindFramebuffer", "io", "target", "buffer"),
+	new Op("glBindRenderbuffer", "io", "target", "buffer"),
+	new Op("glBindTexture", "io", "target", "texture"),
+	new Op("glBindVertexArray", "o", "array"),
+	new Op("glBlendColor", "ffff", "red", "green", "blue", "alpha"),
+	new Op("glBlendEquation", "i", "mode"),
+	new Op("glBlendEquationSeparate", "ii", "cmode", "amode"),
+	new Op("glBlendFunc", "ii", "sfac", "dfac"),
+	new Op("glBlendFuncSeparate", "iiii", "csfac", "cdfac", "asfac", "adfac"),
+	new Op("glClear", "i", "mask"),
+	new Op("glClearBufferfv", "iio", "buffer", "drawbuffer", "value"),
+	new Op("glClearColor", "ffff", "r", "g", "b", "a"),
+	new Op("glColorMask", "bbbb", "r", "g", "b", "a"),
+	new Op("glColorMaski", "ibbbb", "buf", "r", "g", "b", "a"),
+	new Op("glCullFace", "i", "mode"),
+	new Op("glDepthFunc", "i", "func"),
+	new Op("glDepthMask", "b", "mask"),
+	new Op("glDisable", "i", "cap"),
+	new Op("glDisablei", "ii", "cap", "index"),
+	new Op("glDisableVertexAttribArray", "oi", "location", "offset"),
+	new Op("glDrawBuffer", "i", "buf"),
+	new Op("glDrawBuffers", "io", "n", "bufs"),
+	new Op("glDrawArraysInstanced", "iiii", "mode", "first", "count", "primcount"),
+	new Op("glDrawArrays", "iii", "mode", "first", "count"),
+	new Op("glDrawElementsInstanced", "iiili", "mode", "count", "type", "indices", "primcount"),
+	new Op("glDrawElements", "iiil", "mode", "count", "type", "indices"),
+	new Op("glDrawRangeElements", "iiiiil", "mode", "start", "end", "count", "type", "indices"),
+	new Op("glEnable", "i", "cap"),
+	new Op("glEnablei", "ii", "cap", "index"),
+	new Op("glEnableVertexAttribArray", "oi", "location", "offset"),
+	new Op("glLineWidth", "f", "w"),
+	new Op("glPixelStorei", "ii", "pname", "param"),
+	new Op("glPointSize", "f", "size"),
+	new Op("glPolygonMode", "ii", "face", "mode"),
+	new Op("glPolygonOffset", "ff", "factor", "units"),
+	new Op("glReadBuffer", "i", "buf"),
+	new Op("glSampleCoverage", "fb", "value", "invert"),
+	new Op("glScissor", "iiii", "x", "y", "w", "h"),
+	new Op("glTexParameterf", "iif", "target", "pname", "param"),
+	new Op("glTexParameterfv", "iio", "target", "pname", "param"),
+	new Op("glTexParameteri", "iii", "target", "pname", "param"),
+	new Op("glUniform1f", "of", "location", "v0"),
+	new Op("glUniform2f", "off", "location", "v0", "v1"),
+	new Op("glUniform3f", "offf", "location", "v0", "v1", "v2"),
+	new Op("glUniform3fv", "oio", "location", "count", "val"),
+	new Op("glUniform4f", "offff", "location", "v0", "v1", "v2", "v3"),
+	new Op("glUniform4fv", "oio", "location", "count", "val"),
+	new Op("glUniform1i", "oi", "location", "v0"),
+	new Op("glUniform2i", "oii", "location", "v0", "v1"),
+	new Op("glUniform3i", "oiii", "location", "v0", "v1", "v2"),
+	new Op("glUniform4i", "oiiii", "location", "v0", "v1", "v2", "v3"),
+	new Op("glUniformMatrix3fv", "oibo", "location", "count", "transpose", "value"),
+	new Op("glUniformMatrix4fv", "oibo", "location", "count", "transpose", "value"),
+	new Op("glUseProgram", "o", "program"),
+	new Op("glVertexAttribDivisor", "oii", "location", "offset", "divisor"),
+	new Op("glVertexAttribPointer", "oiiibil", "location", "offset", "size", "type", "normalized", "stride", "pointer"),
+	new Op("glVertexAttribIPointer", "oiiiil", "location", "offset", "size", "type", "stride", "pointer"),
+	new Op("glViewport", "iiii", "x", "y", "w", "h"),
+	new Op("bglCallList", "o", "list")
+    };
+
+    private static int glid(Object id) {
+	return((id == null) ? 0 : ((ID)id).glid());
+    }
+
     public void run(GL3 gl) {
-	for(int i = 0; i < n; i++) {
+	int[] c = code;
+	long[] l = lv;
+	Object[] o = ov;
+	for(int i = 0, p = 0, q = 0, r = 0; p < cn; i++) {
+	    int sp = p, sq = q, sr = r;
 	    if(curprof != null)
-		curprof.register(list[i]);
+		curprof.register(decode(i, sp, sq, sr));
 	    try {
 		try {
-		    list[i].run(gl);
+		    switch(c[p++]) {
+		    case OP_CMD: ((Command)o[r++]).run(gl); break;
+		    case OP_ACTIVETEXTURE: gl.glActiveTexture(c[p++]); break;
+		    case OP_BINDBUFFER: gl.glBindBuffer(c[p++], glid(o[r++])); break;
+		    case OP_BINDFRAMEBUFFER: gl.glBindFramebuffer(c[p++], glid(o[r++])); break;
+		    case OP_BINDRENDERBUFFER: gl.glBindRenderbuffer(c[p++], glid(o[r++])); break;
+		    case OP_BINDTEXTURE: gl.glBindTexture(c[p++], glid(o[r++])); break;
+		    case OP_BINDVERTEXARRAY: gl.glBindVertexArray(glid(o[r++])); break;
+		    case OP_BLENDCOLOR: gl.glBlendColor(Float.intBitsToFloat(c[p++]), Float.intBitsToFloat(c[p++]), Float.intBitsToFloat(c[p++]), Float.intBitsToFloat(c[p++])); break;
+		    case OP_BLENDEQUATION: gl.glBlendEquation(c[p++]); break;
+		    case OP_BLENDEQUATIONSEPARATE: gl.glBlendEquationSeparate(c[p++], c[p++]); break;
+		    case OP_BLENDFUNC: gl.glBlendFunc(c[p++], c[p++]); break;
+		    case OP_BLENDFUNCSEPARATE: gl.glBlendFuncSeparate(c[p++], c[p++], c[p++], c[p++]); break;
+		    case OP_CLEAR: gl.glClear(c[p++]); break;
+		    case OP_CLEARBUFFERFV: gl.glClearBufferfv(c[p++], c[p++], ((float[])o[r++]), 0); break;
+		    case OP_CLEARCOLOR: gl.glClearColor(Float.intBitsToFloat(c[p++]), Float.intBitsToFloat(c[p++]), Float.intBitsToFloat(c[p++]), Float.intBitsToFloat(c[p++])); break;
+		    case OP_COLORMASK: gl.glColorMask((c[p++] != 0), (c[p++] != 0), (c[p++] != 0), (c[p++] != 0)); break;
+		    case OP_COLORMASKI: gl.glColorMaski(c[p++], (c[p++] != 0), (c[p++] != 0), (c[p++] != 0), (c[p++] != 0)); break;
+		    case OP_CULLFACE: gl.glCullFace(c[p++]); break;
+		    case OP_DEPTHFUNC: gl.glDepthFunc(c[p++]); break;
+		    case OP_DEPTHMASK: gl.glDepthMask((c[p++] != 0)); break;
+		    case OP_DISABLE: gl.glDisable(c[p++]); break;
+		    case OP_DISABLEI: gl.glDisablei(c[p++], c[p++]); break;
+		    case OP_DISABLEVERTEXATTRIBARRAY: gl.glDisableVertexAttribArray(((ID)o[r++]).glid() + c[p++]); break;
+		    case OP_DRAWBUFFER: gl.glDrawBuffer(c[p++]); break;
+		    case OP_DRAWBUFFERS: gl.glDrawBuffers(c[p++], ((int[])o[r++]), 0); break;
+		    case OP_DRAWARRAYSINSTANCED: gl.glDrawArraysInstanced(c[p++], c[p++], c[p++], c[p++]); break;
+		    case OP_DRAWARRAYS: gl.glDrawArrays(c[p++], c[p++], c[p++]); break;
+		    case OP_DRAWELEMENTSINSTANCED: gl.glDrawElementsInstanced(c[p++], c[p++], c[p++], l[q++], c[p++]); break;
+		    case OP_DRAWELEMENTS: gl.glDrawElements(c[p++], c[p++], c[p++], l[q++]); break;
+		    case OP_DRAWRANGEELEMENTS: gl.glDrawRangeElements(c[p++], c[p++], c[p++], c[p++], c[p++], l[q++]); break;
+		    case OP_ENABLE: gl.glEnable(c[p++]); break;
+		    case OP_ENABLEI: gl.glEnablei(c[p++], c[p++]); break;
+		    case OP_ENABLEVERTEXATTRIBARRAY: gl.glEnableVertexAttribArray(((ID)o[r++]).glid() + c[p++]); break;
+		    case OP_LINEWIDTH: gl.glLineWidth(Float.intBitsToFloat(c[p++])); break;
+		    case OP_PIXELSTOREI: gl.glPixelStorei(c[p++], c[p++]); break;
+		    case OP_POINTSIZE: gl.glPointSize(Float.intBitsToFloat(c[p++])); break;
+		    case OP_POLYGONMODE: gl.glPolygonMode(c[p++], c[p++]); break;
+		    case OP_POLYGONOFFSET: gl.glPolygonOffset(Float.intBitsToFloat(c[p++]), Float.intBitsToFloat(c[p++])); break;
+		    case OP_READBUFFER: gl.glReadBuffer(c[p++]); break;
+		    case OP_SAMPLECOVERAGE: gl.glSampleCoverage(Float.intBitsToFloat(c[p++]), (c[p++] != 0)); break;
+		    case OP_SCISSOR: gl.glScissor(c[p++], c[p++], c[p++], c[p++]); break;
+		    case OP_TEXPARAMETERF: gl.glTexParameterf(c[p++], c[p++], Float.intBitsToFloat(c[p++])); break;
+		    case OP_TEXPARAMETERFV: gl.glTexParameterfv(c[p++], c[p++], ((float[])o[r++]), 0); break;
+		    case OP_TEXPARAMETERI: gl.glTexParameteri(c[p++], c[p++], c[p++]); break;
+		    case OP_UNIFORM1F: gl.glUniform1f(((ID)o[r++]).glid(), Float.intBitsToFloat(c[p++])); break;
+		    case OP_UNIFORM2F: gl.glUniform2f(((ID)o[r++]).glid(), Float.intBitsToFloat(c[p++]), Float.intBitsToFloat(c[p++])); break;
+		    case OP_UNIFORM3F: gl.glUniform3f(((ID)o[r++]).glid(), Float.intBitsToFloat(c[p++]), Float.intBitsToFloat(c[p++]), Float.intBitsToFloat(c[p++])); break;
+		    case OP_UNIFORM3FV: gl.glUniform3fv(((ID)o[r++]).glid(), c[p++], ((float[])o[r++]), 0); break;
+		    case OP_UNIFORM4F: gl.glUniform4f(((ID)o[r++]).glid(), Float.intBitsToFloat(c[p++]), Float.intBitsToFloat(c[p++]), Float.intBitsToFloat(c[p++]), Float.intBitsToFloat(c[p++])); break;
+		    case OP_UNIFORM4FV: gl.glUniform4fv(((ID)o[r++]).glid(), c[p++], ((float[])o[r++]), 0); break;
+		    case OP_UNIFORM1I: gl.glUniform1i(((ID)o[r++]).glid(), c[p++]); break;
+		    case OP_UNIFORM2I: gl.glUniform2i(((ID)o[r++]).glid(), c[p++], c[p++]); break;
+		    case OP_UNIFORM3I: gl.glUniform3i(((ID)o[r++]).glid(), c[p++], c[p++], c[p++]); break;
+		    case OP_UNIFORM4I: gl.glUniform4i(((ID)o[r++]).glid(), c[p++], c[p++], c[p++], c[p++]); break;
+		    case OP_UNIFORMMATRIX3FV: gl.glUniformMatrix3fv(((ID)o[r++]).glid(), c[p++], (c[p++] != 0), ((float[])o[r++]), 0); break;
+		    case OP_UNIFORMMATRIX4FV: gl.glUniformMatrix4fv(((ID)o[r++]).glid(), c[p++], (c[p++] != 0), ((float[])o[r++]), 0); break;
+		    case OP_USEPROGRAM: gl.glUseProgram(glid(o[r++])); break;
+		    case OP_VERTEXATTRIBDIVISOR: gl.glVertexAttribDivisor(((ID)o[r++]).glid() + c[p++], c[p++]); break;
+		    case OP_VERTEXATTRIBPOINTER: gl.glVertexAttribPointer(((ID)o[r++]).glid() + c[p++], c[p++], c[p++], (c[p++] != 0), c[p++], l[q++]); break;
+		    case OP_VERTEXATTRIBIPOINTER: gl.glVertexAttribIPointer(((ID)o[r++]).glid() + c[p++], c[p++], c[p++], c[p++], l[q++]); break;
+		    case OP_VIEWPORT: gl.glViewport(c[p++], c[p++], c[p++], c[p++]); break;
+		    case OP_BGLCALLLIST: ((BufferBGL)o[r++]).run(gl); break;
+		    default: throw(new AssertionError(c[sp]));
+		    }
 		} catch(com.jogamp.opengl.GLException exc) {
 		    /* How nice wouldn't it be if DebugGL could be
 		     * subclasseed to customize the errors. */
@@ -62,9 +301,26 @@ public class BufferBGL extends BGL {
 		    throw(exc);
 		}
 	    } catch(Exception exc) {
-		throw(new BGLException(this, list[i], exc));
+		throw(new BGLException(this, decode(i, sp, sq, sr), exc));
+	    }
+	}
+    }
+
+    private Object decode(int i, int p, int q, int r) {
+	Op op = ops[code[p++]];
+	if(op == ops[OP_CMD])
+	    return(ov[r]);
+	Object[] args = new Object[op.kinds.length];
+	for(int a = 0; a < args.length; a++) {
+	    switch(op.kinds[a]) {
+	    case 'i': args[a] = code[p++]; break;
+	    case 'f': args[a] = Float.intBitsToFloat(code[p++]); break;
+	    case 'b': args[a] = (code[p++] != 0); break;
+	    case 'l': args[a] = lv[q++]; break;
+	    case 'o': args[a] = ov[r++]; break;
 	    }
 	}
+	return(new Described(this, i, op.name, op.argn, args));
     }
 
     private static final Pattern joglerrp = Pattern.compile("GL-Error 0x([0-9a-fA-F]+)\\s");
@@ -96,33 +352,393 @@ public class BufferBGL extends BGL {
     }
 
     public void abort() {
-	for(int i = 0; i < n; i++)
-	    list[i].abort();
+	for(int p = 0, r = 0; p < cn;) {
+	    Op op = ops[code[p]];
+	    if(code[p] == OP_CMD)
+		((Command)ov[r]).abort();
+	    p += 1 + op.ni;
+	    r += op.no;
+	}
+    }
+
+    /* Every opcode is followed by at most eight inline operands. */
+    protected void op(int opc) {
+	if(cn + 9 > code.length)
+	    code = Arrays.copyOf(code, code.length * 2);
+	code[cn++] = opc;
+	n++;
+    }
+
+    private void ival(int v) {
+	code[cn++] = v;
+    }
+
+    private void lval(long v) {
+	if(ln >= lv.length)
+	    lv = Arrays.copyOf(lv, lv.length * 2);
+	lv[ln++] = v;
+    }
+
+    private void oval(Object v) {
+	if(on >= ov.length)
+	    ov = Arrays.copyOf(ov, ov.length * 2);
+	ov[on++] = v;
     }
 
     protected void add(Command cmd) {
-	if(n >= list.length)
-	    list = Arrays.copyOf(list, list.length * 2);
-	list[n++] = cmd;
+	op(OP_CMD);
+	oval(cmd);
+    }
+
+    public void glActiveTexture(int texture) {
+	if(!encode) {super.glActiveTexture(texture); return;}
+	op(OP_ACTIVETEXTURE); ival(texture);
+    }
+
+    public void glBindBuffer(int target, ID buffer) {
+	if(!encode) {super.glBindBuffer(target, buffer); return;}
+	op(OP_BINDBUFFER); ival(target); oval(buffer);
+    }
+
+    public void glBindFramebuffer(int target, ID buffer) {
+	if(!encode) {super.glBindFramebuffer(target, buffer); return;}
+	op(OP_BINDFRAMEBUFFER); ival(target); oval(buffer);
+    }
+
+    public void glBindRenderbuffer(int target, ID buffer) {
+	if(!encode) {super.glBindRenderbuffer(target, buffer); return;}
+	op(OP_BINDRENDERBUFFER); ival(target); oval(buffer);
+    }
+
+    public void glBindTexture(int target, ID texture) {
+	if(!encode) {super.glBindTexture(target, texture); return;}
+	op(OP_BINDTEXTURE); ival(target); oval(texture);
+    }
+
+    public void glBindVertexArray(ID array) {
+	if(!encode) {super.glBindVertexArray(array); return;}
+	op(OP_BINDVERTEXARRAY); oval(array);
+    }
+
+    public void glBlendColor(float red, float green, float blue, float alpha) {
+	if(!encode) {super.glBlendColor(red, green, blue, alpha); return;}
+	op(OP_BLENDCOLOR); ival(Float.floatToRawIntBits(red)); ival(Float.floatToRawIntBits(green)); ival(Float.floatToRawIntBits(blue)); ival(Float.floatToRawIntBits(alpha));
     }
 
+    public void glBlendEquation(int mode) {
+	if(!encode) {super.glBlendEquation(mode); return;}
+	op(OP_BLENDEQUATION); ival(mode);
+    }
+
+    public void glBlendEquationSeparate(int cmode, int amode) {
+	if(!encode) {super.glBlendEquationSeparate(cmode, amode); return;}
+	op(OP_BLENDEQUATIONSEPARATE); ival(cmode); ival(amode);
+    }
+
+    public void glBlendFunc(int sfac, int dfac) {
+	if(!encode) {super.glBlendFunc(sfac, dfac); return;}
+	op(OP_BLENDFUNC); ival(sfac); ival(dfac);
+    }
+
+    public void glBlendFuncSeparate(int csfac, int cdfac, int asfac, int adfac) {
+	if(!encode) {super.glBlendFuncSeparate(csfac, cdfac, asfac, adfac); return;}
+	op(OP_BLENDFUNCSEPARATE); ival(csfac); ival(cdfac); ival(asfac); ival(adfac);
+    }
+
+    public void glClear(int mask) {
+	if(!encode) {super.glClear(mask); return;}
+	op(OP_CLEAR); ival(mask);
+    }
+
+    public void glClearBufferfv(int buffer, int drawbuffer, float[] value) {
+	if(!encode) {super.glClearBufferfv(buffer, drawbuffer, value); return;}
+	op(OP_CLEARBUFFERFV); ival(buffer); ival(drawbuffer); oval(value);
+    }
+
+    public void glClearColor(float r, float g, float b, float a) {
+	if(!encode) {super.glClearColor(r, g, b, a); return;}
+	op(OP_CLEARCOLOR); ival(Float.floatToRawIntBits(r)); ival(Float.floatToRawIntBits(g)); ival(Float.floatToRawIntBits(b)); ival(Float.floatToRawIntBits(a));
+    }
+
+    public void glColorMask(boolean r, boolean g, boolean b, boolean a) {
+	if(!encode) {super.glColorMask(r, g, b, a); return;}
+	op(OP_COLORMASK); ival(r ? 1 : 0); ival(g ? 1 : 0); ival(b ? 1 : 0); ival(a ? 1 : 0);
+    }
+
+    public void glColorMaski(int buf, boolean r, boolean g, boolean b, boolean a) {
+	if(!encode) {super.glColorMaski(buf, r, g, b, a); return;}
+	op(OP_COLORMASKI); ival(buf); ival(r ? 1 : 0); ival(g ? 1 : 0); ival(b ? 1 : 0); ival(a ? 1 : 0);
+    }
+
+    public void glCullFace(int mode) {
+	if(!encode) {super.glCullFace(mode); return;}
+	op(OP_CULLFACE); ival(mode);
+    }
+
+    public void glDepthFunc(int func) {
+	if(!encode) {super.glDepthFunc(func); return;}
+	op(OP_DEPTHFUNC); ival(func);
+    }
+
+    public void glDepthMask(boolean mask) {
+	if(!encode) {super.glDepthMask(mask); return;}
+	op(OP_DEPTHMASK); ival(mask ? 1 : 0);
+    }
+
+    public void glDisable(int cap) {
+	if(!encode) {super.glDisable(cap); return;}
+	op(OP_DISABLE); ival(cap);
+    }
+
+    public void glDisablei(int cap, int index) {
+	if(!encode) {super.glDisablei(cap, index); return;}
+	op(OP_DISABLEI); ival(cap); ival(index);
+    }
+
+    public void glDisableVertexAttribArray(ID location, int offset) {
+	if(!encode) {super.glDisableVertexAttribArray(location, offset); return;}
+	op(OP_DISABLEVERTEXATTRIBARRAY); oval(location); ival(offset);
+    }
+
+    public void glDrawBuffer(int buf) {
+	if(!encode) {super.glDrawBuffer(buf); return;}
+	op(OP_DRAWBUFFER); ival(buf);
+    }
+
+    public void glDrawBuffers(int n, int[] bufs) {
+	if(!encode) {super.glDrawBuffers(n, bufs); return;}
+	op(OP_DRAWBUFFERS); ival(n); oval(bufs);
+    }
+
+    public void glDrawArraysInstanced(int mode, int first, int count, int primcount) {
+	if(!encode) {super.glDrawArraysInstanced(mode, first, count, primcount); return;}
+	op(OP_DRAWARRAYSINSTANCED); ival(mode); ival(first); ival(count); ival(primcount);
+    }
+
+    public void glDrawArrays(int mode, int first, int count) {
+	if(!encode) {super.glDrawArrays(mode, first, count); return;}
+	op(OP_DRAWARRAYS); ival(mode); ival(first); ival(count);
+    }
+
+    public void glDrawElementsInstanced(int mode, int count, int type, long indices, int primcount) {
+	if(!encode) {super.glDrawElementsInstanced(mode, count, type, indices, primcount); return;}
+	op(OP_DRAWELEMENTSINSTANCED); ival(mode); ival(count); ival(type); lval(indices); ival(primcount);
+    }
+
+    public void glDrawElements(int mode, int count, int type, long indices) {
+	if(!encode) {super.glDrawElements(mode, count, type, indices); return;}
+	op(OP_DRAWELEMENTS); ival(mode); ival(count); ival(type); lval(indices);
+    }
+
+    public void glDrawRangeElements(int mode, int start, int end, int count, int type, long indices) {
+	if(!encode) {super.glDrawRangeElements(mode, start, end, count, type, indices); return;}
+	op(OP_DRAWRANGEELEMENTS); ival(mode); ival(start); ival(end); ival(count); ival(type); lval(indices);
+    }
+
+    public void glEnable(int cap) {
+	if(!encode) {super.glEnable(cap); return;}
+	op(OP_ENABLE); ival(cap);
+    }
+
+    public void glEnablei(int cap, int index) {
+	if(!encode) {super.glEnablei(cap, index); return;}
+	op(OP_ENABLEI); ival(cap); ival(index);
+    }
+
+    public void glEnableVertexAttribArray(ID location, int offset) {
+	if(!encode) {super.glEnableVertexAttribArray(location, offset); return;}
+	op(OP_ENABLEVERTEXATTRIBARRAY); oval(location); ival(offset);
+    }
+
+    public void glLineWidth(float w) {
+	if(!encode) {super.glLineWidth(w); return;}
+	op(OP_LINEWIDTH); ival(Float.floatToRawIntBits(w));
+    }
+
+    public void glPixelStorei(int pname, int param) {
+	if(!encode) {super.glPixelStorei(pname, param); return;}
+	op(OP_PIXELSTOREI); ival(pname); ival(param);
+    }
+
+    public void glPointSize(float size) {
+	if(!encode) {super.glPointSize(size); return;}
+	op(OP_POINTSIZE); ival(Float.floatToRawIntBits(size));
+    }
+
+    public void glPolygonMode(int face, int mode) {
+	if(!encode) {super.glPolygonMode(face, mode); return;}
+	op(OP_POLYGONMODE); ival(face); ival(mode);
+    }
+
+    public void glPolygonOffset(float factor, float units) {
+	if(!encode) {super.glPolygonOffset(factor, units); return;}
+	op(OP_POLYGONOFFSET); ival(Float.floatToRawIntBits(factor)); ival(Float.floatToRawIntBits(units));
+    }
+
+    public void glReadBuffer(int buf) {
+	if(!encode) {super.glReadBuffer(buf); return;}
+	op(OP_READBUFFER); ival(buf);
+    }
+
+    public void glSampleCoverage(float value, boolean invert) {
+	if(!encode) {super.glSampleCoverage(value, invert); return;}
+	op(OP_SAMPLECOVERAGE); ival(Float.floatToRawIntBits(value)); ival(invert ? 1 : 0);
+    }
+
+    public void glScissor(int x, int y, int w, int h) {
+	if(!encode) {super.glScissor(x, y, w, h); return;}
+	op(OP_SCISSOR); ival(x); ival(y); ival(w); ival(h);
+    }
+
+    public void glTexParameterf(int target, int pname, float param) {
+	if(!encode) {super.glTexParameterf(target, pname, param); return;}
+	op(OP_TEXPARAMETERF); ival(target); ival(pname); ival(Float.floatToRawIntBits(param));
+    }
+
+    public void glTexParameterfv(int target, int pname, float[] param) {
+	if(!encode) {super.glTexParameterfv(target, pname, param); return;}
+	op(OP_TEXPARAMETERFV); ival(target); ival(pname); oval(param);
+    }
+
+    public void glTexParameteri(int target, int pname, int param) {
+	if(!encode) {super.glTexParameteri(target, pname, param); return;}
+	op(OP_TEXPARAMETERI); ival(target); ival(pname); ival(param);
+    }
+
+    public void glUniform1f(ID location, float v0) {
+	if(!encode) {super.glUniform1f(location, v0); return;}
+	op(OP_UNIFORM1F); oval(location); ival(Float.floatToRawIntBits(v0));
+    }
+
+    public void glUniform2f(ID location, float v0, float v1) {
+	if(!encode) {super.glUniform2f(location, v0, v1); return;}
+	op(OP_UNIFORM2F); oval(location); ival(Float.floatToRawIntBits(v0)); ival(Float.floatToRawIntBits(v1));
+    }
+
+    public void glUniform3f(ID location, float v0, float v1, float v2) {
+	if(!encode) {super.glUniform3f(location, v0, v1, v2); return;}
+	op(OP_UNIFORM3F); oval(location); ival(Float.floatToRawIntBits(v0)); ival(Float.floatToRawIntBits(v1)); ival(Float.floatToRawIntBits(v2));
+    }
+
+    public void glUniform3fv(ID location, int count, float[] val) {
+	if(!encode) {super.glUniform3fv(location, count, val); return;}
+	op(OP_UNIFORM3FV); oval(location); ival(count); oval(val);
+    }
+
+    public void glUniform4f(ID location, float v0, float v1, float v2, float v3) {
+	if(!encode) {super.glUniform4f(location, v0, v1, v2, v3); return;}
+	op(OP_UNIFORM4F); oval(location); ival(Float.floatToRawIntBits(v0)); ival(Float.floatToRawIntBits(v1)); ival(Float.floatToRawIntBits(v2)); ival(Float.floatToRawIntBits(v3));
+    }
+
+    public void glUniform4fv(ID location, int count, float[] val) {
+	if(!encode) {super.glUniform4fv(location, count, val); return;}
+	op(OP_UNIFORM4FV); oval(location); ival(count); oval(val);
+    }
+
+    public void glUniform1i(ID location, int v0) {
+	if(!encode) {super.glUniform1i(location, v0); return;}
+	op(OP_UNIFORM1I); oval(location); ival(v0);
+    }
+
+    public void glUniform2i(ID location, int v0, int v1) {
+	if(!encode) {super.glUniform2i(location, v0, v1); return;}
+	op(OP_UNIFORM2I); oval(location); ival(v0); ival(v1);
+    }
+
+    public void glUniform3i(ID location, int v0, int v1, int v2) {
+	if(!encode) {super.glUniform3i(location, v0, v1, v2); return;}
+	op(OP_UNIFORM3I); oval(location); ival(v0); ival(v1); ival(v2);
+    }
+
+    public void glUniform4i(ID location, int v0, int v1, int v2, int v3) {
+	if(!encode) {super.glUniform4i(location, v0, v1, v2, v3); return;}
+	op(OP_UNIFORM4I); oval(location); ival(v0); ival(v1); ival(v2); ival(v3);
+    }
+
+    public void glUniformMatrix3fv(ID location, int count, boolean transpose, float[] value) {
+	if(!encode) {super.glUniformMatrix3fv(location, count, transpose, value); return;}
+	op(OP_UNIFORMMATRIX3FV); oval(location); ival(count); ival(transpose ? 1 : 0); oval(value);
+    }
+
+    public void glUniformMatrix4fv(ID location, int count, boolean transpose, float[] value) {
+	if(!encode) {super.glUniformMatrix4fv(location, count, transpose, value); return;}
+	op(OP_UNIFORMMATRIX4FV); oval(location); ival(count); ival(transpose ? 1 : 0); oval(value);
+    }
+
+    public void glUseProgram(ID program) {
+	if(!encode) {super.glUseProgram(program); return;}
+	op(OP_USEPROGRAM); oval(program);
+    }
+
+    public void glVertexAttribDivisor(ID location, int offset, int divisor) {
+	if(!encode) {super.glVertexAttribDivisor(location, offset, divisor); return;}
+	op(OP_VERTEXATTRIBDIVISOR); oval(location); ival(offset); ival(divisor);
+    }
+
+    public void glVertexAttribPointer(ID location, int offset, int size, int type, boolean normalized, int stride, long pointer) {
+	if(!encode) {super.glVertexAttribPointer(location, offset, size, type, normalized, stride, pointer); return;}
+	op(OP_VERTEXATTRIBPOINTER); oval(location); ival(offset); ival(size); ival(type); ival(normalized ? 1 : 0); ival(stride); lval(pointer);
+    }
+
+    public void glVertexAttribIPointer(ID location, int offset, int size, int type, int stride, long pointer) {
+	if(!encode) {super.glVertexAttribIPointer(location, offset, size, type, stride, pointer); return;}
+	op(OP_VERTEXATTRIBIPOINTER); oval(location); ival(offset); ival(size); ival(type); ival(stride); lval(pointer);
+    }
+
+    public void glViewport(int x, int y, int w, int h) {
+	if(!encode) {super.glViewport(x, y, w, h); return;}
+	op(OP_VIEWPORT); ival(x); ival(y); ival(w); ival(h);
+    }
+
+    public void bglCallList(BufferBGL list) {
+	if(!encode) {super.bglCallList(list); return;}
+	op(OP_BGLCALLLIST); oval(list);
+    }
+
+    public void glDisableVertexAttribArray(ID location) {glDisableVertexAttribArray(location, 0);}
+
+    public void glEnableVertexAttribArray(ID location) {glEnableVertexAttribArray(location, 0);}
+
+    public void glVertexAttribDivisor(ID location, int divisor) {glVertexAttribDivisor(location, 0, divisor);}
+
+    public void glVertexAttribPointer(ID location, int size, int type, boolean normalized, int stride, long pointer) {glVertexAttribPointer(location, 0, size, type, normalized, stride, pointer);}
+
+    public void glVertexAttribIPointer(ID location, int size, int type, int stride, long pointer) {glVertexAttribIPointer(location, 0, size, type, stride, pointer);}
+
     public BufferBGL trim() {
-	list = Arrays.copyOf(list, n);
+	code = Arrays.copyOf(code, cn);
+	lv = Arrays.copyOf(lv, ln);
+	ov = Arrays.copyOf(ov, on);
 	return(this);
     }
 
-    protected Iterable<Command> dump() {
-	return(new Iterable<Command>() {
-		public Iterator<Command> iterator() {
-		    return(new Iterator<Command>() {
-			    int i = 0;
+    /* Empties the buffer for reuse, keeping its storage. */
+    public void clear() {
+	Arrays.fill(ov, 0, on, null);
+	n = cn = ln = on = 0;
+    }
+
+    public int size() {
+	return(n);
+    }
+
+    protected Iterable<Object> dump() {
+	return(new Iterable<Object>() {
+		public Iterator<Object> iterator() {
+		    return(new Iterator<Object>() {
+			    int i = 0, p = 0, q = 0, r = 0;
 			    public boolean hasNext() {
-				return(i < n);
+				return(p < cn);
 			    }
-			    public Command next() {
-				if(i < n)
-				    return(list[i++]);
-				throw(new NoSuchElementException());
+			    public Object next() {
+				if(p >= cn)
+				    throw(new NoSuchElementException());
+				Object ret = decode(i++, p, q, r);
+				Op op = ops[code[p]];
+				p += 1 + op.ni;
+				q += op.nl;
+				r += op.no;
+				return(ret);
 			    }
 			    public void remove() {
 				throw(new UnsupportedOperationException());
@@ -135,10 +751,10 @@ public class BufferBGL extends BGL {
     public static class Profile {
 	private double stime;
 	private int n;
-	private Command[] cmds = new Command[128];
+	private Object[] cmds = new Object[128];
 	private double[] times = new double[128];
 
-	private void register(Command cmd) {
+	private void register(Object cmd) {
 	    if(n >= cmds.length) {
 		cmds = Arrays.copyOf(cmds, cmds.length * 2);
 		times = Arrays.copyOf(times, cmds.length * 2);
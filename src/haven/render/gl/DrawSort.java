@@ -0,0 +1,157 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven.render.gl;
+
+import java.util.*;
+import java.util.function.*;
+import haven.Config;
+import haven.render.Rendered;
+
+/*
+ * Packed 64-bit sort keys for draw lists. The main order occupies
+ * the high half, so that keys sort as the main orders do, and the
+ * low half groups slots by program, framebuffer and vertex array.
+ * The low fields are truncated to their widths, which may make
+ * different objects share a key. That only costs some state
+ * grouping, since equal keys are still ordered by other means.
+ */
+public class DrawSort {
+    public static final Config.Variable<Boolean> enabled = Config.Variable.propb("haven.drawsortkeys", true);
+    public static final int PROGBITS = 14, FBOBITS = 4, VAOBITS = 14;
+
+    public static long key(int mainorder, int prog, int fbo, int vao) {
+	long lo = ((long)(prog & ((1 << PROGBITS) - 1)) << (FBOBITS + VAOBITS)) |
+	    ((fbo & ((1 << FBOBITS) - 1)) << VAOBITS) |
+	    (vao & ((1 << VAOBITS) - 1));
+	return((((mainorder ^ 0x80000000) & 0xffffffffL) << 32) | lo);
+    }
+
+    public static int mainorder(long key) {
+	return((int)(key >>> 32) ^ 0x80000000);
+    }
+
+    public static boolean custom(Rendered.Order<?> order) {
+	return(!(order instanceof Rendered.Order.Default));
+    }
+
+    /* Something ordered by its key. Its order is custom when it is
+     * not decided by its main order alone. */
+    public interface Keyed {
+	public long sortkey();
+	public Rendered.Order<?> sortorder();
+	public boolean customorder();
+	public long sortid();
+    }
+
+    /* Orders by key, so that only custom order comparators are ever
+     * consulted, and then by sort ID. */
+    public static final Comparator<Keyed> cmp = new Comparator<Keyed>() {
+	    public int compare(Keyed a, Keyed b) {
+		int c;
+		long ak = a.sortkey(), bk = b.sortkey();
+		if((ak >>> 32) != (bk >>> 32))
+		    return(((ak >>> 32) < (bk >>> 32)) ? -1 : 1);
+		if((a.customorder() || b.customorder()) && ((c = Rendered.Order.cmp.compare(a.sortorder(), b.sortorder())) != 0))
+		    return(c);
+		if(ak != bk)
+		    return(((ak & 0xffffffffL) < (bk & 0xffffffffL)) ? -1 : 1);
+		long as = a.sortid(), bs = b.sortid();
+		return((as < bs) ? -1 : (as > bs) ? 1 : 0);
+	    }
+	};
+
+    /* Stably sorts keys[0..n) as unsigned numbers, permuting vals
+     * along with them. Byte positions in which all keys agree are
+     * skipped. */
+    public static void sort(long[] keys, Object[] vals, int n) {
+	if(n < 2)
+	    return;
+	long and = -1, or = 0;
+	for(int i = 0; i < n; i++) {
+	    and &= keys[i];
+	    or |= keys[i];
+	}
+	long diff = and ^ or;
+	long[] kb = new long[n];
+	Object[] vb = new Object[n];
+	long[] ks = keys, kd = kb;
+	Object[] vs = vals, vd = vb;
+	int[] count = new int[257];
+	for(int sh = 0; sh < 64; sh += 8) {
+	    if(((diff >>> sh) & 0xff) == 0)
+		continue;
+	    Arrays.fill(count, 0);
+	    for(int i = 0; i < n; i++)
+		count[(int)((ks[i] >>> sh) & 0xff) + 1]++;
+	    for(int i = 0; i < 256; i++)
+		count[i + 1] += count[i];
+	    for(int i = 0; i < n; i++) {
+		int d = count[(int)((ks[i] >>> sh) & 0xff)]++;
+		kd[d] = ks[i];
+		vd[d] = vs[i];
+	    }
+	    long[] kt = ks; ks = kd; kd = kt;
+	    Object[] vt = vs; vs = vd; vd = vt;
+	}
+	if(ks != keys) {
+	    System.arraycopy(ks, 0, keys, 0, n);
+	    System.arraycopy(vs, 0, vals, 0, n);
+	}
+    }
+
+    /* Sorts vals[0..n) by cmp, which must agree with their keys
+     * wherever those differ. The keys are radix-sorted, leaving cmp
+     * to settle only ties, and whole main orders in which any value
+     * is custom, in the sense that its order is not decided by its
+     * key. */
+    public static <T> void order(long[] keys, T[] vals, int n, Comparator<? super T> cmp, Predicate<? super T> custom) {
+	sort(keys, vals, n);
+	for(int s = 0, e; s < n; s = e) {
+	    boolean cust = false;
+	    for(e = s; (e < n) && ((keys[e] >>> 32) == (keys[s] >>> 32)); e++)
+		cust |= custom.test(vals[e]);
+	    if(cust) {
+		Arrays.sort(vals, s, e, cmp);
+	    } else {
+		for(int ts = s, te; ts < e; ts = te) {
+		    for(te = ts + 1; (te < e) && (keys[te] == keys[ts]); te++);
+		    if(te - ts > 1)
+			Arrays.sort(vals, ts, te, cmp);
+		}
+	    }
+	}
+    }
+
+    /* Sorts vals[0..n) as cmp would. */
+    public static <T extends Keyed> void order(T[] vals, int n) {
+	long[] keys = new long[n];
+	for(int i = 0; i < n; i++)
+	    keys[i] = vals[i].sortkey();
+	order(keys, vals, n, cmp, Keyed::customorder);
+    }
+}
@@ -48,6 +48,11 @@ public class GLDrawList implements DrawList {
     private final GLDoubleBuffer settingbuf = new GLDoubleBuffer();
     private DrawSlot root = null;
     private boolean disposed = false;
+    private final boolean keyed = DrawSort.enabled.get();
+    private final Comparator<? super DrawSlot> slotorder = keyed ? DrawSort.cmp : order;
+    private DrawSlot[] pending = new DrawSlot[16];
+    private int npending = 0;
+    private int kidseq;
 
     private static int btheight(DrawSlot s) {
 	return((s == null) ? 0 : s.th);
@@ -84,12 +89,20 @@ public class GLDrawList implements DrawList {
 	    }
 	};
     private static AtomicLong uniqid = new AtomicLong();
-    private class DrawSlot {
+    private class DrawSlot implements DrawSort.Keyed {
 	/* List structure */
 	final long sortid;
 	DrawSlot tp, tl, tr;
 	int th = 0;
 	int tsubsize = 0;	/* Not critical, only used for debugging purposes. */
+	long skey;
+	boolean ocustom;
+	int pidx = -1;
+
+	public long sortkey() {return(skey);}
+	public Rendered.Order<?> sortorder() {return(gorder);}
+	public boolean customorder() {return(ocustom);}
+	public long sortid() {return(sortid);}
 
 	DrawSlot prev() {
 	    if(tl != null) {
@@ -156,7 +169,7 @@ public class GLDrawList implements DrawList {
 		setp(p.tr = l, p);
 	}
 	private void insert(DrawSlot child) {
-	    int c = order.compare(child, this);
+	    int c = slotorder.compare(child, this);
 	    if(c < 0) {
 		if(tl == null)
 		    (tl = child).tp = this;
@@ -237,6 +250,7 @@ public class GLDrawList implements DrawList {
 	final GLProgram prog;
 	final Setting[] settings;
 	BufferBGL compiled, main;
+	DrawSlot cprev;
 	Rendered.Order gorder;
 	final Pipe ordersrc;
 	private volatile boolean disposed = false;
@@ -263,6 +277,7 @@ public class GLDrawList implements DrawList {
 	}
 
 	private void glupdate(DrawSlot prev) {
+	    cprev = prev;
 	    if(prev == null) {
 		compiled = main;
 	    } else if(prev.prog == this.prog) {
@@ -318,8 +333,26 @@ public class GLDrawList implements DrawList {
 	    }
 	}
 
+	private void rekey() {
+	    skey = DrawSort.key(gorder.mainorder(), prog.seq, settings[idx_fbo].kid, settings[idx_vao].kid);
+	    ocustom = DrawSort.custom(gorder);
+	}
+
 	void orderupdate() {
 	    Rendered.Order norder = ordersrc.get(Rendered.order);
+	    if(keyed) {
+		gorder = norder;
+		rekey();
+		if(pidx < 0) {
+		    DrawSlot p = prev(), n = next();
+		    if(((p != null) && (slotorder.compare(p, this) > 0)) ||
+		       ((n != null) && (slotorder.compare(this, n) > 0))) {
+			remove();
+			queue(this);
+		    }
+		}
+		return;
+	    }
 	    boolean fixed = false;
 	    if((Rendered.Order.cmp.compare(gorder, norder) == 0) ||
 	       ((Rendered.Order.cmp.compare(prev().gorder, norder) >= 0) &&
@@ -356,6 +389,8 @@ public class GLDrawList implements DrawList {
 		main = BufferBGL.empty;
 		SlotRender g = new SlotRender(this);
 		bk.obj().draw(bst, g);
+		if(keyed)
+		    rekey();
 	    } catch(RuntimeException exc) {
 		dispose();
 		throw(exc);
@@ -478,6 +513,7 @@ public class GLDrawList implements DrawList {
 
     abstract class Setting {
 	final GLDoubleBuffer.Buffered gl = settingbuf.new Buffered();
+	final int kid = kidseq++;
 
 	abstract void compile(BGL gl);
 
@@ -902,14 +938,14 @@ public class GLDrawList implements DrawList {
 	if(t.tl != null) {
 	    if(t.tl.tp != t)
 		throw(new AssertionError(Long.toString(t.tl.sortid)));
-	    if(order.compare(t.tl, t) >= 0)
+	    if(slotorder.compare(t.tl, t) >= 0)
 		throw(new AssertionError(Long.toString(t.tl.sortid)));
 	    verify(t.tl);
 	}
 	if(t.tr != null) {
 	    if(t.tr.tp != t)
 		throw(new AssertionError(Long.toString(t.tr.sortid)));
-	    if(order.compare(t.tr, t) <= 0)
+	    if(slotorder.compare(t.tr, t) <= 0)
 		throw(new AssertionError(Long.toString(t.tr.sortid)));
 	    verify(t.tr);
 	}
@@ -945,6 +981,7 @@ public class GLDrawList implements DrawList {
 	if(!g.env.compatible(this))
 	    throw(new IllegalArgumentException());
 	synchronized(this) {
+	    flush();
 	    DrawSlot first = first(), last = null;
 	    if(first == null)
 		return;
@@ -976,7 +1013,10 @@ public class GLDrawList implements DrawList {
 	    if(disposed)
 		throw(new IllegalStateException());
 	    DrawSlot dslot = new DrawSlot(slot);
-	    dslot.insert();
+	    if(keyed)
+		queue(dslot);
+	    else
+		dslot.insert();
 	    if(slotmap.put(slot, dslot) != null)
 		throw(new AssertionError());
 	}
@@ -987,7 +1027,10 @@ public class GLDrawList implements DrawList {
 	    DrawSlot dslot = slotmap.remove(slot);
 	    if(dslot == null)
 		throw(new IllegalStateException(String.format("removing non-present slot (%s)", slot.obj())));
-	    dslot.remove();
+	    if(dslot.pidx >= 0)
+		unqueue(dslot);
+	    else
+		dslot.remove();
 	    dslot.dispose();
 	}
     }
@@ -998,12 +1041,82 @@ public class GLDrawList implements DrawList {
 	     * removing previous slot. */
 	    DrawSlot dslot = new DrawSlot(slot);
 	    remove(slot);
-	    dslot.insert();
+	    if(keyed)
+		queue(dslot);
+	    else
+		dslot.insert();
 	    if(slotmap.put(slot, dslot) != null)
 		throw(new AssertionError());
 	}
     }
 
+    private void queue(DrawSlot slot) {
+	if(npending >= pending.length)
+	    pending = Arrays.copyOf(pending, pending.length * 2);
+	pending[slot.pidx = npending++] = slot;
+    }
+
+    private void unqueue(DrawSlot slot) {
+	DrawSlot last = pending[--npending];
+	pending[last.pidx = slot.pidx] = last;
+	pending[npending] = null;
+	slot.pidx = -1;
+    }
+
+    /* New slots are queued until the list is next drawn. A few are
+     * then inserted one by one, but when many have arrived at once,
+     * it is cheaper to sort everything by key and rebuild the tree
+     * from that. */
+    private void flush() {
+	if(npending == 0)
+	    return;
+	if(npending * 4 < btsubsize(root)) {
+	    for(int i = 0; i < npending; i++) {
+		DrawSlot slot = pending[i];
+		pending[i] = null;
+		slot.pidx = -1;
+		slot.insert();
+	    }
+	    npending = 0;
+	} else {
+	    rebuild();
+	}
+    }
+
+    private DrawSlot build(DrawSlot[] slots, int from, int to, DrawSlot p) {
+	if(from >= to)
+	    return(null);
+	int m = (from + to) >>> 1;
+	DrawSlot s = slots[m];
+	s.tp = p;
+	s.tl = build(slots, from, m, s);
+	s.tr = build(slots, m + 1, to, s);
+	s.setheight();
+	return(s);
+    }
+
+    private void rebuild() {
+	int n = npending, i = 0;
+	for(DrawSlot s = first(); s != null; s = s.next())
+	    n++;
+	DrawSlot[] slots = new DrawSlot[n];
+	for(DrawSlot s = first(); s != null; s = s.next())
+	    slots[i++] = s;
+	for(int o = 0; o < npending; o++) {
+	    slots[i++] = pending[o];
+	    pending[o].pidx = -1;
+	    pending[o] = null;
+	}
+	npending = 0;
+	DrawSort.order(slots, n);
+	root = build(slots, 0, n, null);
+	for(i = 0; i < n; i++) {
+	    DrawSlot prev = (i > 0) ? slots[i - 1] : null;
+	    if((slots[i].compiled == null) || (slots[i].cprev != prev))
+		slots[i].glupdate(prev);
+	}
+    }
+
     @SuppressWarnings("unchecked")
     private void orderupdate(Pipe group) {
 	Object reg = orderidx.get(group);
@@ -1046,6 +1159,11 @@ public class GLDrawList implements DrawList {
     public void dispose() {
 	lck.dispose();
 	synchronized(this) {
+	    while(npending > 0) {
+		DrawSlot slot = pending[npending - 1];
+		unqueue(slot);
+		slot.dispose();
+	    }
 	    for(DrawSlot slot; (slot = root) != null; ) {
 		slot.remove();
 		slot.dispose();
@@ -1077,7 +1195,7 @@ public class GLDrawList implements DrawList {
     }
 
     public String stats() {
-	return(String.format("%,d", btsubsize(root)));
+	return(String.format("%,d", btsubsize(root) + npending));
     }
 
     public String toString() {
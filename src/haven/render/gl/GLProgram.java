@@ -47,6 +47,8 @@ public class GLProgram implements Disposable {
     public final Map<Uniform, Integer> samplerids;
     public final Uniform[] samplers;
     public final AtomicInteger locked = new AtomicInteger(0);
+    private static final AtomicInteger seqs = new AtomicInteger(0);
+    public final int seq = seqs.getAndIncrement();
     private final Map<Uniform, String> unifnms;
     private final Map<Attribute, AttrID> amap;
     private final String[] fragnms;
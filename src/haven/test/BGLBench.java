@@ -0,0 +1,156 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven.test;
+
+import haven.*;
+import haven.render.gl.*;
+import java.util.*;
+import java.lang.reflect.*;
+import java.lang.management.ManagementFactory;
+import com.jogamp.opengl.*;
+
+/*
+ * Compares recording command buffers as closures against encoding
+ * them as opcodes, replaying both against a GL3 stub which records
+ * the calls made, so that it can run headless. Also checks that
+ * both replay identically and that BGL dumps still work.
+ */
+public class BGLBench {
+    static class FakeID implements BGL.ID {
+	final int id;
+	FakeID(int id) {this.id = id;}
+	public int glid() {return(id);}
+	public String toString() {return("#" + id);}
+    }
+
+    static GL3 stub(StringBuilder log) {
+	return((GL3)Proxy.newProxyInstance(GL3.class.getClassLoader(), new Class<?>[] {GL3.class}, (proxy, m, args) -> {
+		    if(log != null)
+			log.append(m.getName()).append(Arrays.deepToString(args)).append('\n');
+		    Class<?> rt = m.getReturnType();
+		    if(rt == Boolean.TYPE)
+			return(false);
+		    if(rt.isPrimitive() && (rt != Void.TYPE))
+			return(Array.get(Array.newInstance(rt, 1), 0));
+		    return(null);
+		}));
+    }
+
+    static final FakeID[] progs = new FakeID[8], locs = new FakeID[16];
+    static {
+	for(int i = 0; i < progs.length; i++)
+	    progs[i] = new FakeID(100 + i);
+	for(int i = 0; i < locs.length; i++)
+	    locs[i] = new FakeID(i);
+    }
+    static final float[] mat = new float[16];
+
+    static void frame(BGL gl, int ndraws) {
+	for(int i = 0; i < ndraws; i++) {
+	    gl.glUseProgram(progs[i & 7]);
+	    gl.glBindVertexArray(locs[i & 15]);
+	    gl.glActiveTexture(GL.GL_TEXTURE0 + (i & 3));
+	    gl.glBindTexture(GL.GL_TEXTURE_2D, locs[(i + 1) & 15]);
+	    gl.glUniform4f(locs[2], i, 0.5f, 1, 0);
+	    gl.glUniformMatrix4fv(locs[3], 1, false, mat);
+	    if((i & 1) == 0)
+		gl.glEnable(GL.GL_BLEND);
+	    else
+		gl.glDisable(GL.GL_BLEND);
+	    gl.glBlendFunc(GL.GL_SRC_ALPHA, GL.GL_ONE_MINUS_SRC_ALPHA);
+	    gl.glDepthMask((i & 2) != 0);
+	    gl.glVertexAttribPointer(locs[4], 3, GL.GL_FLOAT, false, 0, 12L * i);
+	    gl.glDrawElements(GL.GL_TRIANGLES, 36, GL.GL_UNSIGNED_SHORT, 0L);
+	    if((i % 100) == 0)
+		gl.bglSubmit(g -> {});
+	}
+    }
+
+    static long allocated() {
+	return(((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId()));
+    }
+
+    static String replay(boolean encode, int ndraws) {
+	BufferBGL buf = new BufferBGL(16, encode);
+	frame(buf, ndraws);
+	StringBuilder log = new StringBuilder();
+	buf.run(stub(log));
+	return(log.toString());
+    }
+
+    static String dump(boolean encode) {
+	BufferBGL buf = new BufferBGL(16, encode);
+	frame(buf, 2);
+	buf.bglSubmit(g -> {throw(new RuntimeException("marked"));});
+	buf.glViewport(0, 0, 800, 600);
+	try {
+	    buf.run(stub(null));
+	} catch(BGL.BGLException e) {
+	    if(e.dump.mark == null)
+		throw(new AssertionError("dump lost its mark"));
+	    if(e.dump.list.size() != buf.size())
+		throw(new AssertionError("dump has " + e.dump.list.size() + " commands, buffer " + buf.size()));
+	    StringBuilder ret = new StringBuilder();
+	    e.dump.list.forEach(c -> ret.append(c.mnm).append('\n'));
+	    return(ret.toString());
+	}
+	throw(new AssertionError("no exception"));
+    }
+
+    static void run(String name, boolean encode, int ndraws, int rounds) {
+	GL3 gl = stub(null);
+	BufferBGL buf = new BufferBGL(16, encode);
+	long tr = 0, tx = 0, ar = 0, nc = 0;
+	for(int r = 0; r < rounds; r++) {
+	    buf.clear();
+	    long t0 = System.nanoTime(), a0 = allocated();
+	    frame(buf, ndraws);
+	    long t1 = System.nanoTime();
+	    ar += allocated() - a0;
+	    buf.run(gl);
+	    tx += System.nanoTime() - t1;
+	    tr += t1 - t0;
+	    nc += buf.size();
+	}
+	System.out.printf("%-8s record %6.1f ns/cmd %6.1f B/cmd, replay %6.1f ns/cmd\n", name,
+			  (double)tr / nc, (double)ar / nc, (double)tx / nc);
+    }
+
+    public static void main(String[] args) {
+	int ndraws = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+	int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+	if(!replay(false, 500).equals(replay(true, 500)))
+	    throw(new AssertionError("encoded replay differs"));
+	if(!dump(false).equals(dump(true)))
+	    throw(new AssertionError("encoded dump differs"));
+	for(int i = 0; i < 3; i++) {
+	    run("closure", false, ndraws, rounds);
+	    run("opcode", true, ndraws, rounds);
+	}
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven.test;
+
+import haven.*;
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+import java.lang.management.ManagementFactory;
+
+/*
+ * Compares decoding of object-delta datagrams by copying each
+ * attribute, as was formerly done, against slicing them out of the
+ * datagram with OCache.ObjDelta.read(). Uses either synthetic
+ * datagrams or the OBJDATA traffic of a recorded session.
+ */
+public class DeltaBench {
+    public static byte[] gendgram(Random rnd) {
+	MessageBuf buf = new MessageBuf();
+	int nobj = 1 + rnd.nextInt(40);
+	for(int o = 0; o < nobj; o++) {
+	    buf.adduint8(0);
+	    buf.adduint32(rnd.nextInt(100000));
+	    buf.addint32(rnd.nextInt(1000));
+	    int nattr = rnd.nextInt(5);
+	    for(int a = 0; a < nattr; a++) {
+		int len = rnd.nextInt(48);
+		buf.adduint8(0x80 | (1 + rnd.nextInt(30)));
+		buf.adduint8(len);
+		for(int i = 0; i < len; i++)
+		    buf.adduint8(rnd.nextInt(256));
+	    }
+	    buf.adduint8(OCache.OD_END);
+	}
+	return(buf.fin());
+    }
+
+    static int copydecode(MessageBuf msg) {
+	int n = 0;
+	while(!msg.eom()) {
+	    OCache.ObjDelta delta = new OCache.ObjDelta(msg.uint8(), msg.uint32(), msg.int32());
+	    while(true) {
+		int afl, len, type = msg.uint8();
+		if(type == OCache.OD_END)
+		    break;
+		if((type & 0x80) == 0) {
+		    len = (type & 0x78) >> 3;
+		    if(len > 0)
+			len++;
+		    type = OCache.compodmap[type & 0x7];
+		} else {
+		    type = type & 0x7f;
+		    if(((afl = msg.uint8()) & 0x80) == 0)
+			len = afl & 0x7f;
+		    else
+			len = msg.uint16();
+		}
+		delta.attrs.add(new PMessage(type, msg, len));
+	    }
+	    n += delta.attrs.size();
+	}
+	return(n);
+    }
+
+    static int slicedecode(MessageBuf msg) {
+	int n = 0;
+	while(!msg.eom())
+	    n += OCache.ObjDelta.read(msg).attrs.size();
+	return(n);
+    }
+
+    static long allocated() {
+	return(((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId()));
+    }
+
+    static void run(String name, List<byte[]> dgrams, int rounds, boolean slice) {
+	long na = 0, t0 = System.nanoTime(), a0 = allocated();
+	for(int r = 0; r < rounds; r++) {
+	    for(byte[] d : dgrams) {
+		MessageBuf msg = new MessageBuf(d);
+		na += slice ? slicedecode(msg) : copydecode(msg);
+	    }
+	}
+	long t = System.nanoTime() - t0, a = allocated() - a0;
+	long nd = (long)dgrams.size() * rounds;
+	System.out.printf("%-6s %8.1f ns/dgram %8.1f B/dgram %6.1f B/attr\n", name, (double)t / nd, (double)a / nd, (double)a / na);
+    }
+
+    public static List<byte[]> recorded(Path path) throws IOException {
+	List<byte[]> ret = new ArrayList<>();
+	try(NetLog.Reader log = NetLog.replay(path)) {
+	    for(NetLog.Packet p; (p = log.next()) != null;) {
+		if(!p.out && (p.data.length > 0) && (p.data[0] == Session.MSG_OBJDATA))
+		    ret.add(Arrays.copyOfRange(p.data, 1, p.data.length));
+	    }
+	}
+	return(ret);
+    }
+
+    public static void main(String[] args) throws IOException {
+	List<byte[]> dgrams;
+	int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 50;
+	if((args.length > 0) && Files.isRegularFile(Utils.path(args[0]))) {
+	    dgrams = recorded(Utils.path(args[0]));
+	} else {
+	    int ndgrams = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+	    Random rnd = new Random(1);
+	    dgrams = new ArrayList<>();
+	    for(int i = 0; i < ndgrams; i++)
+		dgrams.add(gendgram(rnd));
+	}
+	for(int i = 0; i < 3; i++) {
+	    run("copy", dgrams, rounds, false);
+	    run("slice", dgrams, rounds, true);
+	}
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven.test;
+
+import haven.*;
+import haven.render.*;
+import haven.render.gl.DrawSort;
+import java.util.*;
+
+/*
+ * Compares keeping synthetic draw slots ordered in a balanced tree
+ * by the comparator GLDrawList formerly used, against ordering them
+ * by DrawSort's packed keys, both inserted one at a time and
+ * radix-sorted in bulk as GLDrawList rebuilds do. Adding, updating
+ * and removing slots are timed separately.
+ */
+public class DrawSortBench {
+    static class ZOrder extends Rendered.Order<ZOrder> {
+	final float z;
+	ZOrder(float z) {this.z = z;}
+	public int mainorder() {return(1000);}
+	private static final Comparator<ZOrder> cmp = (a, b) -> Float.compare(a.z, b.z);
+	public Comparator<ZOrder> comparator() {return(cmp);}
+    }
+
+    static Object[] progs, fbos, vaos;
+    static long nextid = 0;
+    static class Slot implements DrawSort.Keyed {
+	final long sortid = nextid++;
+	Rendered.Order<?> order;
+	Object prog, fbo, vao;
+	long key;
+	boolean custom;
+
+	Slot(Random rnd) {
+	    update(rnd);
+	}
+
+	void update(Random rnd) {
+	    int r = rnd.nextInt(10), progn, fbon, vaon;
+	    order = (r < 8) ? Rendered.deflt : (r < 9) ? Rendered.postfx : new ZOrder(rnd.nextFloat());
+	    prog = progs[progn = rnd.nextInt(progs.length)];
+	    fbo = fbos[fbon = rnd.nextInt(fbos.length)];
+	    vao = vaos[vaon = rnd.nextInt(vaos.length)];
+	    key = DrawSort.key(order.mainorder(), progn, fbon, vaon);
+	    custom = DrawSort.custom(order);
+	}
+
+	public long sortkey() {return(key);}
+	public Rendered.Order<?> sortorder() {return(order);}
+	public boolean customorder() {return(custom);}
+	public long sortid() {return(sortid);}
+    }
+
+    static final Comparator<Slot> old = (a, b) -> {
+	int c;
+	if((c = Rendered.Order.cmp.compare(a.order, b.order)) != 0)
+	    return(c);
+	if((c = Utils.sidcmp(a.prog, b.prog)) != 0)
+	    return(c);
+	if((c = Utils.sidcmp(a.fbo, b.fbo)) != 0)
+	    return(c);
+	if((c = Utils.sidcmp(a.vao, b.vao)) != 0)
+	    return(c);
+	return(Long.compare(a.sortid, b.sortid));
+    };
+
+    static Slot[] bulk(Collection<Slot> slots) {
+	Slot[] ret = slots.toArray(new Slot[0]);
+	DrawSort.order(ret, ret.length);
+	return(ret);
+    }
+
+    static void check(List<Slot> slots) {
+	TreeSet<Slot> tree = new TreeSet<>(DrawSort.cmp);
+	tree.addAll(slots);
+	if(!Arrays.asList(bulk(slots)).equals(new ArrayList<>(tree)))
+	    throw(new AssertionError("bulk order differs from keyed tree"));
+    }
+
+    static void report(String name, String op, long t, int n) {
+	System.out.printf("%-6s %-6s %8.1f ns/op %10.0f ops/s\n", name, op, (double)t / n, n * 1e9 / t);
+    }
+
+    static void tree(String name, Comparator<? super Slot> cmp, List<Slot> slots, int nops, long seed) {
+	Random rnd = new Random(seed);
+	TreeSet<Slot> tree = new TreeSet<>(cmp);
+	long t0 = System.nanoTime();
+	for(Slot s : slots)
+	    tree.add(s);
+	long t1 = System.nanoTime();
+	for(int i = 0; i < nops; i++) {
+	    Slot s = slots.get(rnd.nextInt(slots.size()));
+	    if(!tree.remove(s))
+		throw(new AssertionError("slot lost before update"));
+	    s.update(rnd);
+	    tree.add(s);
+	}
+	long t2 = System.nanoTime();
+	for(int i = 0; i < nops; i++)
+	    tree.remove(slots.get(rnd.nextInt(slots.size())));
+	long t3 = System.nanoTime();
+	report(name, "add", t1 - t0, slots.size());
+	report(name, "update", t2 - t1, nops);
+	report(name, "remove", t3 - t2, nops);
+    }
+
+    static void bulk(List<Slot> slots, int nops, long seed) {
+	Random rnd = new Random(seed);
+	long t0 = System.nanoTime();
+	bulk(slots);
+	long t1 = System.nanoTime();
+	for(int i = 0; i < nops; i++)
+	    slots.get(rnd.nextInt(slots.size())).update(rnd);
+	bulk(slots);
+	long t2 = System.nanoTime();
+	report("bulk", "add", t1 - t0, slots.size());
+	report("bulk", "update", t2 - t1, nops);
+    }
+
+    public static void main(String[] args) {
+	int nslots = (args.length > 0) ? Integer.parseInt(args[0]) : 50000;
+	int nops = (args.length > 1) ? Integer.parseInt(args[1]) : 5000;
+	Random rnd = new Random(1);
+	progs = new Object[300]; fbos = new Object[4]; vaos = new Object[8000];
+	for(Object[] a : new Object[][] {progs, fbos, vaos}) {
+	    for(int i = 0; i < a.length; i++)
+		a[i] = new Object();
+	}
+	List<Slot> slots = new ArrayList<>();
+	for(int i = 0; i < nslots; i++)
+	    slots.add(new Slot(rnd));
+	check(slots);
+	for(int round = 0; round < 5; round++) {
+	    tree("old", old, slots, nops, round);
+	    tree("keyed", DrawSort.cmp, slots, nops, round);
+	    bulk(slots, nops, round);
+	    check(slots);
+	    System.out.println();
+	}
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/*
+ * Measures Gob.getattr() over the gobs of a populated OCache,
+ * against the synchronized class-keyed map lookup it replaced, both
+ * from one thread and from several at once, as the render, tick and
+ * UI threads do.
+ */
+public class GetattrBench {
+    public static class A1 extends GAttrib {public A1(Gob g) {super(g);}}
+    public static class A2 extends GAttrib {public A2(Gob g) {super(g);}}
+    public static class A3 extends GAttrib {public A3(Gob g) {super(g);}}
+    public static class A4 extends GAttrib {public A4(Gob g) {super(g);}}
+    public static class A5 extends GAttrib {public A5(Gob g) {super(g);}}
+    public static class A5s extends A5 {public A5s(Gob g) {super(g);}}
+    public static class A6 extends GAttrib {public A6(Gob g) {super(g);}}
+    static Class<? extends GAttrib>[] attrclasses(Class<?>... cls) {
+	@SuppressWarnings("unchecked")
+	Class<? extends GAttrib>[] ret = (Class<? extends GAttrib>[])new Class<?>[cls.length];
+	for(int i = 0; i < cls.length; i++)
+	    ret[i] = cls[i].asSubclass(GAttrib.class);
+	return(ret);
+    }
+    static final Class<? extends GAttrib>[] lookups = attrclasses(
+	A1.class, A2.class, A3.class, A4.class, A5.class, A5s.class, A6.class,
+	GeneralGobInfo.class
+    );
+
+    /* The former storage, for comparison. */
+    static class MapAttrs {
+	final Map<Class<? extends GAttrib>, GAttrib> attr = new HashMap<>();
+
+	static Class<? extends GAttrib> attrclass(Class<? extends GAttrib> cl) {
+	    while(true) {
+		Class<?> p = cl.getSuperclass();
+		if(p == GAttrib.class)
+		    return(cl);
+		cl = p.asSubclass(GAttrib.class);
+	    }
+	}
+
+	void setattr(GAttrib a) {
+	    synchronized(attr) {
+		attr.put(attrclass(a.getClass()), a);
+	    }
+	}
+
+	<C extends GAttrib> C getattr(Class<C> c) {
+	    synchronized(attr) {
+		GAttrib attr = this.attr.get(attrclass(c));
+		if(!c.isInstance(attr))
+		    return(null);
+		return(c.cast(attr));
+	    }
+	}
+    }
+
+    static OCache populate(int ngobs, Random rnd) {
+	/* OCache's settings observers need Config loaded before CFG. */
+	Config.par.get();
+	OCache oc = new OCache(null);
+	for(int i = 0; i < ngobs; i++) {
+	    Gob gob = new Gob(null, Coord2d.of(rnd.nextInt(1100), rnd.nextInt(1100)), i + 1);
+	    GAttrib[] attrs = {new A1(gob), new A2(gob), new A3(gob), new A4(gob), rnd.nextBoolean() ? new A5(gob) : new A5s(gob), new A6(gob)};
+	    for(GAttrib a : attrs) {
+		if(rnd.nextInt(4) > 0)
+		    gob.setattr(a);
+	    }
+	    oc.add(gob);
+	}
+	return(oc);
+    }
+
+    static MapAttrs[] mapattrs(Gob[] gobs) {
+	MapAttrs[] ret = new MapAttrs[gobs.length];
+	for(int i = 0; i < gobs.length; i++) {
+	    ret[i] = new MapAttrs();
+	    for(Class<? extends GAttrib> cl : lookups) {
+		GAttrib a = gobs[i].getattr(cl);
+		if(a != null)
+		    ret[i].setattr(a);
+	    }
+	}
+	return(ret);
+    }
+
+    static int slotlook(Gob[] gobs, int rounds) {
+	int n = 0;
+	for(int r = 0; r < rounds; r++) {
+	    for(Gob gob : gobs) {
+		for(Class<? extends GAttrib> cl : lookups) {
+		    if(gob.getattr(cl) != null)
+			n++;
+		}
+	    }
+	}
+	return(n);
+    }
+
+    static int maplook(MapAttrs[] gobs, int rounds) {
+	int n = 0;
+	for(int r = 0; r < rounds; r++) {
+	    for(MapAttrs gob : gobs) {
+		for(Class<? extends GAttrib> cl : lookups) {
+		    if(gob.getattr(cl) != null)
+			n++;
+		}
+	    }
+	}
+	return(n);
+    }
+
+    static void run(String name, int nthreads, int rounds, long nlook, Callable<Integer> task) throws Exception {
+	ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+	try {
+	    List<Callable<Integer>> tasks = Collections.nCopies(nthreads, task);
+	    long t0 = System.nanoTime();
+	    int found = 0;
+	    for(Future<Integer> f : pool.invokeAll(tasks))
+		found += f.get();
+	    long t = System.nanoTime() - t0;
+	    System.out.printf("%-5s %2d threads %7.2f ns/getattr (%d found)\n", name, nthreads, (double)t / (nlook * nthreads), found);
+	} finally {
+	    pool.shutdown();
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	int ngobs = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+	int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+	int nthreads = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+	OCache oc = populate(ngobs, new Random(1));
+	List<Gob> gobl = new ArrayList<>();
+	for(Gob gob : oc)
+	    gobl.add(gob);
+	Gob[] gobs = gobl.toArray(new Gob[0]);
+	MapAttrs[] maps = mapattrs(gobs);
+	long nlook = (long)gobs.length * lookups.length * rounds;
+	for(int i = 0; i < 3; i++) {
+	    for(int n : new int[] {1, nthreads}) {
+		run("map", n, rounds, nlook, () -> maplook(maps, rounds));
+		run("slot", n, rounds, nlook, () -> slotlook(gobs, rounds));
+	    }
+	}
+    }
+}
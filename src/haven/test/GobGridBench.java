@@ -0,0 +1,178 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven.test;
+
+import haven.*;
+import java.util.*;
+
+/*
+ * Checks GobGrid queries against a scan of every gob while gobs are
+ * added, moved between cells and removed, enough to have the cell
+ * table grow and later drop emptied cells, and then measures radius
+ * queries against such a scan.
+ */
+public class GobGridBench {
+    static final double SPAN = MCache.tilesz.x * 1100;
+
+    static Coord2d rndc(Random rnd, double span) {
+	return(Coord2d.of(rnd.nextDouble() * span, rnd.nextDouble() * span));
+    }
+
+    static Set<Gob> scan(Collection<Gob> gobs, Coord2d c, double r) {
+	Set<Gob> ret = new HashSet<>();
+	for(Gob gob : gobs) {
+	    if(gob.rc.dist(c) <= r)
+		ret.add(gob);
+	}
+	return(ret);
+    }
+
+    static Set<Gob> scan(Collection<Gob> gobs, Coord2d ul, Coord2d br) {
+	Set<Gob> ret = new HashSet<>();
+	for(Gob gob : gobs) {
+	    if((gob.rc.x >= ul.x) && (gob.rc.y >= ul.y) && (gob.rc.x < br.x) && (gob.rc.y < br.y))
+		ret.add(gob);
+	}
+	return(ret);
+    }
+
+    static void check(GobGrid grid, Collection<Gob> gobs, Random rnd, String when) {
+	for(int i = 0; i < 50; i++) {
+	    Coord2d c = rndc(rnd, SPAN);
+	    /* Both radii spanning a few cells and radii spanning more
+	     * cells than are occupied, which scan all cells. */
+	    double r = (i < 40) ? (rnd.nextDouble() * GobGrid.CELL * 3) : (SPAN * rnd.nextDouble());
+	    Set<Gob> got = new HashSet<>();
+	    grid.forEachWithin(c, r, got::add);
+	    if(!got.equals(scan(gobs, c, r)))
+		throw(new AssertionError("radius query differs " + when));
+	    Coord2d ul = rndc(rnd, SPAN), br = ul.add(rndc(rnd, GobGrid.CELL * 4));
+	    got.clear();
+	    grid.forEachIn(ul, br, got::add);
+	    if(!got.equals(scan(gobs, ul, br)))
+		throw(new AssertionError("rectangle query differs " + when));
+	}
+    }
+
+    static void move(GobGrid grid, Gob gob, Coord2d c) {
+	gob.rc = c;
+	grid.moved(gob);
+    }
+
+    static void verify(Random rnd) {
+	GobGrid grid = new GobGrid();
+	List<Gob> gobs = new ArrayList<>();
+	/* Crowd a few cells, then spread out so the table grows. */
+	for(int i = 0; i < 500; i++) {
+	    Gob gob = new Gob(null, rndc(rnd, GobGrid.CELL * 2), i + 1);
+	    grid.add(gob);
+	    gobs.add(gob);
+	}
+	check(grid, gobs, rnd, "when crowded");
+	int cells = grid.cells();
+	for(int i = 0; i < 5000; i++) {
+	    Gob gob = new Gob(null, rndc(rnd, SPAN), gobs.size() + 1);
+	    grid.add(gob);
+	    gobs.add(gob);
+	}
+	if(grid.cells() <= cells)
+	    throw(new AssertionError("cells did not spread"));
+	check(grid, gobs, rnd, "after spreading");
+	/* Short moves, mostly within cells, some across. */
+	for(int i = 0; i < 20000; i++) {
+	    Gob gob = gobs.get(rnd.nextInt(gobs.size()));
+	    move(grid, gob, gob.rc.add(rnd.nextGaussian() * 20, rnd.nextGaussian() * 20));
+	}
+	check(grid, gobs, rnd, "after short moves");
+	/* Gather everything back into a corner, emptying most cells,
+	 * and then walk a few gobs off through fresh cells, as when
+	 * travelling, so that the table is rehashed with the emptied
+	 * cells dropped. */
+	for(Gob gob : gobs)
+	    move(grid, gob, rndc(rnd, GobGrid.CELL * 3));
+	check(grid, gobs, rnd, "after gathering");
+	int gathered = grid.cells(), nwalk = 20000;
+	List<Gob> walkers = gobs.subList(0, 5);
+	for(int i = 0; i < nwalk; i++) {
+	    for(int o = 0; o < walkers.size(); o++)
+		move(grid, walkers.get(o), Coord2d.of(SPAN + (i * GobGrid.CELL), o * GobGrid.CELL * 2));
+	    if((i % 1000) == 0)
+		check(grid, gobs, rnd, "while walking");
+	}
+	if(grid.cells() >= gathered + nwalk)
+	    throw(new AssertionError("emptied cells were never dropped"));
+	check(grid, gobs, rnd, "after walking");
+	for(Iterator<Gob> i = gobs.iterator(); i.hasNext();) {
+	    Gob gob = i.next();
+	    if(rnd.nextBoolean()) {
+		grid.remove(gob);
+		i.remove();
+	    }
+	}
+	check(grid, gobs, rnd, "after removal");
+    }
+
+    public static void main(String[] args) {
+	int ngobs = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+	double r = (args.length > 1) ? Double.parseDouble(args[1]) : MCache.tilesz.x * 20;
+	Config.par.get();
+	Random rnd = new Random(1);
+	verify(rnd);
+	GobGrid grid = new GobGrid();
+	List<Gob> gobs = new ArrayList<>();
+	for(int i = 0; i < ngobs; i++) {
+	    Gob gob = new Gob(null, rndc(rnd, SPAN), i + 1);
+	    grid.add(gob);
+	    gobs.add(gob);
+	}
+	Gob[] arr = gobs.toArray(new Gob[0]);
+	int nq = 2000;
+	Coord2d[] qc = new Coord2d[nq];
+	for(int i = 0; i < nq; i++)
+	    qc[i] = rndc(rnd, SPAN);
+	for(int round = 0; round < 5; round++) {
+	    long[] n = {0};
+	    long t0 = System.nanoTime();
+	    for(Coord2d c : qc)
+		grid.forEachWithin(c, r, g -> n[0]++);
+	    long t1 = System.nanoTime();
+	    long m = 0;
+	    for(Coord2d c : qc) {
+		for(Gob gob : arr) {
+		    if(gob.rc.dist(c) <= r)
+			m++;
+		}
+	    }
+	    long t2 = System.nanoTime();
+	    if(m != n[0])
+		throw(new AssertionError("found " + n[0] + " by grid, " + m + " by scan"));
+	    System.out.printf("%d gobs, r=%.0f: grid %8.2f us/query, scan %8.2f us/query\n", ngobs, r,
+			      (t1 - t0) / 1e3 / nq, (t2 - t1) / 1e3 / nq);
+	}
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.*;
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+/*
+ * Builds the map cuts of a grid, with and without planning them
+ * first, checking that both builds come out the same. Several grids
+ * are also built at once, as when entering a new area, and the cuts
+ * of each grid are built one by one or split across the work
+ * pool, as MCache.Grid does when a whole grid changes. Uses
+ * either synthetic grids or the MAPDATA traffic of a recorded
+ * session, with stand-in tilers so that no resources are needed.
+ */
+public class MapMeshBench {
+    static class Sum {
+	long v = 0;
+	void add(long x) {v = (v * 31) + x;}
+    }
+    static final MapMesh.DataID<Sum> sum = m -> new Sum();
+
+    static class BenchTile extends Tiler {
+	BenchTile(int id) {super(id);}
+
+	public void model(MapMesh m, Random rnd, Coord lc, Coord gc) {
+	    super.model(m, rnd, lc, gc);
+	    m.data(sum).add(rnd.nextInt());
+	}
+
+	public void lay(MapMesh m, Random rnd, Coord lc, Coord gc) {
+	    Sum s = m.data(sum);
+	    s.add(rnd.nextLong());
+	    lay(m, lc, gc, (m2, d) -> {
+		    for(Surface.Vertex v : d.v)
+			s.add(Float.floatToIntBits(v.z) + gc.x + gc.y);
+		}, false);
+	}
+
+	public void trans(MapMesh m, Random rnd, Tiler gt, Coord lc, Coord gc, int z, int bmask, int cmask) {
+	    m.data(sum).add((z << 16) + (gt.id << 8) + (bmask << 4) + cmask + rnd.nextInt(16));
+	}
+    }
+
+    static class BenchMap extends MCache {
+	final Map<Integer, Tiler> tilers = new ConcurrentHashMap<>();
+
+	BenchMap() {super(null);}
+
+	public Tiler tiler(int i) {
+	    return(tilers.computeIfAbsent(i, BenchTile::new));
+	}
+    }
+
+    static byte[] gengrid(Random rnd, Coord gc) {
+	MessageBuf buf = new MessageBuf();
+	buf.addcoord(gc);
+	buf.adduint8(1);
+	buf.addstring("m"); buf.adduint8(8);
+	buf.addint64(rnd.nextLong());
+	MessageBuf t = new MessageBuf();
+	int nsets = 12;
+	for(int i = 0; i < nsets; i++) {
+	    t.adduint8(i); t.addstring("gfx/tiles/bench" + i); t.adduint16(1);
+	}
+	t.adduint8(255);
+	/* Patches of terrain, so that there are transitions to lay. */
+	int[] cx = new int[24], cy = new int[24], ct = new int[24];
+	for(int i = 0; i < cx.length; i++) {
+	    cx[i] = rnd.nextInt(100); cy[i] = rnd.nextInt(100); ct[i] = rnd.nextInt(nsets);
+	}
+	for(int y = 0; y < 100; y++) {
+	    for(int x = 0; x < 100; x++) {
+		int b = 0;
+		for(int i = 1; i < cx.length; i++) {
+		    if(Math.hypot(x - cx[i], y - cy[i]) < Math.hypot(x - cx[b], y - cy[b]))
+			b = i;
+		}
+		t.adduint8(ct[b]);
+	    }
+	}
+	byte[] tb = t.fin();
+	buf.addstring("t"); buf.adduint8(0x80); buf.addint32(tb.length); buf.addbytes(tb);
+	MessageBuf h = new MessageBuf();
+	h.adduint8(3);
+	double fx = rnd.nextDouble() * 0.1, fy = rnd.nextDouble() * 0.1;
+	for(int y = 0; y < 100; y++) {
+	    for(int x = 0; x < 100; x++)
+		h.addfloat32((float)(Math.sin((gc.x * 100 + x) * fx) * Math.cos((gc.y * 100 + y) * fy) * 10));
+	}
+	byte[] hb = h.fin();
+	buf.addstring("h"); buf.adduint8(0x80); buf.addint32(hb.length); buf.addbytes(hb);
+	return(buf.fin());
+    }
+
+    static void install(MCache map, byte[] data) {
+	map.invalidate(new MessageBuf(data).coord());
+	map.mapdata2(new MessageBuf(data));
+    }
+
+    /* Defragments the MAPDATA traffic of a session log into whole
+     * grids, as MCache.mapdata() does. */
+    public static List<byte[]> recorded(Path path) throws IOException {
+	List<byte[]> ret = new ArrayList<>();
+	Map<Integer, byte[]> frags = new HashMap<>();
+	Map<Integer, Integer> got = new HashMap<>();
+	try(NetLog.Reader log = NetLog.replay(path)) {
+	    for(NetLog.Packet p; (p = log.next()) != null;) {
+		if(p.out || (p.data.length == 0) || (p.data[0] != Session.MSG_MAPDATA))
+		    continue;
+		MessageBuf msg = new MessageBuf(p.data, 1, p.data.length - 1);
+		int id = msg.int32(), off = msg.uint16(), len = msg.uint16();
+		byte[] frag = msg.bytes(), buf = frags.computeIfAbsent(id, k -> new byte[len]);
+		System.arraycopy(frag, 0, buf, off, frag.length);
+		int n = got.merge(id, frag.length, Integer::sum);
+		if(n >= len) {
+		    ret.add(buf);
+		    frags.remove(id);
+		    got.remove(id);
+		}
+	    }
+	}
+	return(ret);
+    }
+
+    static long allocated() {
+	return(((com.sun.management.ThreadMXBean)java.lang.management.ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId()));
+    }
+
+    static long[] buildall(MCache map, Coord gc, boolean par) {
+	MapMesh[] cuts = new MapMesh[MCache.cutn.x * MCache.cutn.y];
+	MCache.Grid g = map.getgrid(gc);
+	if(par) {
+	    g.makecuts(cuts);
+	} else {
+	    for(int i = 0; i < cuts.length; i++)
+		cuts[i] = g.makecut(Coord.of(i % MCache.cutn.x, i / MCache.cutn.x));
+	}
+	long[] ret = new long[cuts.length];
+	for(int i = 0; i < cuts.length; i++) {
+	    ret[i] = cuts[i].data(sum).v;
+	    cuts[i].dispose();
+	}
+	return(ret);
+    }
+
+    static long[] run(String name, MCache map, List<Coord> grids, int rounds, int threads, boolean planned, boolean par) throws Exception {
+	MapMesh.planned.set(planned);
+	long[][] sums = new long[grids.size()][];
+	ExecutorService exec = Executors.newFixedThreadPool(threads);
+	long t0 = System.nanoTime(), a0 = allocated();
+	for(int r = 0; r < rounds; r++) {
+	    List<Future<?>> wait = new ArrayList<>();
+	    for(int i = 0; i < grids.size(); i++) {
+		int gi = i;
+		Callable<Object> task = () -> sums[gi] = buildall(map, grids.get(gi), par);
+		if(threads == 1)
+		    task.call();
+		else
+		    wait.add(exec.submit(task));
+	    }
+	    for(Future<?> f : wait)
+		f.get();
+	}
+	long t = System.nanoTime() - t0, a = allocated() - a0;
+	exec.shutdown();
+	long ncuts = (long)rounds * grids.size() * MCache.cutn.x * MCache.cutn.y;
+	System.out.printf("%-8s %2d threads %8.1f us/cut", name, threads, (t / 1000.0) / ncuts);
+	/* Only the calling thread's allocations can be counted. */
+	if((threads == 1) && !par)
+	    System.out.printf(" %8.1f kB/cut", (a / 1024.0) / ncuts);
+	System.out.println();
+	long[] ret = new long[0];
+	for(long[] s : sums) {
+	    ret = Arrays.copyOf(ret, ret.length + s.length);
+	    System.arraycopy(s, 0, ret, ret.length - s.length, s.length);
+	}
+	return(ret);
+    }
+
+    public static void main(String[] args) throws Exception {
+	BenchMap map = new BenchMap();
+	List<byte[]> data;
+	int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+	if((args.length > 0) && Files.isRegularFile(Utils.path(args[0]))) {
+	    data = recorded(Utils.path(args[0]));
+	} else {
+	    Random rnd = new Random(1);
+	    data = new ArrayList<>();
+	    for(int y = -2; y <= 2; y++) {
+		for(int x = -2; x <= 2; x++)
+		    data.add(gengrid(rnd, Coord.of(x, y)));
+	    }
+	}
+	Set<Coord> have = new HashSet<>();
+	for(byte[] d : data) {
+	    install(map, d);
+	    have.add(new MessageBuf(d).coord());
+	}
+	/* Only grids with all their neighbors can be built whole. */
+	List<Coord> grids = new ArrayList<>();
+	for(Coord gc : have) {
+	    boolean all = true;
+	    for(int y = -1; y <= 1; y++) {
+		for(int x = -1; x <= 1; x++)
+		    all &= have.contains(gc.add(x, y));
+	    }
+	    if(all)
+		grids.add(gc);
+	}
+	System.out.printf("%d grids, %d buildable\n", have.size(), grids.size());
+	if(grids.isEmpty())
+	    return;
+	int nthreads = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+	for(int i = 0; i < 3; i++) {
+	    for(int threads : new int[] {1, nthreads}) {
+		long[] a = run("direct", map, grids, rounds, threads, false, false);
+		long[] b = run("planned", map, grids, rounds, threads, true, false);
+		long[] c = run("parcuts", map, grids, rounds, threads, true, true);
+		if(!Arrays.equals(a, b))
+		    throw(new AssertionError("planned build differs from direct build"));
+		if(!Arrays.equals(b, c))
+		    throw(new AssertionError("parallel cuts differ from serial cuts"));
+	    }
+	}
+	System.exit(0);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven.test;
+
+import haven.*;
+import java.io.*;
+import java.nio.file.*;
+
+/*
+ * Replays a session recorded with -Dhaven.netlog=FILE against a
+ * headless UI, as fast as it can be processed, for reproducing and
+ * measuring load on the object cache, map cache and widget tree.
+ */
+public class Replay extends TestClient {
+    public final Path path;
+    public NetLog.Reader log;
+
+    public Replay(Path path) {
+	super("replay");
+	this.path = path;
+    }
+
+    public void connect() throws InterruptedException {
+	try {
+	    log = NetLog.replay(path);
+	} catch(IOException e) {
+	    throw(new RuntimeException(e));
+	}
+	Audio.enabled = false;
+	sess = new Session(log, user);
+	synchronized(sess) {
+	    /* The whole recording may well have been processed by
+	     * the time this gets to run. */
+	    while((sess.state == "conn") && (sess.connfailed == 0))
+		sess.wait();
+	    if(sess.connfailed != 0)
+		throw(new RuntimeException("Recorded session failed to connect: " + sess.connerror));
+	}
+    }
+
+    public static void main(String[] args) {
+	if(args.length < 1) {
+	    System.err.println("usage: Replay NETLOG");
+	    System.exit(1);
+	}
+	Replay r = new Replay(Utils.path(args[0]));
+	long start = System.nanoTime();
+	r.start();
+	r.join();
+	double t = (System.nanoTime() - start) / 1e9;
+	if(r.log != null) {
+	    BaseTest.printf("%d datagrams, %d bytes in %.2f s: %.0f datagrams/s, %.2f MB/s",
+			    r.log.npackets, r.log.nbytes, t, r.log.npackets / t, r.log.nbytes / t / 1e6);
+	}
+	System.exit(0);
+    }
+}
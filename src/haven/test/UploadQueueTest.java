@@ -0,0 +1,237 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven.test;
+
+import haven.*;
+import integrations.mapv4.UploadQueue;
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/*
+ * Runs the mapping upload queue against a local stub server,
+ * checking deduplication, marker batching, backoff on server errors,
+ * dropping of rejected uploads, handler failures and reloading of
+ * pending uploads after a restart.
+ */
+public class UploadQueueTest {
+    static class Req {
+	final String path, body;
+	final long time = System.currentTimeMillis();
+
+	Req(String path, String body) {
+	    this.path = path;
+	    this.body = body;
+	}
+    }
+
+    static final List<Req> reqs = new CopyOnWriteArrayList<>();
+    static final Map<String, Deque<Integer>> script = new ConcurrentHashMap<>();
+    static volatile boolean down = false;
+    static volatile CountDownLatch gate = new CountDownLatch(0);
+
+    static HttpServer server() throws IOException {
+	HttpServer srv = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+	srv.createContext("/", ex -> {
+		String body = new String(Utils.readall(ex.getRequestBody()), StandardCharsets.UTF_8);
+		reqs.add(new Req(ex.getRequestURI().getPath(), body));
+		try {
+		    if(body.contains("block"))
+			gate.await();
+		} catch(InterruptedException e) {}
+		int code = down ? 503 : 200;
+		Deque<Integer> codes = script.get(body);
+		if((codes != null) && !codes.isEmpty())
+		    code = codes.poll();
+		byte[] out = "{}".getBytes(StandardCharsets.UTF_8);
+		ex.sendResponseHeaders(code, out.length);
+		try(OutputStream fp = ex.getResponseBody()) {
+		    fp.write(out);
+		}
+	    });
+	srv.setExecutor(Executors.newCachedThreadPool(r -> {
+		    Thread th = new Thread(r, "Stub mapping server");
+		    th.setDaemon(true);
+		    return(th);
+		}));
+	srv.start();
+	return(srv);
+    }
+
+    static String endpoint;
+    static UploadQueue.Entry entry(UploadQueue.Kind kind, String key, String val) {
+	return(new UploadQueue.Entry(kind, key, endpoint, "", ("\"" + val + "\"").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    static UploadQueue.Entry grid(String key, String val) {return(entry(UploadQueue.Kind.GRIDUPDATE, key, val));}
+    static UploadQueue.Entry grid(String key) {return(grid(key, key));}
+
+    static List<Req> seen(String path, String body) {
+	List<Req> ret = new ArrayList<>();
+	for(Req r : reqs) {
+	    if(r.path.equals(path) && ((body == null) || r.body.equals(body)))
+		ret.add(r);
+	}
+	return(ret);
+    }
+
+    static List<Req> seen(String val) {return(seen("/gridUpdate", "\"" + val + "\""));}
+
+    static void check(boolean c, String what) {
+	if(!c)
+	    throw(new AssertionError(what));
+    }
+
+    static void await(BooleanSupplier c, String what) throws InterruptedException {
+	for(long st = System.currentTimeMillis(); !c.getAsBoolean(); Thread.sleep(10)) {
+	    if(System.currentTimeMillis() - st > 10000)
+		throw(new AssertionError("timed out waiting for " + what));
+	}
+    }
+
+    static int nfiles(Path dir) throws IOException {
+	try(DirectoryStream<Path> ls = Files.newDirectoryStream(dir)) {
+	    int n = 0;
+	    for(Path p : ls)
+		n++;
+	    return(n);
+	}
+    }
+
+    static void dedup(UploadQueue q) throws InterruptedException {
+	/* Occupy every sender, so that the rest queue up. */
+	gate = new CountDownLatch(1);
+	for(int i = 0; i < UploadQueue.MAXFLIGHT; i++)
+	    q.put(grid("block" + i));
+	await(() -> reqs.size() == UploadQueue.MAXFLIGHT, "blocked uploads");
+	for(int i = 0; i < 3; i++)
+	    q.put(grid("A", "A" + i));
+	StringBuilder batch = new StringBuilder("[");
+	for(int i = 0; i < 5; i++) {
+	    q.put(entry(UploadQueue.Kind.MARKERS, "m" + i, "m" + i));
+	    batch.append((i > 0) ? "," : "").append("\"m" + i + "\"");
+	}
+	batch.append("]");
+	check(q.size() == UploadQueue.MAXFLIGHT + 1 + 5, "queue size " + q.size());
+	gate.countDown();
+	await(() -> q.size() == 0, "queue to drain");
+	check(seen("A0").isEmpty() && seen("A1").isEmpty(), "replaced upload was sent");
+	check(seen("A2").size() == 1, "latest upload was not sent once");
+	List<Req> markers = seen("/markerUpdate", null);
+	check(markers.size() == 1, markers.size() + " marker posts");
+	check(markers.get(0).body.equals(batch.toString()), "marker batch " + markers.get(0).body);
+    }
+
+    static void backoff(UploadQueue q) throws InterruptedException {
+	script.put("\"R\"", new ArrayDeque<>(Arrays.asList(500, 200)));
+	int nfailed = q.nfailed;
+	q.put(grid("R"));
+	await(() -> q.size() == 0, "retried upload");
+	List<Req> r = seen("R");
+	check(r.size() == 2, r.size() + " posts of retried upload");
+	check(r.get(1).time - r.get(0).time >= (UploadQueue.MINDELAY * 3) / 4, "retried after " + (r.get(1).time - r.get(0).time) + " ms");
+	check(q.nfailed == nfailed + 1, "failure not counted");
+	/* Fresh data for a failing key waits out the backoff too. */
+	script.put("\"K0\"", new ArrayDeque<>(Arrays.asList(503)));
+	q.put(grid("K", "K0"));
+	await(() -> q.nfailed == nfailed + 2, "failed upload");
+	q.put(grid("K", "K1"));
+	await(() -> q.size() == 0, "replaced upload");
+	long dt = seen("K1").get(0).time - seen("K0").get(0).time;
+	check(dt >= (UploadQueue.MINDELAY * 3) / 4, "replacement sent after " + dt + " ms");
+    }
+
+    static void reject(UploadQueue q) throws InterruptedException {
+	script.put("\"B\"", new ArrayDeque<>(Arrays.asList(400)));
+	q.put(grid("B"));
+	await(() -> q.size() == 0, "rejected upload");
+	Thread.sleep(UploadQueue.MINDELAY * 2);
+	check(seen("B").size() == 1, seen("B").size() + " posts of rejected upload");
+    }
+
+    static void handler(UploadQueue q) throws InterruptedException {
+	int nsent = q.nsent;
+	q.put(grid("H"));
+	await(() -> q.size() == 0, "upload with failing handler");
+	Thread.sleep(UploadQueue.MINDELAY * 2);
+	check(seen("H").size() == 1, seen("H").size() + " posts of upload with failing handler");
+	check(q.nsent == nsent + 1, "upload with failing handler not counted as sent");
+    }
+
+    static void restart(UploadQueue q, Path dir) throws Exception {
+	down = true;
+	q.put(grid("S0"));
+	q.put(grid("S1"));
+	await(() -> !seen("S0").isEmpty() && !seen("S1").isEmpty(), "uploads to restart");
+	q.close();
+	down = false;
+	UploadQueue q2 = new UploadQueue(dir);
+	check(q2.size() == 2, q2.size() + " uploads after restart");
+	await(() -> q2.size() == 0, "reloaded uploads");
+	check((seen("S0").size() >= 2) && (seen("S1").size() >= 2), "reloaded uploads not sent");
+	await(() -> {
+		try {
+		    return(nfiles(dir) == 0);
+		} catch(IOException e) {
+		    throw(new RuntimeException(e));
+		}
+	    }, "queue files to be deleted");
+	q2.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+	HttpServer srv = server();
+	endpoint = "http://127.0.0.1:" + srv.getAddress().getPort();
+	Path dir = Files.createTempDirectory("uploadqueue");
+	try {
+	    UploadQueue q = new UploadQueue(dir);
+	    q.handle(UploadQueue.Kind.GRIDUPDATE, (e, resp) -> {
+		    if(e.key.equals("H"))
+			throw(new RuntimeException("bad response"));
+		});
+	    dedup(q);
+	    backoff(q);
+	    reject(q);
+	    handler(q);
+	    restart(q, dir);
+	    System.out.println("ok");
+	} finally {
+	    srv.stop(0);
+	    try(DirectoryStream<Path> ls = Files.newDirectoryStream(dir)) {
+		for(Path p : ls)
+		    Files.delete(p);
+	    }
+	    Files.delete(dir);
+	}
+    }
+}
@@ -27,6 +27,8 @@ public class MappingClient {
     
     private ExecutorService gridsUploader = Executors.newSingleThreadExecutor();
     private ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(3);
+    private final UploadQueue queue = new UploadQueue(Config.getFile("mapv4-queue").toPath());
+    private final Map<String, WeakReference<MCache.Grid>> liveGrids = Collections.synchronizedMap(new HashMap<>());
     
     private static volatile MappingClient INSTANCE = null;
     
@@ -49,6 +51,7 @@ public class MappingClient {
 	    if(INSTANCE != null) {
 	        INSTANCE.gridsUploader.shutdown();
 	        INSTANCE.scheduler.shutdown();
+		INSTANCE.queue.close();
 		INSTANCE = null;
 	    }
 	}
@@ -90,6 +93,7 @@ public class MappingClient {
     private MappingClient(Glob glob) {
 	this.glob = glob;
 	scheduler.scheduleAtFixedRate(pu, 2L, 2L, TimeUnit.SECONDS);
+	queue.handle(UploadQueue.Kind.GRIDUPDATE, this::gridUpdated);
     }
     
     private String endpoint;
@@ -286,7 +290,7 @@ public class MappingClient {
 	
 	@Override
 	public void run() {
-	    ArrayList<JSONObject> loadedMarkers = new ArrayList<>();
+	    int n = 0;
 	    while (!markers.isEmpty()) {
 		System.out.println("processing " + markers.size() + " markers");
 		Iterator<MarkerData> iterator = markers.iterator();
@@ -296,6 +300,7 @@ public class MappingClient {
 			Coord mgc = new Coord(Math.floorDiv(md.m.tc.x, 100), Math.floorDiv(md.m.tc.y, 100));
 			long gridId = md.indirGrid.get().id;
 			JSONObject o = new JSONObject();
+			String key = "m" + gridId + ":" + md.m.nm;
 			o.put("name", md.m.nm);
 			o.put("gridID", String.valueOf(gridId));
 			Coord gridOffset = md.m.tc.sub(mgc.mul(100));
@@ -306,11 +311,14 @@ public class MappingClient {
 			    o.put("type", "shared");
 			    o.put("id", ((SMarker) md.m).oid);
 			    o.put("image", ((SMarker) md.m).res.name);
+			    key = "s" + ((SMarker) md.m).oid;
 			} else if(md.m instanceof PMarker) {
 			    o.put("type", "player");
 			    o.put("color", ((PMarker) md.m).color);
+			    key = String.format("p%d:%d:%d:%s", gridId, gridOffset.x, gridOffset.y, md.m.nm);
 			}
-			loadedMarkers.add(o);
+			queue.put(new UploadQueue.Entry(UploadQueue.Kind.MARKERS, key, endpoint, "", o.toString().getBytes(StandardCharsets.UTF_8)));
+			n++;
 			iterator.remove();
 		    } catch (Loading ex) {
 		    }
@@ -319,39 +327,7 @@ public class MappingClient {
 		    Thread.sleep(50);
 		} catch (InterruptedException ex) { }
 	    }
-	    System.out.println("scheduling marker upload");
-	    try {
-		scheduler.execute(new MarkerUpdate(new JSONArray(loadedMarkers.toArray())));
-	    } catch (Exception ex) {
-		System.out.println(ex);
-	    }
-	}
-    }
-    
-    private class MarkerUpdate implements Runnable {
-	JSONArray data;
-	
-	MarkerUpdate(JSONArray data) {
-	    this.data = data;
-	}
-	
-	@Override
-	public void run() {
-	    try {
-		HttpURLConnection connection =
-		    (HttpURLConnection) new URL(endpoint + "/markerUpdate").openConnection();
-		connection.setRequestMethod("POST");
-		connection.setRequestProperty("Content-Type", "application/json;charset=UTF-8");
-		connection.setDoOutput(true);
-		try (DataOutputStream out = new DataOutputStream(connection.getOutputStream())) {
-		    final String json = data.toString();
-		    out.write(json.getBytes(StandardCharsets.UTF_8));
-		}
-		int code = connection.getResponseCode();
-		connection.disconnect();
-	    } catch (Exception ex) {
-		System.out.println(ex);
-	    }
+	    System.out.println("queued " + n + " markers for upload");
 	}
     }
     
@@ -424,18 +400,10 @@ public class MappingClient {
 			}
 		    }
 		    
+		    /* Positions are stale by the next update anyway, so they
+		     * are only sent, not queued. */
 		    try {
-			final HttpURLConnection connection =
-			    (HttpURLConnection) new URL(endpoint + "/positionUpdate").openConnection();
-			connection.setRequestMethod("POST");
-			connection.setRequestProperty("Content-Type", "application/json;charset=UTF-8");
-			connection.setDoOutput(true);
-			try (DataOutputStream out = new DataOutputStream(connection.getOutputStream())) {
-			    final String json = upload.toString();
-			    out.write(json.getBytes(StandardCharsets.UTF_8));
-			} catch (Exception e) {
-			}
-			connection.getResponseCode();
+			UploadQueue.post(endpoint + "/positionUpdate", "application/json;charset=UTF-8", upload.toString().getBytes(StandardCharsets.UTF_8));
 		    } catch (final Exception ex) {
 		    }
 		}
@@ -445,21 +413,6 @@ public class MappingClient {
 	}
     }
     
-    private static class GridUpdate {
-	String[][] grids;
-	Map<String, WeakReference<MCache.Grid>> gridRefs;
-	
-	GridUpdate(final String[][] grids, Map<String, WeakReference<MCache.Grid>> gridRefs) {
-	    this.grids = grids;
-	    this.gridRefs = gridRefs;
-	}
-	
-	@Override
-	public String toString() {
-	    return String.format("GridUpdate (%s)", grids[1][1]);
-	}
-    }
-    
     private class GenerateGridUpdateTask implements Runnable {
 	Coord coord;
 	int retries = 3;
@@ -472,16 +425,21 @@ public class MappingClient {
 	public void run() {
 	    if(gridEnabled) {
 		final String[][] gridMap = new String[3][3];
-		Map<String, WeakReference<MCache.Grid>> gridRefs = new HashMap<String, WeakReference<MCache.Grid>>();
 		try {
 		    for (int x = -1; x <= 1; x++) {
 			for (int y = -1; y <= 1; y++) {
 			    final MCache.Grid subg = glob.map.getgrid(coord.add(x, y));
 			    gridMap[x + 1][y + 1] = String.valueOf(subg.id);
-			    gridRefs.put(String.valueOf(subg.id), new WeakReference<MCache.Grid>(subg));
+			    liveGrids.put(String.valueOf(subg.id), new WeakReference<MCache.Grid>(subg));
 			}
 		    }
-		    scheduler.execute(new UploadGridUpdateTask(new GridUpdate(gridMap, gridRefs)));
+		    synchronized (liveGrids) {
+			liveGrids.values().removeIf(r -> r.get() == null);
+		    }
+		    HashMap<String, Object> dataToSend = new HashMap<>();
+		    dataToSend.put("grids", gridMap);
+		    String json = new JSONObject(dataToSend).toString();
+		    queue.put(new UploadQueue.Entry(UploadQueue.Kind.GRIDUPDATE, gridMap[1][1], endpoint, "", json.getBytes(StandardCharsets.UTF_8)));
 		} catch (LoadingMap lm) {
 		    retries--;
 		    if(retries >= 0) {
@@ -495,59 +453,24 @@ public class MappingClient {
 	}
     }
     
-    private class UploadGridUpdateTask implements Runnable {
-	private final GridUpdate gridUpdate;
-	
-	UploadGridUpdateTask(final GridUpdate gridUpdate) {
-	    this.gridUpdate = gridUpdate;
+    private void gridUpdated(UploadQueue.Entry e, UploadQueue.Response resp) {
+	JSONObject jo = new JSONObject(resp.body);
+	JSONArray reqs = jo.optJSONArray("gridRequests");
+	synchronized (cache) {
+	    cache.put(Long.valueOf(e.key), new MapRef(jo.getLong("map"), new Coord(jo.getJSONObject("coords").getInt("x"), jo.getJSONObject("coords").getInt("y"))));
 	}
-	
-	@Override
-	public void run() {
-	    if(gridEnabled) {
-		HashMap<String, Object> dataToSend = new HashMap<>();
-		
-		dataToSend.put("grids", this.gridUpdate.grids);
-		try {
-		    HttpURLConnection connection =
-			(HttpURLConnection) new URL(endpoint + "/gridUpdate").openConnection();
-		    connection.setRequestMethod("POST");
-		    connection.setRequestProperty("Content-Type", "application/json;charset=UTF-8");
-		    connection.setDoOutput(true);
-		    try (DataOutputStream out = new DataOutputStream(connection.getOutputStream())) {
-			String json = new JSONObject(dataToSend).toString();
-			out.write(json.getBytes(StandardCharsets.UTF_8));
-		    }
-		    if(connection.getResponseCode() == 200) {
-			DataInputStream dio = new DataInputStream(connection.getInputStream());
-			int nRead;
-			byte[] data = new byte[1024];
-			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-			while ((nRead = dio.read(data, 0, data.length)) != -1) {
-			    buffer.write(data, 0, nRead);
-			}
-			buffer.flush();
-			String response = buffer.toString(StandardCharsets.UTF_8.name());
-			JSONObject jo = new JSONObject(response);
-			JSONArray reqs = jo.optJSONArray("gridRequests");
-			synchronized (cache) {
-			    cache.put(Long.valueOf(gridUpdate.grids[1][1]), new MapRef(jo.getLong("map"), new Coord(jo.getJSONObject("coords").getInt("x"), jo.getJSONObject("coords").getInt("y"))));
-			}
-			for (int i = 0; reqs != null && i < reqs.length(); i++) {
-			    gridsUploader.execute(new GridUploadTask(reqs.getString(i), gridUpdate.gridRefs.get(reqs.getString(i))));
-			}
-		    }
-		    
-		} catch (Exception ex) {
-		    System.out.println(ex);
-		}
-	    }
+	for (int i = 0; gridEnabled && reqs != null && i < reqs.length(); i++) {
+	    String id = reqs.getString(i);
+	    WeakReference<MCache.Grid> ref = liveGrids.get(id);
+	    if(ref != null)
+		gridsUploader.execute(new GridUploadTask(id, ref));
 	}
     }
     
     private class GridUploadTask implements Runnable {
 	private final String gridID;
 	private final WeakReference<MCache.Grid> grid;
+	private int tries = 0;
 	
 	GridUploadTask(String gridID, WeakReference<MCache.Grid> grid) {
 	    this.gridID = gridID;
@@ -567,25 +490,18 @@ public class MappingClient {
 			JSONObject extraData = new JSONObject();
 			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
 			ImageIO.write(image, "png", outputStream);
-			ByteArrayInputStream inputStream = new ByteArrayInputStream(outputStream.toByteArray());
-			MultipartUtility multipart = new MultipartUtility(endpoint + "/gridUpload", "utf-8");
-			multipart.addFormField("id", this.gridID);
-			multipart.addFilePart("file", inputStream, "minimap.png");
 			extraData.put("season", glob.ast.is);
-			multipart.addFormField("extraData", extraData.toString());
-			MultipartUtility.Response response = multipart.finish();
-			if(response.statusCode != 200) {
-			    System.out.println("Upload Error: Code" + response.statusCode + " - " + response.response);
-			} else {
-			
-			}
+			queue.put(new UploadQueue.Entry(UploadQueue.Kind.GRIDUPLOAD, gridID, endpoint, extraData.toString(), outputStream.toByteArray()));
 		    } catch (IOException e) {
 			System.out.println("Cannot upload " + gridID + ": " + e.getMessage());
 		    }
 		}
 	    } catch (Loading ex) {
-		// Retry on Loading
-		gridsUploader.submit(this);
+		/* Retry on Loading, backing off rather than spinning */
+		if(tries < 10) {
+		    long delay = Math.min(100L << tries++, 10000L);
+		    scheduler.schedule(() -> gridsUploader.execute(this), delay, TimeUnit.MILLISECONDS);
+		}
 	    }
 	    
 	}
@@ -0,0 +1,422 @@
+package integrations.mapv4;
+
+import haven.*;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Persistent queue of uploads to a mapping server. Every entry is
+ * kept as a file of its own until the server has accepted it, so
+ * that nothing is lost to failures or restarts. Entries are
+ * deduplicated by kind and key, the latest one winning, and failed
+ * posts are retried with exponential backoff. Markers are posted in
+ * batches, and posts go over reused keep-alive connections, with at
+ * most MAXFLIGHT of them in flight at a time.
+ */
+public class UploadQueue {
+    public static final int MAXFLIGHT = 2, MAXBATCH = 100, MAXENTRIES = 5000;
+    public static final long MINDELAY = 1000, MAXDELAY = 5 * 60 * 1000;
+    private static final String SIG = "Mapv4 queue 1";
+    
+    public enum Kind {
+	GRIDUPDATE("gridUpdate", false),
+	MARKERS("markerUpdate", true),
+	GRIDUPLOAD("gridUpload", false);
+	
+	public final String path;
+	public final boolean batched;
+	
+	Kind(String path, boolean batched) {
+	    this.path = path;
+	    this.batched = batched;
+	}
+    }
+    
+    public static class Entry {
+	public final Kind kind;
+	public final String key, endpoint, meta;
+	public final byte[] data;
+	int tries = 0;
+	long due = 0;
+	boolean inflight = false;
+	
+	public Entry(Kind kind, String key, String endpoint, String meta, byte[] data) {
+	    this.kind = kind;
+	    this.key = key;
+	    this.endpoint = endpoint;
+	    this.meta = meta;
+	    this.data = data;
+	}
+	
+	String id() {return(kind.name() + ":" + key);}
+	
+	public String toString() {return(String.format("%s %s", kind.path, key));}
+    }
+    
+    public static class Response {
+	public final int code;
+	public final String body;
+	
+	public Response(int code, String body) {
+	    this.code = code;
+	    this.body = body;
+	}
+    }
+    
+    public interface Handler {
+	public void done(Entry e, Response resp) throws Exception;
+    }
+    
+    private final Path dir;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private final Map<Kind, Handler> handlers = new EnumMap<>(Kind.class);
+    private final ExecutorService senders = Executors.newFixedThreadPool(MAXFLIGHT, r -> {
+	Thread th = new HackThread(r, "Mapping uploader");
+	th.setDaemon(true);
+	return(th);
+    });
+    private final Random rnd = new Random();
+    private final Object[] iolocks = new Object[16];
+    private int nflight = 0;
+    private boolean closed = false;
+    private final Thread dispatcher;
+    public int nsent = 0, nfailed = 0, ndropped = 0;
+    
+    public UploadQueue(Path dir) {
+	this.dir = dir;
+	for(int i = 0; i < iolocks.length; i++)
+	    iolocks[i] = new Object();
+	load();
+	dispatcher = new HackThread(this::dispatch, "Mapping upload queue");
+	dispatcher.setDaemon(true);
+	dispatcher.start();
+    }
+    
+    public void handle(Kind kind, Handler h) {
+	synchronized(this) {
+	    handlers.put(kind, h);
+	}
+    }
+    
+    private Path file(Entry e) {
+	return(dir.resolve(e.kind.name().toLowerCase() + "-" + Utils.byte2hex(e.key.getBytes(StandardCharsets.UTF_8))));
+    }
+    
+    private void load() {
+	if(!Files.isDirectory(dir))
+	    return;
+	List<Path> files = new ArrayList<>();
+	try(DirectoryStream<Path> ls = Files.newDirectoryStream(dir)) {
+	    for(Path p : ls)
+		files.add(p);
+	} catch(IOException e) {
+	    new Warning(e, "could not list mapping upload queue").issue();
+	    return;
+	}
+	files.sort(Comparator.comparing(p -> {
+	    try {
+		return(Files.getLastModifiedTime(p).toMillis());
+	    } catch(IOException e) {
+		return(0L);
+	    }
+	}));
+	for(Path p : files) {
+	    if(p.getFileName().toString().endsWith(".new")) {
+		try {
+		    Files.deleteIfExists(p);
+		} catch(IOException e) {}
+		continue;
+	    }
+	    try(DataInputStream fp = new DataInputStream(new BufferedInputStream(Files.newInputStream(p)))) {
+		if(!fp.readUTF().equals(SIG))
+		    throw(new IOException("bad signature"));
+		Kind kind = Kind.valueOf(fp.readUTF());
+		String key = fp.readUTF(), endpoint = fp.readUTF(), meta = fp.readUTF();
+		byte[] data = new byte[fp.readInt()];
+		fp.readFully(data);
+		Entry e = new Entry(kind, key, endpoint, meta, data);
+		entries.put(e.id(), e);
+	    } catch(IOException | IllegalArgumentException e) {
+		new Warning(e, "dropping unreadable upload " + p).issue();
+		try {
+		    Files.deleteIfExists(p);
+		} catch(IOException e2) {}
+	    }
+	}
+    }
+    
+    /* Saves and deletes are done outside the queue lock, but those
+     * of the same key are serialized, and each only goes ahead if
+     * the entry is still (for saves) or no longer (for deletes) the
+     * queued one for its key. Whatever happened to the queue last
+     * is thus what ends up on disk. */
+    private Object iolock(Entry e) {
+	return(iolocks[(e.id().hashCode() & 0x7fffffff) % iolocks.length]);
+    }
+    
+    private void save(Entry e) {
+	synchronized(iolock(e)) {
+	    synchronized(this) {
+		if(entries.get(e.id()) != e)
+		    return;
+	    }
+	    Path tmp = null;
+	    try {
+		Files.createDirectories(dir);
+		Path path = file(e);
+		tmp = Files.createTempFile(dir, path.getFileName() + "-", ".new");
+		try(DataOutputStream fp = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+		    fp.writeUTF(SIG);
+		    fp.writeUTF(e.kind.name());
+		    fp.writeUTF(e.key);
+		    fp.writeUTF(e.endpoint);
+		    fp.writeUTF(e.meta);
+		    fp.writeInt(e.data.length);
+		    fp.write(e.data);
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	    } catch(IOException exc) {
+		new Warning(exc, "could not save upload " + e).issue();
+		if(tmp != null) {
+		    try {
+			Files.deleteIfExists(tmp);
+		    } catch(IOException exc2) {}
+		}
+	    }
+	}
+    }
+    
+    private void delete(Entry e) {
+	synchronized(iolock(e)) {
+	    synchronized(this) {
+		if(entries.containsKey(e.id()))
+		    return;
+	    }
+	    try {
+		Files.deleteIfExists(file(e));
+	    } catch(IOException exc) {
+		new Warning(exc, "could not delete upload " + e).issue();
+	    }
+	}
+    }
+    
+    /**
+     * Queues an upload, replacing any queued one of the same kind
+     * and key which is not already being sent.
+     */
+    public void put(Entry e) {
+	Entry drop = null;
+	synchronized(this) {
+	    if(closed || (e.endpoint == null))
+		return;
+	    /* A replacement inherits the backoff of what it replaces,
+	     * so that a server which is down is not hammered by fresh
+	     * data for the same keys. */
+	    Entry prev = entries.remove(e.id());
+	    if(prev != null) {
+		e.tries = prev.tries;
+		e.due = prev.due;
+	    }
+	    entries.put(e.id(), e);
+	    if(entries.size() > MAXENTRIES) {
+		for(Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+		    Entry c = i.next();
+		    if(!c.inflight) {
+			i.remove();
+			drop = c;
+			ndropped++;
+			break;
+		    }
+		}
+	    }
+	    notifyAll();
+	}
+	save(e);
+	if(drop != null)
+	    delete(drop);
+    }
+    
+    public int size() {
+	synchronized(this) {
+	    return(entries.size());
+	}
+    }
+    
+    private void dispatch() {
+	try {
+	    synchronized(this) {
+		while(!closed) {
+		    long now = System.currentTimeMillis(), next = Long.MAX_VALUE;
+		    List<Entry> batch = null;
+		    if(nflight < MAXFLIGHT) {
+			for(Entry e : entries.values()) {
+			    if(e.inflight)
+				continue;
+			    if(e.due > now) {
+				next = Math.min(next, e.due);
+				continue;
+			    }
+			    if(batch == null) {
+				batch = new ArrayList<>();
+				batch.add(e);
+				if(!e.kind.batched)
+				    break;
+			    } else if((e.kind == batch.get(0).kind) && e.endpoint.equals(batch.get(0).endpoint)) {
+				batch.add(e);
+				if(batch.size() >= MAXBATCH)
+				    break;
+			    }
+			}
+		    }
+		    if(batch != null) {
+			for(Entry e : batch)
+			    e.inflight = true;
+			nflight++;
+			List<Entry> b = batch;
+			senders.execute(() -> send(b));
+			continue;
+		    }
+		    if(next == Long.MAX_VALUE)
+			wait();
+		    else
+			wait(Math.max(next - now, 1));
+		}
+	    }
+	} catch(InterruptedException e) {
+	}
+    }
+    
+    private static byte[] encode(List<Entry> batch, String boundary) throws IOException {
+	Entry f = batch.get(0);
+	switch(f.kind) {
+	case MARKERS: {
+	    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	    buf.write('[');
+	    for(int i = 0; i < batch.size(); i++) {
+		if(i > 0)
+		    buf.write(',');
+		buf.write(batch.get(i).data);
+	    }
+	    buf.write(']');
+	    return(buf.toByteArray());
+	}
+	case GRIDUPLOAD: {
+	    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	    Writer out = new OutputStreamWriter(buf, StandardCharsets.UTF_8);
+	    out.write("--" + boundary + "\r\nContent-Disposition: form-data; name=\"id\"\r\n\r\n" + f.key + "\r\n");
+	    out.write("--" + boundary + "\r\nContent-Disposition: form-data; name=\"extraData\"\r\n\r\n" + f.meta + "\r\n");
+	    out.write("--" + boundary + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"minimap.png\"\r\n");
+	    out.write("Content-Type: image/png\r\n\r\n");
+	    out.flush();
+	    buf.write(f.data);
+	    out.write("\r\n--" + boundary + "--\r\n");
+	    out.flush();
+	    return(buf.toByteArray());
+	}
+	default:
+	    return(f.data);
+	}
+    }
+    
+    /**
+     * Posts a request, reading the whole response so that the
+     * connection can be kept alive for the next one.
+     */
+    public static Response post(String url, String ctype, byte[] body) throws IOException {
+	HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+	conn.setRequestMethod("POST");
+	conn.setRequestProperty("Content-Type", ctype);
+	conn.setRequestProperty("User-Agent", Config.confid);
+	conn.setConnectTimeout(10000);
+	conn.setReadTimeout(30000);
+	conn.setDoOutput(true);
+	conn.setFixedLengthStreamingMode(body.length);
+	try(OutputStream out = conn.getOutputStream()) {
+	    out.write(body);
+	}
+	int code = conn.getResponseCode();
+	InputStream in = (code >= 400) ? conn.getErrorStream() : conn.getInputStream();
+	if(in == null)
+	    return(new Response(code, ""));
+	try(InputStream fp = in) {
+	    return(new Response(code, new String(Utils.readall(fp), StandardCharsets.UTF_8)));
+	}
+    }
+    
+    private void send(List<Entry> batch) {
+	Entry f = batch.get(0);
+	Response resp = null;
+	Throwable err = null;
+	try {
+	    String boundary = "===" + System.currentTimeMillis() + "===";
+	    String ctype = (f.kind == Kind.GRIDUPLOAD) ? ("multipart/form-data; boundary=\"" + boundary + "\"") : "application/json;charset=UTF-8";
+	    resp = post(f.endpoint + "/" + f.kind.path, ctype, encode(batch, boundary));
+	} catch(Exception e) {
+	    err = e;
+	}
+	/* The server has accepted the upload by now, so a failing
+	 * handler must not cause it to be sent again. */
+	if((err == null) && ((resp.code / 100) == 2)) {
+	    Handler h;
+	    synchronized(this) {
+		h = handlers.get(f.kind);
+	    }
+	    if(h != null) {
+		try {
+		    h.done(f, resp);
+		} catch(Exception e) {
+		    new Warning(e, "could not handle response to " + f).issue();
+		}
+	    }
+	}
+	/* Client errors will not get any better by retrying, except
+	 * for those asking us to slow down. */
+	boolean done = (err == null) && (((resp.code / 100) == 2) ||
+					 (((resp.code / 100) == 4) && (resp.code != 408) && (resp.code != 429)));
+	List<Entry> remove = new ArrayList<>();
+	synchronized(this) {
+	    long now = System.currentTimeMillis();
+	    for(Entry e : batch) {
+		e.inflight = false;
+		if(done) {
+		    if(entries.get(e.id()) == e) {
+			entries.remove(e.id());
+			remove.add(e);
+		    }
+		} else {
+		    e.tries++;
+		    long delay = Math.min(MAXDELAY, MINDELAY << Math.min(e.tries - 1, 20));
+		    e.due = now + (delay * (750 + rnd.nextInt(500))) / 1000;
+		}
+	    }
+	    if(done && ((resp.code / 100) == 2))
+		nsent += batch.size();
+	    else
+		nfailed += batch.size();
+	    nflight--;
+	    notifyAll();
+	}
+	for(Entry e : remove)
+	    delete(e);
+	if(err != null)
+	    new Warning(err, "mapping upload of " + f + " failed, retrying").issue();
+	else if(!done)
+	    new Warning("mapping upload of " + f + " failed with " + resp.code + ", retrying").issue();
+	else if((resp.code / 100) != 2)
+	    new Warning("mapping server rejected " + f + ": " + resp.code + " " + resp.body).issue();
+    }
+    
+    public void close() {
+	synchronized(this) {
+	    closed = true;
+	    notifyAll();
+	}
+	senders.shutdown();
+    }
+}